@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.CompiledPromptTemplate;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.PromptBudgeter;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.Tokenizer;
+import com.microsoft.openai.samples.rag.common.ResponseMessageUtils;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.input.PromptTemplate;
+import dev.langchain4j.model.output.TokenUsage;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request cost of the "build prompt + build response" path of the chat flow, with 5 sources and 2 previous turns.
+ * The rendering benchmarks compare the precompiled templates with the PromptTemplate.from(...).apply(...) calls
+ * they replaced. The full path benchmark adds the prompt budgeting and the response object graph. Run with
+ * {@code -prof gc} to compare the allocations per request:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="ChatFlowBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatFlowBenchmark {
+
+    private static final String QUESTION = "What is the deductible of the Northwind Health Plus plan?";
+    private static final String CUSTOM_PROMPT = "Answer in less than 100 words.";
+
+    private List<ChatMessage> history;
+    private List<Content> sources;
+    private String sourcesSection;
+    private CompiledPromptTemplate systemChatMessagePrompt;
+    private CompiledPromptTemplate groundedUserQuestionPrompt;
+    private PromptBudgeter promptBudgeter;
+    private RAGOptions options;
+    private ChatModel chatModel;
+
+    @Setup
+    public void setup() {
+        history = List.of(
+                UserMessage.from("What does the Northwind Health Plus plan cover?"),
+                AiMessage.from("It covers medical, vision and dental services [Benefit_Options.pdf#page=3]."));
+
+        sources = new ArrayList<>();
+        StringBuilder section = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            String text = ("Northwind Health Plus has an in-network deductible of $%d per person. ".formatted(1000 + i * 250)).repeat(12);
+            var metadata = Metadata.from(Map.of("file_name", "Northwind_Health_Plus_Benefits_Details.pdf", "page_number", String.valueOf(i + 1)));
+            sources.add(Content.from(TextSegment.from(text, metadata), Map.of(ContentMetadata.SCORE, 0.9 - i * 0.1)));
+            section.append("Northwind_Health_Plus_Benefits_Details.pdf#page=").append(i + 1).append(": ").append(text).append('\n');
+        }
+        sourcesSection = section.toString();
+
+        systemChatMessagePrompt = CompiledPromptTemplate.compile(AnswerQuestionAgent.SYSTEM_CHAT_MESSAGE_TEMPLATE);
+        groundedUserQuestionPrompt = CompiledPromptTemplate.compile(AnswerQuestionAgent.GROUNDED_USER_QUESTION_TEMPLATE);
+        promptBudgeter = new PromptBudgeter(new Tokenizer("gpt-4o-mini", 4096), 12_000, 3_000, 100);
+        options = new RAGOptions.Builder().retrievialMode("hybrid").top(5).suggestFollowupQuestions(true).threadId("thread").build();
+        var chatResponse = ChatResponse.builder()
+                .aiMessage(AiMessage.from("The in-network deductible is $1,000 per person [Northwind_Health_Plus_Benefits_Details.pdf#page=1]."
+                        + " <<What is the out-of-network deductible?>> <<Is there a family deductible?>> <<What counts toward it?>>"))
+                .modelName("gpt-4o-mini")
+                .tokenUsage(new TokenUsage(1800, 60))
+                .build();
+        // answers without calling OpenAI, so only the prompt and response building is measured
+        chatModel = new ChatModel() {
+            @Override
+            public ChatResponse doChat(ChatRequest request) {
+                return chatResponse;
+            }
+        };
+    }
+
+    @Benchmark
+    public List<String> renderPromptTemplate() {
+        String systemPrompt = PromptTemplate.from(AnswerQuestionAgent.SYSTEM_CHAT_MESSAGE_TEMPLATE).apply(Map.of(
+                "customPrompt", CUSTOM_PROMPT,
+                "followUpQuestions", AnswerQuestionAgent.FOLLOW_UP_QUESTIONS_TEMPLATE)).text();
+        String question = PromptTemplate.from(AnswerQuestionAgent.GROUNDED_USER_QUESTION_TEMPLATE).apply(Map.of(
+                "question", QUESTION,
+                "sources", sourcesSection)).text();
+        return List.of(systemPrompt, question);
+    }
+
+    @Benchmark
+    public List<String> renderCompiledTemplate() {
+        String systemPrompt = systemChatMessagePrompt.render(Map.of(
+                "customPrompt", CUSTOM_PROMPT,
+                "followUpQuestions", AnswerQuestionAgent.FOLLOW_UP_QUESTIONS_TEMPLATE));
+        String question = groundedUserQuestionPrompt.render(Map.of(
+                "question", QUESTION,
+                "sources", sourcesSection));
+        return List.of(systemPrompt, question);
+    }
+
+    @Benchmark
+    public ChatAppResponse buildPromptAndResponse() {
+        var agent = new AnswerQuestionAgent(history, sources, CUSTOM_PROMPT, true, chatModel, null, promptBudgeter, "request");
+        var response = agent.answerQuestion(QUESTION, options);
+        return ResponseMessageUtils.buildChatResponse(
+                agent.getMessages(), options, agent.getSources(), response, QUESTION, null, agent.getPromptBudget());
+    }
+}
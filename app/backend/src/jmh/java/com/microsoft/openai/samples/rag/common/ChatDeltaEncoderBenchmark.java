@@ -0,0 +1,85 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing one streamed delta frame: {@link ChatDeltaEncoder} against the Jackson serialization of the
+ * {@link ChatAppResponse} it replaces. Run with {@code -prof gc} to compare the allocations per frame:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="ChatDeltaEncoderBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatDeltaEncoderBenchmark {
+
+    // a typical token, a token with escapes, and a long cached answer replayed as a single delta
+    @Param({"ASCII", "ESCAPED", "LONG"})
+    public String content;
+
+    private String text;
+    private ObjectMapper objectMapper;
+    private ObjectWriter objectWriter;
+    private OutputStream outputStream;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        text = switch (content) {
+            case "ASCII" -> " deductible";
+            case "ESCAPED" -> "\"Northwind\u00AE\"\n";
+            default -> "The Northwind Health Plus plan covers in-network emergency services. ".repeat(30);
+        };
+        objectMapper = new ObjectMapper();
+        objectWriter = objectMapper.writerFor(ChatAppResponse.class).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        outputStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+            }
+        };
+    }
+
+    @Benchmark
+    public void encoder() throws IOException {
+        ChatDeltaEncoder.writeDelta(text, outputStream);
+    }
+
+    @Benchmark
+    public void objectWriter() throws IOException {
+        objectWriter.writeValue(outputStream, ResponseMessageUtils.buildDelta(text));
+    }
+
+    @Benchmark
+    public void objectMapperString() throws IOException {
+        outputStream.write(objectMapper.writeValueAsString(ResponseMessageUtils.buildDelta(text)).getBytes());
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.search.documents.SearchClientBuilder;
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.approaches.RetrievalStrategy;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request cost of getting a search retriever: a {@link ContentRetrieverCache} hit against building a search
+ * client and a retriever for the request, as the per request langchain4j AzureAiSearchContentRetriever did. The
+ * per request client also comes with its own HTTP pipeline, connection pool and token cache, whose cost on the
+ * first search is not measured here. Run with {@code -prof gc} to compare the allocations per request:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="ContentRetrieverCacheBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentRetrieverCacheBenchmark {
+
+    private static final String ENDPOINT = "https://search.search.windows.net";
+    private static final String INDEX_NAME = "gptkbindex";
+
+    private ContentRetrieverCache cache;
+    private SourceDiversifier sourceDiversifier;
+    private ChatMetrics chatMetrics;
+    private RAGOptions options;
+
+    @Setup
+    public void setup() {
+        var meterRegistry = new SimpleMeterRegistry();
+        var searchClient = new SearchClientBuilder()
+                .endpoint(ENDPOINT)
+                .credential(new AzureKeyCredential("key"))
+                .indexName(INDEX_NAME)
+                .buildClient();
+        sourceDiversifier = new SourceDiversifier(meterRegistry, false, 3, 0.7, 3, true);
+        chatMetrics = new ChatMetrics(meterRegistry, "gpt-4o-mini", false);
+        var multiQueryRetriever = new MultiQueryRetriever(null, meterRegistry, RetrievalStrategy.single, 4, true, 3, 3000, 60);
+        cache = new ContentRetrieverCache(
+                searchClient, null, meterRegistry, multiQueryRetriever, sourceDiversifier, chatMetrics, true, 64);
+        options = new RAGOptions.Builder()
+                .retrievialMode("hybrid")
+                .semanticRanker(true)
+                .top(3)
+                .excludeCategory("internal")
+                .build();
+    }
+
+    @Benchmark
+    public ContentRetriever cached() {
+        return cache.get(options, "user-oid");
+    }
+
+    @Benchmark
+    public ContentRetriever perRequest() {
+        var searchClient = new SearchClientBuilder()
+                .endpoint(ENDPOINT)
+                .credential(new AzureKeyCredential("key"))
+                .indexName(INDEX_NAME)
+                .buildClient();
+        var filterShape = SearchFilterShape.of("user-oid", options.getExcludeCategory(), true);
+        return new SearchContentRetriever(
+                searchClient,
+                null,
+                options.getRetrievalMode(),
+                options.isSemanticRanker(),
+                options.getTop(),
+                options.getMinimumSearchScore(),
+                filterShape,
+                sourceDiversifier,
+                chatMetrics)
+                .bind("user-oid", options.getExcludeCategory());
+    }
+}
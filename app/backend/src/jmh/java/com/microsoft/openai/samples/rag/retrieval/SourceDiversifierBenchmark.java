@@ -0,0 +1,76 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import dev.langchain4j.rag.content.Content;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost added to every search by {@link SourceDiversifier}: top 5 selected out of 15 over-fetched chunks of about
+ * 1,000 characters, with 1536 dimension content vectors or with the SimHash similarity only. Run with
+ * {@code -prof gc} to check the allocations per search:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="SourceDiversifierBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SourceDiversifierBenchmark {
+
+    private static final String[] WORDS = ("plan coverage deductible provider network emergency care health benefit claim"
+            + " premium policy employee service cost visit drug pharmacy hospital dental vision handbook vacation").split(" ");
+
+    @Param({"true", "false"})
+    public boolean vectors;
+
+    private SourceDiversifier diversifier;
+    private List<SourceDiversifier.Candidate> candidates;
+    private String text;
+
+    @Setup
+    public void setup() {
+        diversifier = new SourceDiversifier(new SimpleMeterRegistry(), true, 3, 0.7, 3, true);
+        var random = new SplittableRandom(42);
+        candidates = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            var chunk = new StringBuilder();
+            while (chunk.length() < 1_000) chunk.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            float[] vector = null;
+            if (vectors) {
+                vector = new float[1536];
+                for (int d = 0; d < vector.length; d++) vector[d] = (float) random.nextDouble(-1, 1);
+            }
+            candidates.add(new SourceDiversifier.Candidate(Content.from(chunk.toString()), 1 - i * 0.05, vector));
+        }
+        text = candidates.get(0).content().textSegment().text();
+    }
+
+    @Benchmark
+    public List<Content> select() {
+        return diversifier.select(candidates, 5);
+    }
+
+    @Benchmark
+    public long simHash() {
+        return SourceDiversifier.simHash(text);
+    }
+}
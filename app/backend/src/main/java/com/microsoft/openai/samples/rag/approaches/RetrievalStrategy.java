@@ -0,0 +1,12 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.approaches;
+
+/**
+ * How the search queries are built, independently of the {@link RetrievalMode} each of them runs with.
+ */
+public enum RetrievalStrategy {
+    // one search with the generated keywords
+    single,
+    // concurrent searches with several variants of the question, fused with reciprocal rank fusion
+    multiQuery;
+}
@@ -2,19 +2,22 @@
 package com.microsoft.openai.samples.rag.chat.langchain4j;
 
 import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.CompiledPromptTemplate;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.PromptBudgeter;
 import com.microsoft.openai.samples.rag.common.ChatGPTUtils;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import com.microsoft.openai.samples.rag.common.ChatStageEvent;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.UserMessage;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
-import dev.langchain4j.model.input.PromptTemplate;
 import dev.langchain4j.rag.content.Content;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.model.chat.response.ChatResponse;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -26,18 +29,24 @@ import java.util.Map;
  *  2. No few shot examples are added.
  *  3. Chat history along with last user question is added to the message list.
  *  4. Follow-up questions generation prompt is added if followUpQuestions is true.
- * It doesn't truncate chat history based on OpenAI model token request limits.
+ * The prompt is fitted into the token budget of {@link PromptBudgeter} once the question is known: the oldest turns of the
+ * chat history are trimmed and the lowest scored sources dropped or truncated. The prompt build is recorded as a
+ * JDK Flight Recorder {@link ChatStageEvent}.
  */
 public class AnswerQuestionAgent {
 
-    private MessageWindowChatMemory messageWindowChatMemory ;
-    private final StringBuilder sources = new StringBuilder();
-    private final Boolean followUpQuestions;
-    private final String customPrompt;
+    private List<ChatMessage> messages;
+    private final List<ChatMessage> previousConversation;
+    private final List<Content> sources;
+    private final String systemPrompt;
     private final ChatModel chatModel;
     private final StreamingChatModel streamingChatModel;
+    private final PromptBudgeter promptBudgeter;
+    private final String requestId;
+    private PromptBudgeter.Plan promptBudget;
+    private long promptBuildNanos;
 
-    private static final String FOLLOW_UP_QUESTIONS_TEMPLATE =
+    static final String FOLLOW_UP_QUESTIONS_TEMPLATE =
             """
             Generate 3 very brief follow-up questions that the user would likely ask next.
             Enclose the follow-up questions in double angle brackets. Example:
@@ -48,7 +57,7 @@ public class AnswerQuestionAgent {
             Make sure the last question ends with ">>".
             """.stripIndent();
 
-    private static final String SYSTEM_CHAT_MESSAGE_TEMPLATE =
+    static final String SYSTEM_CHAT_MESSAGE_TEMPLATE =
              """
              Assistant helps the company employees with their healthcare plan questions, and questions about the employee handbook. Be brief in your answers.
              Answer ONLY with the facts listed in the list of sources below. If there isn't enough information below, say you don't know. Do not generate answers that don't use the sources below. If asking a clarifying question to the user would help, ask the question.
@@ -58,11 +67,25 @@ public class AnswerQuestionAgent {
              {{followUpQuestions}}
              """.stripIndent();
 
+    static final String GROUNDED_USER_QUESTION_TEMPLATE =
+            """
+            {{question}}
+             Sources:
+             {{sources}}
+            """.stripIndent();
+
+    private static final CompiledPromptTemplate SYSTEM_CHAT_MESSAGE_PROMPT =
+            CompiledPromptTemplate.compile(SYSTEM_CHAT_MESSAGE_TEMPLATE);
+    private static final CompiledPromptTemplate GROUNDED_USER_QUESTION_PROMPT =
+            CompiledPromptTemplate.compile(GROUNDED_USER_QUESTION_TEMPLATE);
+
     /**
      * @param previousConversation conversation history
      * @param sources       domain specific sources to be used in the prompt
      * @param customPrompt  custom prompt to be injected in the existing promptTemplate or used to
      *                      replace it
+     * @param promptBudgeter fits the chat history and the sources into the prompt token budget
+     * @param requestId     the request id of the flight recorder events
      */
     public AnswerQuestionAgent(
             List<ChatMessage> previousConversation,
@@ -70,61 +93,32 @@ public class AnswerQuestionAgent {
             String customPrompt,
             Boolean followUpQuestions,
             ChatModel chatModel,
-            StreamingChatModel streamingChatModel) {
+            StreamingChatModel streamingChatModel,
+            PromptBudgeter promptBudgeter,
+            String requestId) {
 
 
         if (sources == null) throw new IllegalStateException("sources cannot be null");
 
         this.chatModel = chatModel;
         this.streamingChatModel = streamingChatModel;
-        this.followUpQuestions = followUpQuestions;
-        this.customPrompt = customPrompt == null ? "" : customPrompt;
-
-        // Build sources section
-        sources.iterator()
-                .forEachRemaining(
-                        source ->
-                                this.sources
-                                        .append(source.textSegment().metadata().getString("file_name"))
-                                        .append(source.textSegment().metadata().getString("page_number") != null
-                                                ? "#page=" + source.textSegment().metadata().getString("page_number")
-                                                : "")
-                                        .append(": ")
-                                        .append(source.textSegment().text())
-                                        .append("\n"));
-
-
-        PromptTemplate promptTemplate = PromptTemplate.from(SYSTEM_CHAT_MESSAGE_TEMPLATE);
-
-        var systemPrompt = promptTemplate.apply(Map.of(
-                "customPrompt", this.customPrompt,
-                "followUpQuestions", this.followUpQuestions ? FOLLOW_UP_QUESTIONS_TEMPLATE : ""
+        this.promptBudgeter = promptBudgeter;
+        this.requestId = requestId;
+        this.sources = sources;
+        this.previousConversation = previousConversation == null ? List.of() : previousConversation;
+
+        this.systemPrompt = SYSTEM_CHAT_MESSAGE_PROMPT.render(Map.of(
+                "customPrompt", customPrompt == null ? "" : customPrompt,
+                "followUpQuestions", followUpQuestions ? FOLLOW_UP_QUESTIONS_TEMPLATE : ""
         ));
-
-        this.messageWindowChatMemory = MessageWindowChatMemory.builder()
-                .id("default")
-                .maxMessages(20)
-                .build();
-
-        //Adding system prompt to chat history
-        this.messageWindowChatMemory.add(SystemMessage.from(systemPrompt.text()));
-
-        //Add previous conversation to the list of messages
-        if( previousConversation != null && !previousConversation.isEmpty()) {
-            previousConversation.forEach(this.messageWindowChatMemory::add);
-        }
-
-
     }
 
 public ChatResponse answerQuestion(String question, RAGOptions options) {
 
-    var groundedUserQuestion = getGroundedUserQuestion(question);
-
-    this.messageWindowChatMemory.add(UserMessage.from(groundedUserQuestion));
+    if (this.promptBudget == null) buildMessages(question);
 
     ChatRequest request = ChatRequest.builder()
-            .messages(this.messageWindowChatMemory.messages())
+            .messages(this.messages)
             //https://github.com/langchain4j/langchain4j/issues/3070?reload=1
             //.parameters(ChatGPTUtils.buildDefaultChatParameters(options))
             .build();
@@ -134,12 +128,10 @@ public ChatResponse answerQuestion(String question, RAGOptions options) {
 
 public void answerQuestionStream(String question, RAGOptions options, StreamingChatResponseHandler handler) {
 
-    var groundedUserQuestion = getGroundedUserQuestion(question);
-
-    this.messageWindowChatMemory.add(UserMessage.from(groundedUserQuestion));
+    if (this.promptBudget == null) buildMessages(question);
 
     ChatRequest request = ChatRequest.builder()
-            .messages(this.messageWindowChatMemory.messages())
+            .messages(this.messages)
             //https://github.com/langchain4j/langchain4j/issues/3070?reload=1
             //.parameters(ChatGPTUtils.buildDefaultChatParameters(options))
             .build();
@@ -147,24 +139,90 @@ public void answerQuestionStream(String question, RAGOptions options, StreamingC
       streamingChatModel.chat(request,handler);
 }
 
+    /**
+     * Fits and renders the prompt before the question is asked, so that the sources sent to the model are known
+     * before it's called. The question must be the one asked next, the answer methods reuse this prompt.
+     */
+    public void preparePrompt(String question) {
+        buildMessages(question);
+    }
+
     public List<ChatMessage> getMessages() {
-        return this.messageWindowChatMemory.messages();
+        return this.messages;
         }
 
-    private String getGroundedUserQuestion(String question) {
-        String userQuestionPrompt = """
-                {{question}}
-                 Sources:
-                 {{sources}}
-                """.stripIndent();
-
-        return PromptTemplate
-                .from(userQuestionPrompt)
-                .apply(Map.of(
-                        "question", question,
-                        "sources", this.sources.toString()))
-                .text();
+    /**
+     * @return the token counts of the prompt, available once the question has been asked
+     */
+    public PromptBudgeter.Plan getPromptBudget() {
+        return this.promptBudget;
+    }
+
+    /**
+     * @return the time spent fitting and rendering the prompt, available once the question has been asked
+     */
+    public long getPromptBuildNanos() {
+        return this.promptBuildNanos;
     }
-}
 
+    /**
+     * @return the sources actually sent to the model, available once the prompt is prepared or the question asked
+     */
+    public List<Content> getSources() {
+        return this.promptBudget.sources();
+    }
+
+    private void buildMessages(String question) {
+        var event = new ChatStageEvent(requestId, ChatMetrics.Stage.PROMPT);
+        event.begin();
+        long start = System.nanoTime();
+        this.promptBudget = promptBudgeter.plan(
+                this.systemPrompt,
+                this.previousConversation,
+                this.sources,
+                AnswerQuestionAgent::formatSource,
+                getGroundedUserQuestion(question, ""));
+
+        // Build sources section
+        StringBuilder sourcesSection = new StringBuilder();
+        this.promptBudget.sources().forEach(source -> sourcesSection.append(formatSource(source)));
+
+        // The budget already trimmed the history. A plain list rather than a chat memory, which would keep a single
+        // system message while the history may start with the conversation summary
+        List<ChatMessage> messages = new ArrayList<>(this.promptBudget.history().size() + 2);
+
+        //Adding system prompt to chat history
+        messages.add(SystemMessage.from(this.systemPrompt));
 
+        //Add previous conversation to the list of messages
+        messages.addAll(this.promptBudget.history());
+
+        String groundedUserQuestion = getGroundedUserQuestion(question, sourcesSection.toString());
+        messages.add(UserMessage.from(groundedUserQuestion));
+        this.messages = List.copyOf(messages);
+        this.promptBuildNanos = System.nanoTime() - start;
+
+        if (event.shouldCommit()) {
+            event.chars = this.systemPrompt.length() + groundedUserQuestion.length();
+            event.sources = this.promptBudget.sources().size();
+            event.tokens = this.promptBudget.totalTokens();
+            event.commit();
+        }
+    }
+
+    private static String formatSource(Content source) {
+        return source.textSegment().metadata().getString("file_name")
+                + (source.textSegment().metadata().getString("page_number") != null
+                        ? "#page=" + source.textSegment().metadata().getString("page_number")
+                        : "")
+                + ": "
+                + source.textSegment().text()
+                + "\n";
+    }
+
+    private static String getGroundedUserQuestion(String question, String sources) {
+        return GROUNDED_USER_QUESTION_PROMPT.render(Map.of(
+                "question", question,
+                "sources", sources));
+    }
+}
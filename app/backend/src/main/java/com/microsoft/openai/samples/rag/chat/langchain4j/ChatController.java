@@ -2,32 +2,47 @@
 package com.microsoft.openai.samples.rag.chat.langchain4j;
 
 import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.chat.langchain4j.conversation.ConversationStore;
+import com.microsoft.openai.samples.rag.chat.langchain4j.limit.ChatConcurrencyLimiter;
 import com.microsoft.openai.samples.rag.common.ChatGPTConversation;
 import com.microsoft.openai.samples.rag.common.ChatGPTMessage;
 import com.microsoft.openai.samples.rag.common.ChatGPTUtils;
 import com.microsoft.openai.samples.rag.model.ChatAppRequest;
 import com.microsoft.openai.samples.rag.model.ChatAppResponse;
 import com.microsoft.openai.samples.rag.model.ResponseMessage;
+import com.microsoft.openai.samples.rag.security.LoggedUserService;
 import dev.langchain4j.data.message.ChatMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Controller providing the api to chat with the RAG model.The APPLICATION_NDJSON_VALUE based API is used for streaming the response.
- * Streaming works only with RAG implementation based on plain java Open AI client sdk. Semantic Kernel doesn't support streaming yet
+ * The streaming api returns a Flux: the request goes into servlet async mode and Spring MVC writes each element as an NDJSON
+ * line from its task executor, requesting the next element only once the previous one is written. The writes block, but
+ * no thread is held while the answer is generated.
+ * Requests beyond the {@link ChatConcurrencyLimiter} limit are rejected with 503 and a Retry-After header.
+ * The thoughts of slim responses are fetched with /api/chat/thoughts/{id}, see {@link ThoughtsStore}.
+ * The session_state is read from the query string or the request body. With the {@link ConversationStore} enabled a
+ * request resuming a session may carry only the new user message: if the session is unknown it is rejected with 409,
+ * and the client resends the whole history.
  */
 @RestController
 public class ChatController {
@@ -35,26 +50,37 @@ public class ChatController {
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatController.class);
 
     private final Langchain4JChatFlow langchain4JChatApproach;
-
-    public ChatController(Langchain4JChatFlow langchain4JChatApproach) {
+    private final ChatConcurrencyLimiter chatConcurrencyLimiter;
+    private final ConversationStore conversationStore;
+    private final LoggedUserService loggedUserService;
+
+    public ChatController(
+            Langchain4JChatFlow langchain4JChatApproach,
+            ChatConcurrencyLimiter chatConcurrencyLimiter,
+            ConversationStore conversationStore,
+            LoggedUserService loggedUserService) {
         this.langchain4JChatApproach = langchain4JChatApproach;
+        this.chatConcurrencyLimiter = chatConcurrencyLimiter;
+        this.conversationStore = conversationStore;
+        this.loggedUserService = loggedUserService;
 
     }
 
 
     @PostMapping(value = "/api/chat/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
-    public ResponseEntity<StreamingResponseBody> chatStream(
+    public ResponseEntity<Flux<ChatAppResponse>> chatStream(
             @RequestBody ChatAppRequest chatRequest,
             @RequestParam(value = "session_state", required = false) String sessionState) {
 
-        sessionState = getOrCreateSessionState(sessionState);
+        String clientSessionState = clientSessionState(sessionState, chatRequest);
+        sessionState = getOrCreateSessionState(clientSessionState);
 
         LOGGER.info("Received request for async chat api with message {}", chatRequest.messages());
 
 
         if (chatRequest.messages() == null || chatRequest.messages().isEmpty()) {
             LOGGER.warn("history cannot be null in Chat request");
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         }
 
 
@@ -72,10 +98,41 @@ public class ChatController {
                 .build();
 
 
-        List<ChatMessage> messages = ChatGPTUtils.convertToLangchain4J(chatRequest.messages());
-
-        StreamingResponseBody response =
-                output ->     langchain4JChatApproach.runStreaming(messages, ragOptions, output);
+        String userId = loggedUserService.getLoggedUser().entraId();
+        List<ChatMessage> messages = conversationStore.resolve(
+                clientSessionState, userId, ChatGPTUtils.convertToLangchain4J(chatRequest.messages()));
+        if (messages == null) return unknownSession(clientSessionState);
+
+        var permit = chatConcurrencyLimiter.tryAcquire(true, messages);
+        if (permit == null) return rejected(true);
+
+        String threadId = sessionState;
+        List<ChatMessage> conversation = List.copyOf(messages);
+        StringBuilder answer = new StringBuilder();
+        AtomicBoolean generated = new AtomicBoolean();
+        Flux<ChatAppResponse> response;
+        try {
+            response = langchain4JChatApproach.runStreaming(messages, ragOptions, () -> {
+                        generated.set(true);
+                        permit.firstOutput();
+                    })
+                    .doOnNext(frame -> {
+                        if (frame.delta() != null && frame.delta().content() != null) {
+                            answer.append(frame.delta().content());
+                        }
+                    })
+                    .doOnComplete(() -> conversationStore.append(threadId, userId, conversation, answer.toString()))
+                    .doFinally(signal -> {
+                        // Answers replayed from the cache or an identical stream don't wait on the model, their
+                        // latency is no sample of the limit
+                        if (signal == SignalType.ON_COMPLETE && generated.get()) permit.success();
+                        else if (signal == SignalType.ON_ERROR) permit.dropped();
+                        else permit.ignore();
+                    });
+        } catch (RuntimeException e) {
+            permit.dropped();
+            throw e;
+        }
 
         return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(response);
     }
@@ -83,7 +140,8 @@ public class ChatController {
     @PostMapping(value = "/api/chat", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<ChatAppResponse> chat(@RequestBody ChatAppRequest chatRequest,
                                                 @RequestParam(value = "session_state", required = false) String sessionState) {
-        sessionState = getOrCreateSessionState(sessionState);
+        String clientSessionState = clientSessionState(sessionState, chatRequest);
+        sessionState = getOrCreateSessionState(clientSessionState);
 
         LOGGER.info("Received request for sync chat api with message {}", chatRequest.messages());
 
@@ -101,9 +159,58 @@ public class ChatController {
                 .build();
 
 
-        List<ChatMessage> messages = ChatGPTUtils.convertToLangchain4J(chatRequest.messages());
-        return ResponseEntity.ok(
-                langchain4JChatApproach.run(messages, ragOptions));
+        String userId = loggedUserService.getLoggedUser().entraId();
+        List<ChatMessage> messages = conversationStore.resolve(
+                clientSessionState, userId, ChatGPTUtils.convertToLangchain4J(chatRequest.messages()));
+        if (messages == null) return unknownSession(clientSessionState);
+
+        var permit = chatConcurrencyLimiter.tryAcquire(false, messages);
+        if (permit == null) return rejected(false);
+
+        // The pipeline consumes the last message of the list
+        List<ChatMessage> conversation = List.copyOf(messages);
+        try {
+            var response = langchain4JChatApproach.run(messages, ragOptions);
+            permit.success();
+            conversationStore.append(sessionState, userId, conversation, response.message().content());
+            return ResponseEntity.ok(response);
+        } catch (RuntimeException e) {
+            permit.dropped();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the thoughts of a slim response as a context, already serialized, or 404 if they expired
+     */
+    @GetMapping(value = "/api/chat/thoughts/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> thoughts(@PathVariable("id") String thoughtsId) {
+        byte[] thoughts = langchain4JChatApproach.getThoughts(thoughtsId);
+        if (thoughts == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(thoughts);
+    }
+
+    private <T> ResponseEntity<T> rejected(boolean streaming) {
+        long retryAfter = chatConcurrencyLimiter.retryAfterSeconds(streaming);
+        LOGGER.warn("Rejected {} chat request, concurrency limit reached, retry after {} s",
+                streaming ? "streaming" : "sync", retryAfter);
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter))
+                .build();
+    }
+
+    private <T> ResponseEntity<T> unknownSession(String sessionState) {
+        LOGGER.warn("Rejected chat request resuming unknown session {}, the whole history is needed", sessionState);
+        return ResponseEntity.status(HttpStatus.CONFLICT).build();
+    }
+
+    /**
+     * @return the session_state of the query string, or else the one of the request body, null for a new session
+     */
+    private static String clientSessionState(String sessionState, ChatAppRequest chatRequest) {
+        if (sessionState != null && !sessionState.isEmpty()) return sessionState;
+        if (chatRequest.sessionState() != null && !chatRequest.sessionState().isEmpty()) return chatRequest.sessionState();
+        return null;
     }
 
     private String getOrCreateSessionState(String sessionState) {
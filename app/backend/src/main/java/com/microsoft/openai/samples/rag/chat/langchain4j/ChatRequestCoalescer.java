@@ -0,0 +1,152 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.chat.langchain4j.cache.SemanticAnswerCache;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.text.Normalizer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Single-flight layer in front of the chat pipeline: identical requests arriving while one is in flight wait for
+ * its answer instead of running their own keyword, search and completion calls. Requests are identical when they
+ * have the same normalized conversation (NFKC, lower case, collapsed whitespace) and the same
+ * {@link SemanticAnswerCache.Scope}, i.e. the same user, excluded category and answer options.
+ * Sync callers share the response. Streaming callers subscribe to a shared replayed stream: late joiners first get
+ * the frames already sent and then the live ones. Each caller still gets its own session_state.
+ * Requests served by another one in flight are published as rag.chat.coalesced, tagged sync or stream.
+ */
+@Component
+public class ChatRequestCoalescer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChatRequestCoalescer.class);
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+    private record Key(List<String> conversation, SemanticAnswerCache.Scope scope) {}
+
+    private final boolean enabled;
+    private final Map<Key, CompletableFuture<ChatAppResponse>> calls = new ConcurrentHashMap<>();
+    private final Map<Key, Flux<ChatAppResponse>> streams = new ConcurrentHashMap<>();
+    private final Counter syncCoalesced;
+    private final Counter streamCoalesced;
+
+    public ChatRequestCoalescer(
+            MeterRegistry meterRegistry,
+            @Value("${app.singleFlight.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+        this.syncCoalesced = meterRegistry.counter("rag.chat.coalesced", "mode", "sync");
+        this.streamCoalesced = meterRegistry.counter("rag.chat.coalesced", "mode", "stream");
+    }
+
+    /**
+     * Runs the pipeline, or waits for the identical one in flight on the calling thread.
+     * @param pipeline the chat pipeline, called only if no identical request is in flight
+     */
+    public ChatAppResponse run(
+            List<ChatMessage> conversationHistory,
+            RAGOptions options,
+            String userId,
+            Supplier<ChatAppResponse> pipeline) {
+        if (!enabled) return pipeline.get();
+
+        var key = key(conversationHistory, options, userId);
+        var call = new CompletableFuture<ChatAppResponse>();
+        var inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            syncCoalesced.increment();
+            LOGGER.info("Chat request coalesced with an identical one in flight");
+            try {
+                return withThreadId(inFlight.join(), options.getThreadId());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) throw cause;
+                throw e;
+            }
+        }
+
+        try {
+            var response = pipeline.get();
+            call.complete(response);
+            return response;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * Subscribes to the identical stream in flight, or starts the pipeline and shares it. The upstream is cancelled
+     * once all its subscribers are gone.
+     * @param pipeline the streaming chat pipeline, called only if no identical stream is in flight
+     */
+    public Flux<ChatAppResponse> runStreaming(
+            List<ChatMessage> conversationHistory,
+            RAGOptions options,
+            String userId,
+            Supplier<Flux<ChatAppResponse>> pipeline) {
+        if (!enabled) return pipeline.get();
+
+        var key = key(conversationHistory, options, userId);
+        String threadId = options.getThreadId();
+        return Flux.defer(() -> {
+            boolean[] leader = {false};
+            var shared = streams.computeIfAbsent(key, k -> {
+                leader[0] = true;
+                return pipeline.get()
+                        .doFinally(signal -> streams.remove(k))
+                        .replay()
+                        .refCount();
+            });
+            if (!leader[0]) {
+                streamCoalesced.increment();
+                LOGGER.info("Streaming chat request coalesced with an identical one in flight");
+            }
+            return shared.map(frame -> withThreadId(frame, threadId));
+        });
+    }
+
+    private static Key key(List<ChatMessage> conversationHistory, RAGOptions options, String userId) {
+        List<String> conversation = conversationHistory.stream()
+                .map(message -> {
+                    if (message instanceof UserMessage userMessage) return "user:" + normalize(userMessage.singleText());
+                    if (message instanceof AiMessage aiMessage) return "assistant:" + normalize(aiMessage.text());
+                    return message.type() + ":" + normalize(message.toString());
+                })
+                .toList();
+        return new Key(conversation, SemanticAnswerCache.Scope.of(options, userId));
+    }
+
+    private static String normalize(String text) {
+        if (text == null) return "";
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        return WHITESPACES.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    /**
+     * Delta frames carry no session_state, the other ones get the caller's.
+     */
+    private static ChatAppResponse withThreadId(ChatAppResponse response, String threadId) {
+        if (response.threadId() == null || response.threadId().equals(threadId)) return response;
+        return new ChatAppResponse(
+                response.message(), response.context(), response.delta(), response.followupQuestions(), threadId);
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.common.ChatGPTUtils;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.service.AiServices;
+import dev.langchain4j.service.TokenStream;
+import dev.langchain4j.service.UserMessage;
+import dev.langchain4j.service.V;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Summarizes the older turns of a conversation, for the ConversationSummarizer. May use a smaller deployment, set
+ * with openai.summary.deployment. Built by the Langchain4JConfiguration, which picks the model.
+ */
+public class ConversationSummaryAgent {
+
+    private static final String SUMMARIZE_CONVERSATION_PROMPT = """
+Summarize the conversation below between a user and an assistant answering questions about the company documents.
+If the conversation starts with a system message, it is the summary of the turns before: merge it into the new summary.
+Keep the facts, names, numbers and source names the user may refer to in the next questions.
+Be brief, use at most 200 words, and only return the summary.
+conversation:
+{{conversation}}
+""";
+
+    interface ConversationSummaryAIService {
+
+        @UserMessage(SUMMARIZE_CONVERSATION_PROMPT)
+        TokenStream summarizeStream(@V("conversation") String conversation);
+    }
+
+    private final ConversationSummaryAIService conversationSummaryAIService;
+
+    /**
+     * The AI service proxy is stateless, so it's built once and shared by all the requests.
+     */
+    public ConversationSummaryAgent(StreamingChatModel streamingChatModel) {
+        this.conversationSummaryAIService = AiServices.builder(ConversationSummaryAIService.class)
+                .streamingChatModel(streamingChatModel)
+                .build();
+    }
+
+    /**
+     * Summarizes the conversation without blocking the caller thread, using the streaming model. When the subscriber
+     * cancels, the next token throws so that the OpenAI client cancels the completion.
+     * @param conversation the turns to summarize, starting with the previous summary as a system message if any
+     */
+    public Mono<String> summarizeAsync(List<ChatMessage> conversation) {
+        return Mono.create(sink -> {
+            var cancelled = new AtomicBoolean();
+            sink.onCancel(() -> cancelled.set(true));
+            conversationSummaryAIService.summarizeStream(ChatGPTUtils.formatAsChatML(conversation))
+                    .onPartialResponse(partialResponse -> {
+                        if (cancelled.get()) throw new CancellationException("Conversation summary cancelled");
+                    })
+                    .onCompleteResponse(response -> sink.success(response.aiMessage().text()))
+                    .onError(error -> {
+                        if (!cancelled.get()) sink.error(error);
+                    })
+                    .start();
+        });
+    }
+}
@@ -0,0 +1,158 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.common.ChatDeltaEvent;
+import com.microsoft.openai.samples.rag.common.ResponseMessageUtils;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the streamed answer tokens into fewer delta frames, so that a response doesn't cost one NDJSON line,
+ * one flush and one TCP packet per token. Buffered tokens are emitted as a single delta when they reach
+ * app.streaming.coalesce.maxChars characters or when the oldest one has waited app.streaming.coalesce.maxDelayMs,
+ * whichever comes first. The frames keep the same delta schema, only with longer content.
+ * Frames per response and flushes saved are published as rag.stream.frames and rag.stream.flushes.saved.
+ * Each frame pushed to the sink is a JDK Flight Recorder {@link ChatDeltaEvent}.
+ * The first frame with answer text is reported to the caller, e.g. to take the time to first token sample of the
+ * concurrency limit: the sources frame sent before it has an empty delta.
+ */
+@Component
+public class DeltaCoalescer {
+
+    private final boolean enabled;
+    private final long maxDelayMs;
+    private final int maxChars;
+    private final Scheduler scheduler = Schedulers.parallel();
+    private final DistributionSummary framesPerResponse;
+    private final Counter flushesSaved;
+
+    public DeltaCoalescer(
+            MeterRegistry meterRegistry,
+            @Value("${app.streaming.coalesce.enabled:true}") boolean enabled,
+            @Value("${app.streaming.coalesce.maxDelayMs:20}") long maxDelayMs,
+            @Value("${app.streaming.coalesce.maxChars:64}") int maxChars) {
+        this.enabled = enabled;
+        this.maxDelayMs = maxDelayMs;
+        this.maxChars = maxChars;
+        this.framesPerResponse = DistributionSummary.builder("rag.stream.frames")
+                .description("Delta frames sent per streamed response")
+                .register(meterRegistry);
+        this.flushesSaved = meterRegistry.counter("rag.stream.flushes.saved");
+    }
+
+    /**
+     * @param requestId the request id of the flight recorder events
+     * @param onFirstToken called once, when the first frame with a non-empty delta is pushed to the sink
+     * @return a buffer emitting the coalesced deltas of one response to the given sink
+     */
+    public Buffer open(FluxSink<ChatAppResponse> sink, String requestId, Runnable onFirstToken) {
+        var buffer = new Buffer(sink, requestId, onFirstToken);
+        sink.onDispose(buffer::cancelTimer);
+        return buffer;
+    }
+
+    /**
+     * Per response state. Tokens are appended from the streaming model callback while the timer flushes
+     * from a scheduler thread, hence the synchronization.
+     */
+    public class Buffer {
+
+        private final FluxSink<ChatAppResponse> sink;
+        private final String requestId;
+        private final Runnable onFirstToken;
+        private final StringBuilder pending = new StringBuilder();
+        private Disposable timer;
+        private boolean answered;
+        private int tokens;
+        private int pendingTokens;
+        private int tokenFrames;
+        private int frames;
+
+        private Buffer(FluxSink<ChatAppResponse> sink, String requestId, Runnable onFirstToken) {
+            this.sink = sink;
+            this.requestId = requestId;
+            this.onFirstToken = onFirstToken;
+        }
+
+        /**
+         * Sends a frame that must not be merged, e.g. the first one carrying the sources or the last one.
+         * Pending tokens are flushed first to keep the order.
+         */
+        public synchronized void send(ChatAppResponse frame) {
+            flush();
+            frames++;
+            int chars = frame.delta() != null && frame.delta().content() != null ? frame.delta().content().length() : 0;
+            next(frame, chars, chars > 0 ? 1 : 0);
+        }
+
+        public synchronized void append(String token) {
+            tokens++;
+            if (!enabled) {
+                tokenFrames++;
+                frames++;
+                next(ResponseMessageUtils.buildDelta(token), token.length(), 1);
+                return;
+            }
+
+            pending.append(token);
+            pendingTokens++;
+            if (pending.length() >= maxChars) {
+                flush();
+            } else if (timer == null) {
+                timer = scheduler.schedule(this::flush, maxDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public synchronized void flush() {
+            cancelTimer();
+            if (pending.isEmpty()) return;
+
+            tokenFrames++;
+            frames++;
+            next(ResponseMessageUtils.buildDelta(pending.toString()), pending.length(), pendingTokens);
+            pending.setLength(0);
+            pendingTokens = 0;
+        }
+
+        /**
+         * Flushes the pending tokens and records the response metrics. The caller completes the sink.
+         */
+        public synchronized void close() {
+            flush();
+            framesPerResponse.record(frames);
+            flushesSaved.increment(tokens - tokenFrames);
+        }
+
+        private void next(ChatAppResponse frame, int chars, int frameTokens) {
+            var event = new ChatDeltaEvent(requestId);
+            event.begin();
+            sink.next(frame);
+            if (!answered && chars > 0) {
+                answered = true;
+                onFirstToken.run();
+            }
+            if (event.shouldCommit()) {
+                event.chars = chars;
+                event.tokens = frameTokens;
+                event.commit();
+            }
+        }
+
+        private synchronized void cancelTimer() {
+            if (timer != null) {
+                timer.dispose();
+                timer = null;
+            }
+        }
+    }
+}
@@ -4,16 +4,22 @@ package com.microsoft.openai.samples.rag.chat.langchain4j;
 import com.microsoft.openai.samples.rag.common.ChatGPTUtils;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.service.AiServices;
+import dev.langchain4j.service.TokenStream;
 import dev.langchain4j.service.UserMessage;
 import dev.langchain4j.service.V;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
 
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+@Component
 public class ExtractKeywordsAgent {
-    interface ExtractKeywordsAssistantAIService{
 
-        @UserMessage("""
+    private static final String EXTRACT_KEYWORDS_PROMPT = """
 Generate a search query for the below conversation.
 You have access to Azure AI Search index with 100's of documents
 Do not include cited source filenames and document names e.g info.txt or doc.pdf in the search query terms.
@@ -24,23 +30,57 @@ If the question is not in English, translate the question to English before gene
 If you cannot generate a search query, return just the number 0.
 conversation:
 {{conversation}}
-""")
+""";
+
+    interface ExtractKeywordsAssistantAIService{
+
+        @UserMessage(EXTRACT_KEYWORDS_PROMPT)
         String extract(@V("conversation") String conversation);
+
+        @UserMessage(EXTRACT_KEYWORDS_PROMPT)
+        TokenStream extractStream(@V("conversation") String conversation);
     }
 
-    private final String conversation;
     private final ExtractKeywordsAssistantAIService extractKeywordsAssistantAIService;
 
-    public ExtractKeywordsAgent(ChatModel model, List<ChatMessage> conversation) {
-        if (conversation == null || conversation.isEmpty())
-            throw new IllegalStateException("conversation cannot be null or empty");
+    /**
+     * The AI service proxy is stateless, so it's built once and shared by all the requests.
+     */
+    public ExtractKeywordsAgent(ChatModel chatModel, StreamingChatModel streamingChatModel) {
+        this.extractKeywordsAssistantAIService = AiServices.builder(ExtractKeywordsAssistantAIService.class)
+                .chatModel(chatModel)
+                .streamingChatModel(streamingChatModel)
+                .build();
+    }
 
-        this.conversation = ChatGPTUtils.formatAsChatML(conversation);
+    public String extractKeywords(List<ChatMessage> conversation) {
+        return extractKeywordsAssistantAIService.extract(formatConversation(conversation));
+    }
 
-        this.extractKeywordsAssistantAIService = AiServices.create(ExtractKeywordsAssistantAIService.class,model);
+    /**
+     * Extracts the keywords without blocking the caller thread, using the streaming model. When the subscriber
+     * cancels, the next token throws so that the OpenAI client cancels the completion.
+     */
+    public Mono<String> extractKeywordsAsync(List<ChatMessage> conversation) {
+        return Mono.create(sink -> {
+            var cancelled = new AtomicBoolean();
+            sink.onCancel(() -> cancelled.set(true));
+            extractKeywordsAssistantAIService.extractStream(formatConversation(conversation))
+                    .onPartialResponse(partialResponse -> {
+                        if (cancelled.get()) throw new CancellationException("Keyword extraction cancelled");
+                    })
+                    .onCompleteResponse(response -> sink.success(response.aiMessage().text()))
+                    .onError(error -> {
+                        if (!cancelled.get()) sink.error(error);
+                    })
+                    .start();
+        });
     }
 
-    public String extractKeywords() {
-        return extractKeywordsAssistantAIService.extract(this.conversation);
+    private static String formatConversation(List<ChatMessage> conversation) {
+        if (conversation == null || conversation.isEmpty())
+            throw new IllegalStateException("conversation cannot be null or empty");
+
+        return ChatGPTUtils.formatAsChatML(conversation);
     }
 }
@@ -0,0 +1,97 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.common.ChatGPTUtils;
+import com.microsoft.openai.samples.rag.common.ResponseMessageUtils;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.service.AiServices;
+import dev.langchain4j.service.TokenStream;
+import dev.langchain4j.service.UserMessage;
+import dev.langchain4j.service.V;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generates the follow-up questions of streamed answers with a call of their own, instead of asking the answer to
+ * end with them: the answer prompt stays smaller and its stream completes without spending output tokens on the
+ * questions. The call gets the conversation and the answer but not the sources, and may use a smaller deployment,
+ * set with openai.followup.deployment. Enabled with app.followup.separateCall, otherwise the
+ * {@link AnswerQuestionAgent} prompt asks for the questions as before. Sync answers always ask for them in the
+ * prompt: the response waits for the whole answer, and a call after it would add a full round trip.
+ * Built by the Langchain4JConfiguration, which picks the model.
+ */
+public class FollowUpQuestionsAgent {
+
+    private static final String FOLLOW_UP_QUESTIONS_PROMPT = """
+Generate 3 very brief follow-up questions that the user would likely ask next, given the conversation below.
+Enclose the follow-up questions in double angle brackets. Example:
+<<Are there exclusions for prescriptions?>>
+<<Which pharmacies can be ordered from?>>
+<<What is the limit for over-the-counter medication?>>
+Do not repeat questions that have already been asked.
+Only return the follow-up questions.
+conversation:
+{{conversation}}
+""";
+
+    interface FollowUpQuestionsAIService {
+
+        @UserMessage(FOLLOW_UP_QUESTIONS_PROMPT)
+        TokenStream generateStream(@V("conversation") String conversation);
+    }
+
+    private final FollowUpQuestionsAIService followUpQuestionsAIService;
+    private final boolean enabled;
+
+    /**
+     * The AI service proxy is stateless, so it's built once and shared by all the requests.
+     */
+    public FollowUpQuestionsAgent(StreamingChatModel streamingChatModel, boolean enabled) {
+        this.followUpQuestionsAIService = AiServices.builder(FollowUpQuestionsAIService.class)
+                .streamingChatModel(streamingChatModel)
+                .build();
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if the follow-up questions of streamed answers are generated by this agent rather than with the
+     * answer
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Generates the follow-up questions without blocking the caller thread, using the streaming model. When the
+     * subscriber cancels, the next token throws so that the OpenAI client cancels the completion.
+     * @param conversation the conversation ending with the question just answered
+     */
+    public Mono<List<String>> generateAsync(List<ChatMessage> conversation, String answer) {
+        return Mono.create(sink -> {
+            var cancelled = new AtomicBoolean();
+            sink.onCancel(() -> cancelled.set(true));
+            followUpQuestionsAIService.generateStream(formatConversation(conversation, answer))
+                    .onPartialResponse(partialResponse -> {
+                        if (cancelled.get()) throw new CancellationException("Follow-up questions generation cancelled");
+                    })
+                    .onCompleteResponse(response ->
+                            sink.success(ResponseMessageUtils.extractFollowUpQueries(response.aiMessage().text())))
+                    .onError(error -> {
+                        if (!cancelled.get()) sink.error(error);
+                    })
+                    .start();
+        });
+    }
+
+    private static String formatConversation(List<ChatMessage> conversation, String answer) {
+        List<ChatMessage> messages = new ArrayList<>(conversation);
+        messages.add(AiMessage.from(answer));
+        return ChatGPTUtils.formatAsChatML(messages);
+    }
+}
@@ -1,12 +1,22 @@
 // Copyright (c) Microsoft. All rights reserved.
 package com.microsoft.openai.samples.rag.chat.langchain4j;
 
-import com.azure.core.credential.TokenCredential;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.chat.langchain4j.cache.SemanticAnswerCache;
+import com.microsoft.openai.samples.rag.chat.langchain4j.conversation.ConversationSummarizer;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.PromptBudgeter;
+import com.microsoft.openai.samples.rag.chat.langchain4j.rewrite.LlmQueryRewriter;
+import com.microsoft.openai.samples.rag.chat.langchain4j.rewrite.QueryRewriterPolicy;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import com.microsoft.openai.samples.rag.common.ChatStageEvent;
 import com.microsoft.openai.samples.rag.common.ResponseMessageUtils;
 
 import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import com.microsoft.openai.samples.rag.retrieval.ContentRetrieverCache;
+import com.microsoft.openai.samples.rag.retrieval.RetrievalExecutor;
+import com.microsoft.openai.samples.rag.retrieval.SessionRetrievalMemory;
+import com.microsoft.openai.samples.rag.retrieval.SourceCutoff;
+import com.microsoft.openai.samples.rag.retrieval.SpeculativeRetriever;
 import com.microsoft.openai.samples.rag.security.LoggedUserService;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.UserMessage;
@@ -14,22 +24,21 @@ import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.response.ChatResponse;
 import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
-import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.rag.content.Content;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
-import dev.langchain4j.rag.content.retriever.azure.search.AzureAiSearchContentRetriever;
-import dev.langchain4j.rag.content.retriever.azure.search.AzureAiSearchQueryType;
+import dev.langchain4j.rag.query.Metadata;
 import dev.langchain4j.rag.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
-import java.io.IOException;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
-
-import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metadataKey;
+import java.util.concurrent.CancellationException;
 
 /**
  * Simple chat-read-retrieve-read java implementation, using the Cognitive Search and OpenAI APIs
@@ -42,38 +51,59 @@ import static dev.langchain4j.store.embedding.filter.MetadataFilterBuilder.metad
 public class Langchain4JChatFlow {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Langchain4JChatFlow.class);
-    private final ObjectMapper objectMapper;
     private final LoggedUserService loggedUserService;
     private final ChatModel chatModel;
     private final StreamingChatModel streamingChatModel;
-    private final EmbeddingModel embeddingModel;
-    private final TokenCredential tokenCredential;
-
-    @Value("${azureai.search.service}")
-    String searchServiceName;
-
-    @Value("${azureai.search.index}")
-    String indexName;
-
-    @Value("${openai.embedding.dimension}")
-    int dimensions;
-
-    @Value("${app.enableGlobalDocumentAccess:true}")
-    boolean enableGlobalDocumentAccess;
+    private final ContentRetrieverCache contentRetrieverCache;
+    private final SpeculativeRetriever speculativeRetriever;
+    private final QueryRewriterPolicy queryRewriterPolicy;
+    private final RetrievalExecutor retrievalExecutor;
+    private final DeltaCoalescer deltaCoalescer;
+    private final PromptBudgeter promptBudgeter;
+    private final SemanticAnswerCache semanticAnswerCache;
+    private final ChatRequestCoalescer chatRequestCoalescer;
+    private final SourceCutoff sourceCutoff;
+    private final ChatMetrics chatMetrics;
+    private final FollowUpQuestionsAgent followUpQuestionsAgent;
+    private final ThoughtsStore thoughtsStore;
+    private final ConversationSummarizer conversationSummarizer;
+    private final SessionRetrievalMemory sessionRetrievalMemory;
 
     public Langchain4JChatFlow(
             ChatModel chatModel,
-            EmbeddingModel embeddingModel,
-            ObjectMapper objectMapper,
             LoggedUserService loggedUserService,
             StreamingChatModel streamingChatModel,
-            TokenCredential tokenCredential) {
+            ContentRetrieverCache contentRetrieverCache,
+            SpeculativeRetriever speculativeRetriever,
+            QueryRewriterPolicy queryRewriterPolicy,
+            RetrievalExecutor retrievalExecutor,
+            DeltaCoalescer deltaCoalescer,
+            PromptBudgeter promptBudgeter,
+            SemanticAnswerCache semanticAnswerCache,
+            ChatRequestCoalescer chatRequestCoalescer,
+            SourceCutoff sourceCutoff,
+            ChatMetrics chatMetrics,
+            FollowUpQuestionsAgent followUpQuestionsAgent,
+            ThoughtsStore thoughtsStore,
+            ConversationSummarizer conversationSummarizer,
+            SessionRetrievalMemory sessionRetrievalMemory) {
         this.chatModel = chatModel;
-        this.embeddingModel = embeddingModel;
-        this.objectMapper = objectMapper;
         this.loggedUserService = loggedUserService;
         this.streamingChatModel = streamingChatModel;
-        this.tokenCredential = tokenCredential;
+        this.contentRetrieverCache = contentRetrieverCache;
+        this.speculativeRetriever = speculativeRetriever;
+        this.queryRewriterPolicy = queryRewriterPolicy;
+        this.retrievalExecutor = retrievalExecutor;
+        this.deltaCoalescer = deltaCoalescer;
+        this.promptBudgeter = promptBudgeter;
+        this.semanticAnswerCache = semanticAnswerCache;
+        this.chatRequestCoalescer = chatRequestCoalescer;
+        this.sourceCutoff = sourceCutoff;
+        this.chatMetrics = chatMetrics;
+        this.followUpQuestionsAgent = followUpQuestionsAgent;
+        this.thoughtsStore = thoughtsStore;
+        this.conversationSummarizer = conversationSummarizer;
+        this.sessionRetrievalMemory = sessionRetrievalMemory;
     }
 
     /**
@@ -83,34 +113,57 @@ public class Langchain4JChatFlow {
      */
 
     public ChatAppResponse run(List<ChatMessage> conversationHistory, RAGOptions options) {
-
         String userId = this.loggedUserService.getLoggedUser().entraId();
+        var response = chatRequestCoalescer.run(conversationHistory, options, userId, () -> runPipeline(
+                conversationSummarizer.compact(conversationHistory, options.getThreadId(), userId), options, userId));
+        // Slimmed last, so the coalesced and cached responses keep their thoughts
+        if (!thoughtsStore.isEnabled()) return response;
+        return thoughtsStore.slim(response, thoughtsStore.newId(), userId);
+    }
 
-        // STEP 1: Extract keywords from the chat history to use for retrieval.
-        var extractKeywordsAssistant = new ExtractKeywordsAgent(this.chatModel, conversationHistory);
-        var keywords = extractKeywordsAssistant.extractKeywords();
-        LOGGER.info("Extracted keywords for retrieval: {}", keywords);
-
-        // STEP 2: Retrieve relevant documents using keywords extracted from the chat history.
-        ContentRetriever contentRetriever = buildContentRetriever(options, userId);
-        var sources = contentRetriever.retrieve(Query.from(keywords));
-        LOGGER.info("Total {} sources retrieved", sources.size());
+    private ChatAppResponse runPipeline(List<ChatMessage> conversationHistory, RAGOptions options, String userId) {
+        // STEP 1 and 2: Extract keywords from the chat history and retrieve relevant documents.
+        // With the semantic cache the keywords are looked up first, so retrieval can't start before they're known.
+        var timings = chatMetrics.start();
+        SpeculativeRetriever.Result retrieval;
+        SemanticAnswerCache.Lookup cacheLookup = null;
+        if (semanticAnswerCache.isCacheable(conversationHistory)) {
+            var keywords = timings.time(
+                    ChatMetrics.Stage.KEYWORDS, () -> rewriteQuery(conversationHistory), Langchain4JChatFlow::describeKeywords);
+            cacheLookup = semanticAnswerCache.lookup(keywords, SemanticAnswerCache.Scope.of(options, userId));
+            if (cacheLookup.isHit()) {
+                timings.complete();
+                return withTimings(cacheLookup.response(options.getThreadId()), timings);
+            }
+            retrieval = timings.time(ChatMetrics.Stage.RETRIEVAL,
+                    () -> retrieveSources(keywords, conversationHistory, options, userId), Langchain4JChatFlow::describeRetrieval);
+        } else {
+            retrieval = retrieveSources(conversationHistory, options, userId, timings);
+        }
+        var keywords = retrieval.query();
+        var sourceSelection = sourceCutoff.apply(retrieval.sources(), options);
+        var sources = sourceSelection.sources();
 
         // STEP 3: Generate a contextual and content specific answer using the search results and chat history
         UserMessage userQuestion = (UserMessage)conversationHistory.get(conversationHistory.size() - 1);
         conversationHistory.remove(conversationHistory.size() - 1);
 
+        // The response waits for the whole answer anyway: the follow-up questions come with it rather than from a
+        // second call after it, see FollowUpQuestionsAgent
         var answerQuestionAgent = new AnswerQuestionAgent(
                 conversationHistory,
                 sources,
                 options.getPromptTemplate(),
                 options.isSuggestFollowupQuestions(),
                 this.chatModel,
-                this.streamingChatModel
+                this.streamingChatModel,
+                this.promptBudgeter,
+                timings.requestId()
                 );
 
+        long generationStart = System.nanoTime();
         var chatResponse = answerQuestionAgent.answerQuestion(userQuestion.singleText(), options);
-        
+        recordGeneration(timings, answerQuestionAgent, generationStart, chatResponse);
 
         LOGGER.info(
                 "Chat completion generated with Input Tokens[{}], Completions Tokens[{}], Total"
@@ -119,171 +172,348 @@ public class Langchain4JChatFlow {
                 chatResponse.tokenUsage().outputTokenCount(),
                 chatResponse.tokenUsage().totalTokenCount());
 
-        return ResponseMessageUtils.buildChatResponse(answerQuestionAgent.getMessages()
-        , options, sources,chatResponse,keywords);
+        var response = ResponseMessageUtils.buildChatResponse(answerQuestionAgent.getMessages()
+        , options, answerQuestionAgent.getSources(),chatResponse,keywords, sourceSelection, answerQuestionAgent.getPromptBudget());
+        if (cacheLookup != null) cacheLookup.store(response, answerQuestionAgent.getSources());
+        timings.complete();
+        return withTimings(response, timings);
     }
 
 
 
-    public void runStreaming(
-            List<ChatMessage> conversationHistory,
-            RAGOptions options,
-            OutputStream outputStream) {
-
+    /**
+     * Non-blocking variant of {@link #run(List, RAGOptions)}. Keywords are extracted with the async OpenAI client,
+     * searches run on the bounded {@link RetrievalExecutor} and the answer tokens are pushed by the streaming model
+     * callback, so no thread is held while waiting on OpenAI.
+     * The logged user is resolved when this method is called, on the request thread holding the security context.
+     * The first frame carries the data points and search thoughts and is sent as soon as retrieval completes, before
+     * the model is called. The answer tokens follow as deltas, then a complete frame with the whole context.
+     * A semantic cache hit is replayed as a sources frame, a single delta with the whole answer and a complete frame.
+     * In slim response mode the frames share one thoughts id, see {@link ThoughtsStore}.
+     * @param onFirstToken called when the first answer token generated for this request is sent. It is not called
+     * when the answer is replayed from the semantic cache or shared with an identical stream in flight.
+     */
+    public Flux<ChatAppResponse> runStreaming(List<ChatMessage> conversationHistory, RAGOptions options, Runnable onFirstToken) {
         String userId = this.loggedUserService.getLoggedUser().entraId();
+        var frames = chatRequestCoalescer.runStreaming(conversationHistory, options, userId, () -> runStreamingPipeline(
+                conversationSummarizer.compact(conversationHistory, options.getThreadId(), userId), options, userId,
+                onFirstToken));
+        if (!thoughtsStore.isEnabled()) return frames;
+        return Flux.defer(() -> {
+            String thoughtsId = thoughtsStore.newId();
+            return frames.map(frame -> thoughtsStore.slim(frame, thoughtsId, userId));
+        });
+    }
 
-        // STEP 1: Extract keywords from the chat history to use for retrieval.
-        var extractKeywordsAssistant = new ExtractKeywordsAgent(this.chatModel, conversationHistory);
-        var keywords = extractKeywordsAssistant.extractKeywords();
-        LOGGER.info("Extracted keywords for retrieval: {}", keywords);
+    /**
+     * @return the thoughts of a slim response, serialized as a context, or null if they are gone or belong to
+     * another user
+     */
+    public byte[] getThoughts(String thoughtsId) {
+        return thoughtsStore.get(thoughtsId, this.loggedUserService.getLoggedUser().entraId());
+    }
 
-        // STEP 2: Retrieve relevant documents using keywords extracted from the chat history.
-        ContentRetriever contentRetriever = buildContentRetriever(options, userId);
-        var sources = contentRetriever.retrieve(Query.from(keywords));
-        LOGGER.info("Total {} sources retrieved", sources.size());
+    private Flux<ChatAppResponse> runStreamingPipeline(
+            List<ChatMessage> conversationHistory, RAGOptions options, String userId, Runnable onFirstToken) {
+        // STEP 1 and 2: Extract keywords from the chat history and retrieve relevant documents.
+        var timings = chatMetrics.start();
+        if (semanticAnswerCache.isCacheable(conversationHistory)) {
+            var scope = SemanticAnswerCache.Scope.of(options, userId);
+            var queryRewriter = queryRewriterPolicy.select(conversationHistory);
+            // The lookup embeds the keywords with a blocking call, hence the retrieval executor
+            return timings.time(ChatMetrics.Stage.KEYWORDS, queryRewriter.rewriteAsync(conversationHistory),
+                            Langchain4JChatFlow::describeKeywords)
+                    .doOnNext(keywords -> LOGGER.info("Extracted keywords for retrieval with {} rewriter: {}", queryRewriter.name(), keywords))
+                    .flatMap(keywords -> retrievalExecutor.mono(() -> semanticAnswerCache.lookup(keywords, scope)))
+                    .doFinally(this::recordRetrievalAbort)
+                    .flatMapMany(cacheLookup -> {
+                        if (cacheLookup.isHit()) {
+                            timings.complete();
+                            return Flux.fromIterable(cacheLookup.responseFrames(options.getThreadId()));
+                        }
+                        return timings.time(ChatMetrics.Stage.RETRIEVAL, retrievalExecutor.mono(
+                                        () -> retrieveSources(cacheLookup.query(), conversationHistory, options, userId)),
+                                        Langchain4JChatFlow::describeRetrieval)
+                                .doFinally(this::recordRetrievalAbort)
+                                .flatMapMany(retrieval -> answerStream(
+                                        conversationHistory, options, retrieval, cacheLookup, timings, onFirstToken));
+                    });
+        }
+
+        return retrieveSourcesAsync(conversationHistory, options, userId, timings)
+                .doFinally(this::recordRetrievalAbort)
+                .flatMapMany(retrieval -> answerStream(conversationHistory, options, retrieval, null, timings, onFirstToken));
+    }
+
+    /**
+     * @param cacheLookup the semantic cache miss to store the answer into, null if the answer is not cacheable
+     */
+    private Flux<ChatAppResponse> answerStream(
+            List<ChatMessage> conversationHistory,
+            RAGOptions options,
+            SpeculativeRetriever.Result retrieval,
+            SemanticAnswerCache.Lookup cacheLookup,
+            ChatMetrics.Timings timings,
+            Runnable onFirstToken) {
+        var keywords = retrieval.query();
+        var sourceSelection = sourceCutoff.apply(retrieval.sources(), options);
+        var sources = sourceSelection.sources();
 
         // STEP 3: Generate a contextual and content specific answer using the search results and chat history
         UserMessage userQuestion = (UserMessage)conversationHistory.get(conversationHistory.size() - 1);
-        conversationHistory.remove(conversationHistory.size() - 1);
+        var previousConversation = conversationHistory.subList(0, conversationHistory.size() - 1);
 
         var answerQuestionAgent = new AnswerQuestionAgent(
-                conversationHistory,
+                previousConversation,
                 sources,
                 options.getPromptTemplate(),
-                options.isSuggestFollowupQuestions(),
+                options.isSuggestFollowupQuestions() && !followUpQuestionsAgent.isEnabled(),
                 this.chatModel,
-                this.streamingChatModel
+                this.streamingChatModel,
+                this.promptBudgeter,
+                timings.requestId()
         );
 
-        var streamingResponseHandler = new StreamingChatResponseHandler() {
-            private int index = 0;
-            @Override
-            public void onPartialResponse(String partialResponse) {
-
-                ChatAppResponse chatAppResponse;
-                if (index == 0)
-                  chatAppResponse = ResponseMessageUtils.buildDelta0(options, sources, partialResponse);
-                 else
-                  chatAppResponse = ResponseMessageUtils.buildDelta(partialResponse);
-
-                 index++;
-
-                try {
-                    String value = objectMapper.writeValueAsString(chatAppResponse) + "\n";
-                    outputStream.write(value.getBytes());
-                    outputStream.flush();
-                } catch (Exception e) {
-                    LOGGER.warn("Error while trying to send delta chat response to the stream",e);
+        // The streaming model pushes tokens from the OpenAI client threads: the sink buffers them until
+        // the HTTP response is ready to write more. When the client goes away Spring MVC cancels the sink, and the
+        // next token throws so that the OpenAI client cancels the completion instead of paying for the rest of it.
+        return Flux.create(sink -> {
+            var deltas = deltaCoalescer.open(sink, timings.requestId(), onFirstToken);
+            long generationStart = System.nanoTime();
+            var streamingResponseHandler = new StreamingChatResponseHandler() {
+                private volatile int index = 0;
+                private volatile boolean cancelled;
+                private volatile Disposable followUps;
+
+                @Override
+                public void onPartialResponse(String partialResponse) {
+                    if (cancelled) throw new CancellationException("Chat client disconnected");
+                    // The first token is never delayed, so that coalescing doesn't add to the time to first token
+                    if (index++ == 0) {
+                        timings.record(ChatMetrics.Stage.FIRST_TOKEN, timings.sinceStart());
+                        deltas.send(ResponseMessageUtils.buildDelta(partialResponse));
+                    } else
+                        deltas.append(partialResponse);
                 }
-            }
 
-            @Override
-            public void onCompleteResponse(ChatResponse chatResponse) {
-               var chatAppResponse = ResponseMessageUtils.buildDeltaComplete(answerQuestionAgent.getMessages()
-                        , options, sources,chatResponse,keywords);
-
-                try {
-                    String value = objectMapper.writeValueAsString(chatAppResponse) + "\n";
-                    outputStream.write(value.getBytes());
-                    outputStream.flush();
-                } catch (IOException e) {
-                    LOGGER.warn("Error while trying to send last chat response to the stream",e);
+                @Override
+                public void onCompleteResponse(ChatResponse chatResponse) {
+                    recordGeneration(timings, answerQuestionAgent, generationStart, chatResponse);
+                    timings.complete();
+                    deltas.send(withTimings(ResponseMessageUtils.buildDeltaComplete(answerQuestionAgent.getMessages()
+                            , options, answerQuestionAgent.getSources(), chatResponse, keywords,
+                            sourceSelection, answerQuestionAgent.getPromptBudget()), timings));
+                    if (!hasSeparateFollowUps(options)) {
+                        complete(chatResponse, null);
+                        return;
+                    }
+
+                    // The answer is complete for the client already, the questions come in a frame of their own
+                    followUps = timings.time(ChatMetrics.Stage.FOLLOW_UPS, followUpQuestionsAgent.generateAsync(
+                                    followUpConversation(answerQuestionAgent, userQuestion), chatResponse.aiMessage().text()))
+                            .onErrorResume(e -> {
+                                LOGGER.warn("Follow-up questions generation failed, answering without them", e);
+                                return Mono.just(List.of());
+                            })
+                            .subscribe(followUpQuestions -> {
+                                deltas.send(ResponseMessageUtils.buildFollowUpQuestions(followUpQuestions, options));
+                                complete(chatResponse, followUpQuestions);
+                            });
                 }
-            }
 
-            @Override
-            public void onError(Throwable error) {
-                // Implement error handling here
-                throw new RuntimeException("Error during streaming response", error);
-            }
+                /**
+                 * @param followUpQuestions the questions generated by the follow-up call, null without it
+                 */
+                private void complete(ChatResponse chatResponse, List<String> followUpQuestions) {
+                    deltas.close();
+                    if (cacheLookup != null) {
+                        var response = ResponseMessageUtils.buildChatResponse(answerQuestionAgent.getMessages(),
+                                options, answerQuestionAgent.getSources(), chatResponse, keywords,
+                                sourceSelection, answerQuestionAgent.getPromptBudget());
+                        if (followUpQuestions != null) {
+                            response = ResponseMessageUtils.withFollowUpQuestions(response, followUpQuestions);
+                        }
+                        cacheLookup.store(response, answerQuestionAgent.getSources());
+                    }
+                    sink.complete();
+                }
 
-        };
+                @Override
+                public void onError(Throwable error) {
+                    if (cancelled) return;
+                    deltas.flush();
+                    sink.error(new RuntimeException("Error during streaming response", error));
+                }
+            };
+
+            sink.onCancel(() -> {
+                streamingResponseHandler.cancelled = true;
+                if (streamingResponseHandler.followUps != null) streamingResponseHandler.followUps.dispose();
+                int streamedTokens = streamingResponseHandler.index;
+                chatMetrics.recordAborted(ChatMetrics.Stage.GENERATION, streamedTokens);
+                LOGGER.info("Chat client disconnected after {} streamed tokens, cancelling the answer", streamedTokens);
+            });
+
+            // The sources go out before the model is called, so the client shows them during queueing and prefill
+            answerQuestionAgent.preparePrompt(userQuestion.singleText());
+            deltas.send(ResponseMessageUtils.buildRetrievalComplete(
+                    options, answerQuestionAgent.getSources(), keywords, sourceSelection));
+
+            answerQuestionAgent.answerQuestionStream(userQuestion.singleText(), options, streamingResponseHandler);
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
 
-        answerQuestionAgent.answerQuestionStream(userQuestion.singleText(), options, streamingResponseHandler);
-        }
 
+    /**
+     * @return true if the follow-up questions are asked for and generated by a call of their own
+     */
+    private boolean hasSeparateFollowUps(RAGOptions options) {
+        return options.isSuggestFollowupQuestions() && followUpQuestionsAgent.isEnabled();
+    }
 
-    private ContentRetriever buildContentRetriever(RAGOptions options, String userId) {
-        AzureAiSearchQueryType queryType;
-
-        switch (options.getRetrievalMode())
-        {
-            case text:
-                queryType = AzureAiSearchQueryType.FULL_TEXT;
-                break;
-            case hybrid:
-                if(options.isSemanticRanker())
-                    queryType = AzureAiSearchQueryType.HYBRID_WITH_RERANKING;
-                else
-                    queryType = AzureAiSearchQueryType.HYBRID;
-                break;
-            case vectors:
-                queryType = AzureAiSearchQueryType.VECTOR;
-                break;
-            default:
-                throw new IllegalArgumentException("Unsupported retrieval mode: " + options.getRetrievalMode());
-        }
+    /**
+     * @return the conversation the follow-up questions are generated from: the history that fit into the answer
+     * prompt, and the question
+     */
+    private static List<ChatMessage> followUpConversation(AnswerQuestionAgent answerQuestionAgent, UserMessage userQuestion) {
+        List<ChatMessage> conversation = new ArrayList<>(answerQuestionAgent.getPromptBudget().history());
+        conversation.add(userQuestion);
+        return conversation;
+    }
 
-        String endpoint = "https://%s.search.windows.net".formatted(searchServiceName);
-
-       var builder =  AzureAiSearchContentRetriever.builder()
-               .endpoint(endpoint)
-               .indexName(this.indexName)
-               .tokenCredential(this.tokenCredential)
-               .embeddingModel(this.embeddingModel)
-               .maxResults(options.getTop())
-               .minScore(options.getMinimumSearchScore())
-               .queryType(queryType)
-               .dimensions(this.dimensions)
-               .createOrUpdateIndex(false);
-
-       if ((userId == null || userId.isEmpty()) &&
-            (options.getExcludeCategory() == null || options.getExcludeCategory().isEmpty())) {
-            return builder.build();
-        }
+    /**
+     * Records the streamed requests whose client went away before their sources were retrieved.
+     */
+    private void recordRetrievalAbort(SignalType signal) {
+        if (signal != SignalType.CANCEL) return;
+        chatMetrics.recordAborted(ChatMetrics.Stage.RETRIEVAL, 0);
+        LOGGER.info("Chat client disconnected, cancelling the retrieval");
+    }
 
-        if ((userId == null || userId.isEmpty()) &&
-                (options.getExcludeCategory() != null && !options.getExcludeCategory().isEmpty())) {
-            builder.filter(metadataKey("category").isNotEqualTo(options.getExcludeCategory()));
-            return builder.build();
-        }
+    /**
+     * Records the prompt build and generation stages, the latter excluding the former, and the answer tokens.
+     */
+    private void recordGeneration(
+            ChatMetrics.Timings timings, AnswerQuestionAgent answerQuestionAgent, long generationStart, ChatResponse chatResponse) {
+        long promptBuildNanos = answerQuestionAgent.getPromptBuildNanos();
+        timings.record(ChatMetrics.Stage.PROMPT, promptBuildNanos);
+        timings.record(ChatMetrics.Stage.GENERATION, System.nanoTime() - generationStart - promptBuildNanos);
+        chatMetrics.recordTokens(chatResponse);
+    }
 
-        if(enableGlobalDocumentAccess &&
-                (userId != null && !userId.isEmpty()) &&
-                (options.getExcludeCategory() == null || options.getExcludeCategory().isEmpty())) {
-            // If global access is enabled, we can retrieve documents in default user folder
-            builder.filter(
-                     metadataKey("oid").isEqualTo(userId)
-                    .or(metadataKey("oid").isEqualTo("default")));
-            return builder.build();
-        }
+    /**
+     * @return the response with the Timings thought when app.metrics.timingsThought is set, the response otherwise
+     */
+    private ChatAppResponse withTimings(ChatAppResponse response, ChatMetrics.Timings timings) {
+        if (!chatMetrics.isTimingsThoughtEnabled()) return response;
+        return ResponseMessageUtils.withThought(response, ResponseMessageUtils.buildTimingsThought(timings.toMap()));
+    }
 
-        if(enableGlobalDocumentAccess &&
-                (userId != null && !userId.isEmpty()) &&
-                (options.getExcludeCategory() != null && !options.getExcludeCategory().isEmpty())) {
-            // If global access is enabled, we can retrieve documents in default user folder
-            builder.filter(
-                    metadataKey("category").isNotEqualTo(options.getExcludeCategory()).and(
-                    metadataKey("oid").isEqualTo(userId)
-                    .or(metadataKey("oid").isEqualTo("default"))));
-            return builder.build();
+    /**
+     * Extracts the search keywords from the chat history and retrieves the sources with them.
+     * The keywords are generated by the query rewriter selected by {@link QueryRewriterPolicy}.
+     * When speculative retrieval is enabled, retrieval on the raw last question runs while keywords are extracted.
+     */
+    private SpeculativeRetriever.Result retrieveSources(
+            List<ChatMessage> conversationHistory, RAGOptions options, String userId, ChatMetrics.Timings timings) {
+        ContentRetriever contentRetriever = contentRetriever(options, userId);
+        var queryRewriter = queryRewriterPolicy.select(conversationHistory);
+
+        boolean singleTurn = conversationHistory.stream().filter(UserMessage.class::isInstance).count() == 1;
+        SpeculativeRetriever.Result result;
+        // Speculation only pays off when the rewrite needs a round trip to the LLM
+        if (queryRewriter instanceof LlmQueryRewriter && speculativeRetriever.shouldSpeculate(singleTurn)) {
+            UserMessage lastQuestion = (UserMessage) conversationHistory.get(conversationHistory.size() - 1);
+            result = timings.time(ChatMetrics.Stage.RETRIEVAL, () -> speculativeRetriever.retrieve(
+                    lastQuestion.singleText(),
+                    () -> timings.time(ChatMetrics.Stage.KEYWORDS, () -> queryRewriter.rewrite(conversationHistory),
+                            Langchain4JChatFlow::describeKeywords),
+                    contentRetriever), Langchain4JChatFlow::describeRetrieval);
+        } else {
+            var keywords = timings.time(ChatMetrics.Stage.KEYWORDS, () -> queryRewriter.rewrite(conversationHistory),
+                    Langchain4JChatFlow::describeKeywords);
+            result = timings.time(ChatMetrics.Stage.RETRIEVAL, () -> new SpeculativeRetriever.Result(
+                    keywords, contentRetriever.retrieve(searchQuery(keywords, conversationHistory)), false),
+                    Langchain4JChatFlow::describeRetrieval);
         }
 
-        if ((userId != null && !userId.isEmpty()) &&
-                (options.getExcludeCategory() != null && !options.getExcludeCategory().isEmpty())) {
-            builder.filter(metadataKey("category").isNotEqualTo(options.getExcludeCategory()).and(
-                           metadataKey("oid").isEqualTo(userId)));
-            return builder.build();
-        }
+        LOGGER.info("Extracted keywords for retrieval with {} rewriter: {}", queryRewriter.name(), result.query());
+        LOGGER.info("Total {} sources retrieved", result.sources().size());
+        return result;
+    }
+
+    /**
+     * @return the retriever of the user, reusing the sources of the previous turn when the {@link SessionRetrievalMemory}
+     * is enabled
+     */
+    private ContentRetriever contentRetriever(RAGOptions options, String userId) {
+        return sessionRetrievalMemory.decorate(contentRetrieverCache.get(options, userId), options, userId);
+    }
+
+    private String rewriteQuery(List<ChatMessage> conversationHistory) {
+        var queryRewriter = queryRewriterPolicy.select(conversationHistory);
+        var keywords = queryRewriter.rewrite(conversationHistory);
+        LOGGER.info("Extracted keywords for retrieval with {} rewriter: {}", queryRewriter.name(), keywords);
+        return keywords;
+    }
+
+    /**
+     * Retrieves the sources with keywords already extracted.
+     */
+    private SpeculativeRetriever.Result retrieveSources(
+            String keywords, List<ChatMessage> conversationHistory, RAGOptions options, String userId) {
+        ContentRetriever contentRetriever = contentRetriever(options, userId);
+        var sources = contentRetriever.retrieve(searchQuery(keywords, conversationHistory));
+        LOGGER.info("Total {} sources retrieved", sources.size());
+        return new SpeculativeRetriever.Result(keywords, sources, false);
+    }
 
-        if ((userId != null && !userId.isEmpty()) &&
-                (options.getExcludeCategory() == null || options.getExcludeCategory().isEmpty())) {
-            builder.filter(metadataKey("oid").isEqualTo(userId));
-            return builder.build();
+    /**
+     * Non-blocking variant of {@link #retrieveSources(List, RAGOptions, String, ChatMetrics.Timings)}.
+     */
+    private Mono<SpeculativeRetriever.Result> retrieveSourcesAsync(
+            List<ChatMessage> conversationHistory, RAGOptions options, String userId, ChatMetrics.Timings timings) {
+        ContentRetriever contentRetriever = contentRetriever(options, userId);
+        var queryRewriter = queryRewriterPolicy.select(conversationHistory);
+
+        boolean singleTurn = conversationHistory.stream().filter(UserMessage.class::isInstance).count() == 1;
+        Mono<SpeculativeRetriever.Result> result;
+        if (queryRewriter instanceof LlmQueryRewriter && speculativeRetriever.shouldSpeculate(singleTurn)) {
+            UserMessage lastQuestion = (UserMessage) conversationHistory.get(conversationHistory.size() - 1);
+            result = timings.time(ChatMetrics.Stage.RETRIEVAL, speculativeRetriever.retrieveAsync(
+                    lastQuestion.singleText(),
+                    timings.time(ChatMetrics.Stage.KEYWORDS, queryRewriter.rewriteAsync(conversationHistory),
+                            Langchain4JChatFlow::describeKeywords),
+                    contentRetriever), Langchain4JChatFlow::describeRetrieval);
+        } else {
+            result = timings.time(ChatMetrics.Stage.KEYWORDS, queryRewriter.rewriteAsync(conversationHistory),
+                            Langchain4JChatFlow::describeKeywords)
+                    .flatMap(keywords -> timings.time(ChatMetrics.Stage.RETRIEVAL, retrievalExecutor.mono(
+                            () -> new SpeculativeRetriever.Result(
+                                    keywords, contentRetriever.retrieve(searchQuery(keywords, conversationHistory)), false)),
+                            Langchain4JChatFlow::describeRetrieval));
         }
 
+        return result.doOnNext(retrieval -> {
+            LOGGER.info("Extracted keywords for retrieval with {} rewriter: {}", queryRewriter.name(), retrieval.query());
+            LOGGER.info("Total {} sources retrieved", retrieval.sources().size());
+        });
+    }
+
+    private static void describeKeywords(ChatStageEvent event, String keywords) {
+        event.chars = keywords.length();
+    }
 
+    private static void describeRetrieval(ChatStageEvent event, SpeculativeRetriever.Result retrieval) {
+        event.sources = retrieval.sources().size();
+        event.chars = retrieval.sources().stream().mapToLong(source -> source.textSegment().text().length()).sum();
+    }
 
-        return builder.build();
+    /**
+     * @return the search query, carrying the last user question for the multi-query retrieval strategy
+     */
+    private static Query searchQuery(String keywords, List<ChatMessage> conversationHistory) {
+        var lastQuestion = conversationHistory.get(conversationHistory.size() - 1);
+        return Query.from(keywords, Metadata.from(lastQuestion, null, conversationHistory));
     }
 }
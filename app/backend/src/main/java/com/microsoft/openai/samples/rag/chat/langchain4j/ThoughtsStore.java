@@ -0,0 +1,155 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import com.microsoft.openai.samples.rag.model.ResponseContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Slim response mode, enabled with app.slimResponses.enabled. The thoughts carry the source text twice more than the
+ * data points, in the search results and in the whole grounded prompt, so slim responses carry a thoughts_id instead
+ * and the thoughts are kept here, fetched through /api/chat/thoughts/{id} when the user opens the thought process.
+ * This shrinks the payload, its serialization and the chat history documents.
+ * The thoughts are kept serialized, bounded by app.slimResponses.maxBytes with LRU eviction, and expire after
+ * app.slimResponses.ttl. Only the user the response was built for can fetch them. Fetches are published as
+ * rag.thoughts.requests, tagged hit or miss.
+ */
+@Component
+public class ThoughtsStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThoughtsStore.class);
+    // Approximate per entry overhead: map node, key, user id and entry object
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private record Entry(String userId, byte[] json, long expiresAt) {}
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private final Counter hits;
+    private final Counter misses;
+
+    public ThoughtsStore(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${app.slimResponses.enabled:false}") boolean enabled,
+            @Value("${app.slimResponses.maxBytes:67108864}") long maxBytes,
+            @Value("${app.slimResponses.ttl:PT1H}") Duration ttl) {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+        this.hits = meterRegistry.counter("rag.thoughts.requests", "result", "hit");
+        this.misses = meterRegistry.counter("rag.thoughts.requests", "result", "miss");
+        meterRegistry.gauge("rag.thoughts.size", this, store -> store.size());
+        meterRegistry.gauge("rag.thoughts.bytes", this, store -> store.bytes());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a new id for the thoughts of a response, shared by the frames of a streamed one
+     */
+    public String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Moves the thoughts of the response into the store. Frames of a streamed response share the thoughts id, the
+     * thoughts of the last one replace those of the previous ones, as the client merges them.
+     *
+     * @return the response with the thoughts id in place of its thoughts, or the response itself if it has none
+     */
+    public ChatAppResponse slim(ChatAppResponse response, String thoughtsId, String userId) {
+        ResponseContext context = response.context();
+        if (context == null || context.thoughts() == null) return response;
+
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(new ResponseContext(null, context.thoughts(), null));
+            if (!put(thoughtsId, userId, json)) return response;
+        } catch (JsonProcessingException e) {
+            LOGGER.warn("Failed to serialize the thoughts, returning them with the response", e);
+            return response;
+        }
+        ResponseContext slimContext = new ResponseContext(
+                context.data_points(), null, context.followup_questions(), thoughtsId);
+        return new ChatAppResponse(response.message(), slimContext,
+                response.delta(), response.followupQuestions(), response.threadId());
+    }
+
+    /**
+     * @return the thoughts serialized as a context, or null if they expired, were evicted or belong to another user
+     */
+    public byte[] get(String thoughtsId, String userId) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(thoughtsId);
+            if (entry != null && System.nanoTime() - entry.expiresAt() > 0) {
+                remove(thoughtsId);
+                entry = null;
+            }
+        }
+        if (entry == null || !entry.userId().equals(userId)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.json();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long bytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return false if the thoughts alone are larger than the store
+     */
+    private boolean put(String thoughtsId, String userId, byte[] json) {
+        long entryBytes = json.length + ENTRY_OVERHEAD_BYTES;
+        if (entryBytes > maxBytes) return false;
+
+        synchronized (entries) {
+            remove(thoughtsId);
+            entries.put(thoughtsId, new Entry(userId, json, System.nanoTime() + ttlNanos));
+            bytes += entryBytes;
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().json().length + ENTRY_OVERHEAD_BYTES;
+                eldest.remove();
+            }
+        }
+        return true;
+    }
+
+    private void remove(String thoughtsId) {
+        Entry previous = entries.remove(thoughtsId);
+        if (previous != null) bytes -= previous.json().length + ENTRY_OVERHEAD_BYTES;
+    }
+}
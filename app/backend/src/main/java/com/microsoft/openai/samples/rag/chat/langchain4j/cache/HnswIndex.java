@@ -0,0 +1,217 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Minimal in-memory HNSW (Hierarchical Navigable Small World) graph for approximate nearest neighbour search by
+ * cosine similarity. Vectors must be normalized, so that the similarity is their dot product.
+ * Removed nodes are only flagged: they keep routing searches but are never returned. The owner is expected to
+ * rebuild the index when {@link #deleted()} grows larger than {@link #size()}.
+ * Not thread safe.
+ */
+final class HnswIndex {
+
+    record Match(int id, float similarity) {}
+
+    private static final Comparator<Match> MOST_SIMILAR_FIRST =
+            Comparator.comparingDouble(Match::similarity).reversed();
+    private static final Comparator<Match> LEAST_SIMILAR_FIRST = Comparator.comparingDouble(Match::similarity);
+
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    private final List<float[]> vectors = new ArrayList<>();
+    // links.get(node)[level] holds linkCounts.get(node)[level] neighbour ids
+    private final List<int[][]> links = new ArrayList<>();
+    private final List<int[]> linkCounts = new ArrayList<>();
+    private final BitSet removed = new BitSet();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    /**
+     * @param m neighbours per node on the upper levels, twice as many are kept on the ground level
+     * @param efConstruction candidate list size when linking a new node
+     * @param efSearch candidate list size when searching
+     */
+    HnswIndex(int m, int efConstruction, int efSearch) {
+        this.m = Math.max(2, m);
+        this.maxM0 = 2 * this.m;
+        this.efConstruction = Math.max(efConstruction, this.m);
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(this.m);
+    }
+
+    /**
+     * @return the id of the new node, ids are assigned sequentially from 0
+     */
+    int add(float[] vector) {
+        int id = vectors.size();
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        vectors.add(vector);
+        int[][] nodeLinks = new int[level + 1][];
+        for (int l = 0; l <= level; l++) nodeLinks[l] = new int[(l == 0 ? maxM0 : m) + 1];
+        links.add(nodeLinks);
+        linkCounts.add(new int[level + 1]);
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return id;
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) current = greedyClosest(vector, current, l);
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Match> candidates = searchLevel(vector, current, efConstruction, l);
+            int maxLinks = l == 0 ? maxM0 : m;
+            for (int i = 0; i < Math.min(m, candidates.size()); i++) {
+                int neighbour = candidates.get(i).id();
+                link(id, neighbour, l, maxLinks);
+                link(neighbour, id, l, maxLinks);
+            }
+            current = candidates.get(0).id();
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = id;
+        }
+        return id;
+    }
+
+    void remove(int id) {
+        removed.set(id);
+    }
+
+    /**
+     * @return up to k live nodes, most similar first
+     */
+    List<Match> search(float[] query, int k) {
+        if (entryPoint < 0) return List.of();
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) current = greedyClosest(query, current, l);
+        return searchLevel(query, current, Math.max(efSearch, k), 0).stream()
+                .filter(match -> !removed.get(match.id()))
+                .limit(k)
+                .toList();
+    }
+
+    float[] vector(int id) {
+        return vectors.get(id);
+    }
+
+    boolean isRemoved(int id) {
+        return removed.get(id);
+    }
+
+    /**
+     * @return the number of live nodes
+     */
+    int size() {
+        return vectors.size() - removed.cardinality();
+    }
+
+    int deleted() {
+        return removed.cardinality();
+    }
+
+    static float similarity(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++) dot += a[i] * b[i];
+        return dot;
+    }
+
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float best = similarity(query, vectors.get(current));
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbours = links.get(current)[level];
+            int count = linkCounts.get(current)[level];
+            for (int i = 0; i < count; i++) {
+                float similarity = similarity(query, vectors.get(neighbours[i]));
+                if (similarity > best) {
+                    best = similarity;
+                    current = neighbours[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search on one level, removed nodes included since they still connect the graph.
+     * @return the ef closest nodes found, most similar first
+     */
+    private List<Match> searchLevel(float[] query, int start, int ef, int level) {
+        BitSet visited = new BitSet(vectors.size());
+        visited.set(start);
+        var first = new Match(start, similarity(query, vectors.get(start)));
+        PriorityQueue<Match> candidates = new PriorityQueue<>(MOST_SIMILAR_FIRST);
+        PriorityQueue<Match> results = new PriorityQueue<>(LEAST_SIMILAR_FIRST);
+        candidates.add(first);
+        results.add(first);
+
+        while (!candidates.isEmpty()) {
+            Match candidate = candidates.poll();
+            if (results.size() >= ef && candidate.similarity() < results.peek().similarity()) break;
+
+            int[][] nodeLinks = links.get(candidate.id());
+            if (level >= nodeLinks.length) continue;
+            int[] neighbours = nodeLinks[level];
+            int count = linkCounts.get(candidate.id())[level];
+            for (int i = 0; i < count; i++) {
+                int neighbour = neighbours[i];
+                if (visited.get(neighbour)) continue;
+                visited.set(neighbour);
+
+                var match = new Match(neighbour, similarity(query, vectors.get(neighbour)));
+                if (results.size() < ef || match.similarity() > results.peek().similarity()) {
+                    candidates.add(match);
+                    results.add(match);
+                    if (results.size() > ef) results.poll();
+                }
+            }
+        }
+
+        List<Match> sorted = new ArrayList<>(results);
+        sorted.sort(MOST_SIMILAR_FIRST);
+        return sorted;
+    }
+
+    /**
+     * Adds the link, dropping the least similar neighbour when the node has too many.
+     */
+    private void link(int from, int to, int level, int maxLinks) {
+        int[] neighbours = links.get(from)[level];
+        int[] counts = linkCounts.get(from);
+        neighbours[counts[level]++] = to;
+        if (counts[level] <= maxLinks) return;
+
+        float[] vector = vectors.get(from);
+        int worst = 0;
+        float worstSimilarity = Float.MAX_VALUE;
+        for (int i = 0; i < counts[level]; i++) {
+            float similarity = similarity(vector, vectors.get(neighbours[i]));
+            if (similarity < worstSimilarity) {
+                worstSimilarity = similarity;
+                worst = i;
+            }
+        }
+        neighbours[worst] = neighbours[--counts[level]];
+    }
+}
@@ -0,0 +1,404 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.approaches.RetrievalMode;
+import com.microsoft.openai.samples.rag.common.ResponseMessageUtils;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import com.microsoft.openai.samples.rag.model.ResponseThought;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Opt-in cache of the chat answers, looked up by meaning rather than by text: the rewritten search query is
+ * embedded and searched in an in-process HNSW index of the previous queries. A previous answer is reused when its
+ * query similarity is at least app.semanticCache.threshold and it was produced for the same {@link Scope}, i.e.
+ * the same user (oid), excluded category and answer options. Each scope has its own index, so an answer can never
+ * leak across security filters.
+ * Only single-turn conversations are cached, since follow-up answers depend on the chat history.
+ * The cache is bounded by app.semanticCache.maxBytes with LRU eviction and entries expire after
+ * app.semanticCache.ttl, which also bounds staleness for documents re-indexed outside of this app. Uploads and
+ * deletes through {@link com.microsoft.openai.samples.rag.content.IndexService} invalidate the affected entries.
+ * Lookups are published as rag.semantic.cache.requests, tagged hit or miss, the overall ratio as
+ * rag.semantic.cache.hit.ratio and the retrieval and answer time skipped by each hit as
+ * rag.semantic.cache.latency.saved.
+ */
+@Component
+public class SemanticAnswerCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SemanticAnswerCache.class);
+    // Approximate per entry overhead: graph links, entry and map nodes
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+    // Candidates fetched from the index, so that expired entries don't hide a live match
+    private static final int SEARCH_CANDIDATES = 4;
+    // Below this many removed nodes a partition is not worth rebuilding
+    private static final int MIN_REBUILD_DELETED = 64;
+
+    /**
+     * Everything an answer depends on besides the question: the security filter and the answer options.
+     */
+    public record Scope(
+            String userId,
+            String excludeCategory,
+            RetrievalMode retrievalMode,
+            boolean semanticRanker,
+            boolean semanticCaptions,
+            Integer top,
+            float minimumSearchScore,
+            float minimumRerankerScore,
+            String promptTemplate,
+            boolean suggestFollowupQuestions,
+            double temperature) {
+
+        public static Scope of(RAGOptions options, String userId) {
+            return new Scope(
+                    userId,
+                    options.getExcludeCategory(),
+                    options.getRetrievalMode(),
+                    options.isSemanticRanker(),
+                    options.isSemanticCaptions(),
+                    options.getTop(),
+                    options.getMinimumSearchScore(),
+                    options.getMinimumRerankerScore(),
+                    options.getPromptTemplate(),
+                    options.isSuggestFollowupQuestions(),
+                    options.getTemperature());
+        }
+    }
+
+    private static final class Entry {
+        private final Partition partition;
+        private final String query;
+        private final ChatAppResponse response;
+        private final Set<String> fileNames;
+        private final long latencyNanos;
+        private final long expiresAt;
+        private final long bytes;
+        private int node;
+
+        private Entry(Partition partition, String query, ChatAppResponse response, Set<String> fileNames,
+                      long latencyNanos, long expiresAt, long bytes) {
+            this.partition = partition;
+            this.query = query;
+            this.response = response;
+            this.fileNames = fileNames;
+            this.latencyNanos = latencyNanos;
+            this.expiresAt = expiresAt;
+            this.bytes = bytes;
+        }
+    }
+
+    private final class Partition {
+        private final Scope scope;
+        private HnswIndex index = newIndex();
+        private Map<Integer, Entry> entries = new HashMap<>();
+
+        private Partition(Scope scope) {
+            this.scope = scope;
+        }
+    }
+
+    private final boolean enabled;
+    private final float threshold;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final EmbeddingModel embeddingModel;
+    private final ObjectMapper objectMapper;
+    private final Map<Scope, Partition> partitions = new HashMap<>();
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<Entry, Boolean> lru = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer latencySaved;
+
+    public SemanticAnswerCache(
+            EmbeddingModel embeddingModel,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${app.semanticCache.enabled:false}") boolean enabled,
+            @Value("${app.semanticCache.threshold:0.95}") float threshold,
+            @Value("${app.semanticCache.maxBytes:33554432}") long maxBytes,
+            @Value("${app.semanticCache.ttl:PT1H}") Duration ttl,
+            @Value("${app.semanticCache.hnsw.m:16}") int m,
+            @Value("${app.semanticCache.hnsw.efConstruction:100}") int efConstruction,
+            @Value("${app.semanticCache.hnsw.efSearch:50}") int efSearch) {
+        this.embeddingModel = embeddingModel;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl == null || ttl.isNegative() || ttl.isZero() ? 0 : ttl.toNanos();
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.hits = meterRegistry.counter("rag.semantic.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("rag.semantic.cache.requests", "result", "miss");
+        this.latencySaved = Timer.builder("rag.semantic.cache.latency.saved")
+                .description("Retrieval and answer time skipped by a semantic cache hit")
+                .register(meterRegistry);
+        meterRegistry.gauge("rag.semantic.cache.size", this, cache -> cache.size());
+        meterRegistry.gauge("rag.semantic.cache.bytes", this, cache -> cache.bytes());
+        meterRegistry.gauge("rag.semantic.cache.hit.ratio", this, cache -> cache.hitRatio());
+    }
+
+    /**
+     * @return true if the cache is enabled and the answer depends on the last question only
+     */
+    public boolean isCacheable(List<ChatMessage> conversationHistory) {
+        return enabled && conversationHistory.stream().filter(UserMessage.class::isInstance).count() == 1;
+    }
+
+    /**
+     * Embeds the query and looks up the closest previous query of the same scope. Blocking, the embedding is a
+     * call to OpenAI unless it's cached by the embedding model.
+     * @param query the rewritten search query
+     */
+    public Lookup lookup(String query, Scope scope) {
+        float[] vector = normalize(embeddingModel.embed(query).content().vector());
+        long now = System.nanoTime();
+
+        Entry hit = null;
+        float similarity = 0;
+        synchronized (this) {
+            Partition partition = partitions.get(scope);
+            if (partition != null) {
+                // Removing an entry can rebuild the partition index and renumber its nodes, so the expired
+                // matches are only removed once the matches of the current index are consumed
+                List<Entry> expired = new ArrayList<>();
+                for (HnswIndex.Match match : partition.index.search(vector, SEARCH_CANDIDATES)) {
+                    if (match.similarity() < threshold) break;
+                    Entry entry = partition.entries.get(match.id());
+                    if (entry.expiresAt != 0 && now - entry.expiresAt > 0) {
+                        expired.add(entry);
+                        continue;
+                    }
+                    lru.get(entry);
+                    hit = entry;
+                    similarity = match.similarity();
+                    break;
+                }
+                expired.forEach(this::remove);
+            }
+        }
+
+        if (hit == null) {
+            misses.increment();
+            return new Lookup(query, scope, vector, null, 0);
+        }
+        hits.increment();
+        latencySaved.record(Duration.ofNanos(hit.latencyNanos));
+        LOGGER.info("Semantic cache hit for query [{}] with cached query [{}], similarity {}", query, hit.query, similarity);
+        return new Lookup(query, scope, vector, hit, similarity);
+    }
+
+    /**
+     * Drops the entries of the given user, or all the entries if the user is not set, e.g. after a new document
+     * is indexed in their folder.
+     */
+    public void invalidateUser(String userId) {
+        int removed = removeIf(entry -> !StringUtils.hasText(userId) || userId.equals(entry.partition.scope.userId()));
+        LOGGER.info("Semantic cache invalidated {} entries for user [{}]", removed, userId);
+    }
+
+    /**
+     * Drops the entries of the given user, or of any user if not set, whose answer was grounded on the given file.
+     */
+    public void invalidateFile(String userId, String fileName) {
+        int removed = removeIf(entry -> entry.fileNames.contains(fileName)
+                && (!StringUtils.hasText(userId) || userId.equals(entry.partition.scope.userId())));
+        LOGGER.info("Semantic cache invalidated {} entries grounded on file [{}]", removed, fileName);
+    }
+
+    public synchronized void invalidateAll() {
+        partitions.clear();
+        lru.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return lru.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public double hitRatio() {
+        double requests = hits.count() + misses.count();
+        return requests == 0 ? 0 : hits.count() / requests;
+    }
+
+    /**
+     * Outcome of a lookup. On a miss it stores the answer computed for the query, without embedding it again.
+     */
+    public final class Lookup {
+
+        private final String query;
+        private final Scope scope;
+        private final float[] vector;
+        private final Entry hit;
+        private final float similarity;
+        private final long completedAt = System.nanoTime();
+
+        private Lookup(String query, Scope scope, float[] vector, Entry hit, float similarity) {
+            this.query = query;
+            this.scope = scope;
+            this.vector = vector;
+            this.hit = hit;
+            this.similarity = similarity;
+        }
+
+        public String query() {
+            return query;
+        }
+
+        public boolean isHit() {
+            return hit != null;
+        }
+
+        /**
+         * @return the cached answer for the given thread
+         */
+        public ChatAppResponse response(String threadId) {
+            return ResponseMessageUtils.buildCachedChatResponse(hit.response, threadId, cacheThought());
+        }
+
+        /**
+         * @return the cached answer for the given thread, as the frames of a streamed response
+         */
+        public List<ChatAppResponse> responseFrames(String threadId) {
+            return ResponseMessageUtils.buildCachedDeltas(hit.response, threadId, cacheThought());
+        }
+
+        /**
+         * Caches the answer computed after a miss. Its latency is measured from the end of the lookup, so it
+         * covers the retrieval and the answer generation that a later hit skips.
+         * @param sources the sources the answer was grounded on, for the invalidation by file
+         */
+        public void store(ChatAppResponse response, List<Content> sources) {
+            if (hit != null) return;
+            long latencyNanos = System.nanoTime() - completedAt;
+            put(this, response, sources, latencyNanos);
+        }
+
+        private ResponseThought cacheThought() {
+            return ResponseMessageUtils.buildSemanticCacheThought(
+                    query, hit.query, similarity, Duration.ofNanos(hit.latencyNanos));
+        }
+    }
+
+    private void put(Lookup lookup, ChatAppResponse response, List<Content> sources, long latencyNanos) {
+        long entryBytes;
+        try {
+            entryBytes = objectMapper.writeValueAsBytes(response).length
+                    + (long) lookup.vector.length * Float.BYTES + ENTRY_OVERHEAD_BYTES;
+        } catch (JsonProcessingException e) {
+            LOGGER.warn("Cannot estimate the size of the answer to cache for query [{}]", lookup.query, e);
+            return;
+        }
+        if (entryBytes > maxBytes) return;
+
+        Set<String> fileNames = sources.stream()
+                .map(source -> source.textSegment().metadata().getString("file_name"))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toUnmodifiableSet());
+        long expiresAt = ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos;
+
+        synchronized (this) {
+            Partition partition = partitions.computeIfAbsent(lookup.scope, Partition::new);
+            var entry = new Entry(partition, lookup.query, response, fileNames, latencyNanos, expiresAt, entryBytes);
+            entry.node = partition.index.add(lookup.vector);
+            partition.entries.put(entry.node, entry);
+            lru.put(entry, Boolean.TRUE);
+            bytes += entryBytes;
+
+            Iterator<Entry> eldest = lru.keySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                detach(evicted);
+            }
+        }
+    }
+
+    private synchronized int removeIf(Predicate<Entry> predicate) {
+        List<Entry> removed = new ArrayList<>();
+        for (Entry entry : lru.keySet()) {
+            if (predicate.test(entry)) removed.add(entry);
+        }
+        removed.forEach(this::remove);
+        return removed.size();
+    }
+
+    private void remove(Entry entry) {
+        if (lru.remove(entry) != null) detach(entry);
+    }
+
+    /**
+     * Removes an entry already out of the LRU map from its partition, rebuilding the partition index once most
+     * of its nodes are removed ones.
+     */
+    private void detach(Entry entry) {
+        bytes -= entry.bytes;
+        Partition partition = entry.partition;
+        partition.entries.remove(entry.node);
+        partition.index.remove(entry.node);
+
+        if (partition.entries.isEmpty()) {
+            partitions.remove(partition.scope);
+        } else if (partition.index.deleted() >= MIN_REBUILD_DELETED
+                && partition.index.deleted() > partition.index.size()) {
+            HnswIndex index = newIndex();
+            Map<Integer, Entry> entries = new HashMap<>();
+            for (Entry live : partition.entries.values()) {
+                live.node = index.add(partition.index.vector(live.node));
+                entries.put(live.node, live);
+            }
+            partition.index = index;
+            partition.entries = entries;
+        }
+    }
+
+    private HnswIndex newIndex() {
+        return new HnswIndex(m, efConstruction, efSearch);
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) norm += value * value;
+        norm = Math.sqrt(norm);
+        if (norm == 0) return vector;
+
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) normalized[i] = (float) (vector[i] / norm);
+        return normalized;
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.conversation;
+
+import dev.langchain4j.data.message.ChatMessage;
+
+import java.util.List;
+
+/**
+ * Persistent source of the conversations the {@link ConversationStore} no longer holds, e.g. evicted ones or those
+ * started on another instance.
+ */
+public interface ConversationBackingStore {
+
+    /**
+     * @return the conversation of the session, or null if the user has no such session
+     */
+    List<ChatMessage> load(String userId, String sessionState);
+}
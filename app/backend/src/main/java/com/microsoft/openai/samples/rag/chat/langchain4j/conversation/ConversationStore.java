@@ -0,0 +1,168 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.conversation;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server side conversation state, enabled with app.serverConversationEnabled. The conversation of each session is
+ * kept here under its session_state, so that clients resuming a session send only the new user message instead of
+ * the whole history. Requests with more than one message are taken as the whole history, as before, and replace the
+ * stored conversation.
+ * Sessions are spread over app.conversationStore.shards LRU maps, each with its own lock, holding
+ * app.conversationStore.maxSessions in total. Idle sessions expire after app.conversationStore.ttl, and only the last
+ * app.conversationStore.maxMessages messages of a conversation are kept. Sessions no longer held are loaded from
+ * the {@link ConversationBackingStore}, if there is one. Lookups are published as rag.conversation.requests, tagged
+ * hit, loaded or miss.
+ */
+@Component
+public class ConversationStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversationStore.class);
+
+    private record Entry(String userId, List<ChatMessage> messages, long expiresAt) {}
+
+    private final boolean enabled;
+    private final int maxMessages;
+    private final long ttlNanos;
+    private final List<ConversationBackingStore> backingStores;
+    private final Map<String, Entry>[] shards;
+    private final Counter hits;
+    private final Counter loaded;
+    private final Counter misses;
+
+    @SuppressWarnings("unchecked")
+    public ConversationStore(
+            MeterRegistry meterRegistry,
+            List<ConversationBackingStore> backingStores,
+            @Value("${app.serverConversationEnabled:false}") boolean enabled,
+            @Value("${app.conversationStore.maxSessions:10000}") int maxSessions,
+            @Value("${app.conversationStore.maxMessages:100}") int maxMessages,
+            @Value("${app.conversationStore.shards:16}") int shardCount,
+            @Value("${app.conversationStore.ttl:PT2H}") Duration ttl) {
+        this.enabled = enabled;
+        this.maxMessages = Math.max(2, maxMessages);
+        this.ttlNanos = ttl.toNanos();
+        this.backingStores = backingStores;
+
+        int shardSize = Math.max(1, maxSessions / Math.max(1, shardCount));
+        this.shards = new Map[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > shardSize;
+                }
+            };
+        }
+
+        this.hits = meterRegistry.counter("rag.conversation.requests", "result", "hit");
+        this.loaded = meterRegistry.counter("rag.conversation.requests", "result", "loaded");
+        this.misses = meterRegistry.counter("rag.conversation.requests", "result", "miss");
+        meterRegistry.gauge("rag.conversation.size", this, store -> store.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param sessionState the session_state sent by the client, null for a new session
+     * @param messages the messages of the request
+     * @return the whole conversation, ending with the new user message, or null if the request resumes a session
+     * that is unknown to the store and the backing store
+     */
+    public List<ChatMessage> resolve(String sessionState, String userId, List<ChatMessage> messages) {
+        if (!enabled || sessionState == null || !isNewMessageOnly(messages)) return messages;
+
+        List<ChatMessage> conversation = get(sessionState, userId);
+        if (conversation != null) {
+            hits.increment();
+        } else {
+            conversation = load(sessionState, userId);
+            if (conversation == null) {
+                misses.increment();
+                return null;
+            }
+            loaded.increment();
+        }
+        List<ChatMessage> resolved = new ArrayList<>(conversation.size() + 1);
+        resolved.addAll(conversation);
+        resolved.add(messages.get(0));
+        return resolved;
+    }
+
+    /**
+     * Stores the conversation of the session once the answer is complete.
+     * @param conversation the whole conversation, ending with the question answered
+     */
+    public void append(String sessionState, String userId, List<ChatMessage> conversation, String answer) {
+        if (!enabled) return;
+
+        List<ChatMessage> messages = new ArrayList<>(conversation);
+        messages.add(AiMessage.from(answer));
+        if (messages.size() > maxMessages) messages = messages.subList(messages.size() - maxMessages, messages.size());
+        var entry = new Entry(userId, List.copyOf(messages), System.nanoTime() + ttlNanos);
+        var shard = shard(sessionState);
+        synchronized (shard) {
+            shard.put(sessionState, entry);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (var shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    private List<ChatMessage> get(String sessionState, String userId) {
+        var shard = shard(sessionState);
+        Entry entry;
+        synchronized (shard) {
+            entry = shard.get(sessionState);
+            if (entry != null && System.nanoTime() - entry.expiresAt() > 0) {
+                shard.remove(sessionState);
+                entry = null;
+            }
+        }
+        if (entry == null || !entry.userId().equals(userId)) return null;
+        return entry.messages();
+    }
+
+    private List<ChatMessage> load(String sessionState, String userId) {
+        for (var backingStore : backingStores) {
+            try {
+                var conversation = backingStore.load(userId, sessionState);
+                if (conversation != null) return conversation;
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to load the conversation of session {}", sessionState, e);
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Entry> shard(String sessionState) {
+        return shards[Math.floorMod(sessionState.hashCode(), shards.length)];
+    }
+
+    private static boolean isNewMessageOnly(List<ChatMessage> messages) {
+        return messages.size() == 1 && messages.get(0) instanceof UserMessage;
+    }
+}
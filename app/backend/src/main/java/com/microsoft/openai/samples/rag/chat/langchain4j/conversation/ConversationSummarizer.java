@@ -0,0 +1,190 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.conversation;
+
+import com.microsoft.openai.samples.rag.chat.langchain4j.ConversationSummaryAgent;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.Tokenizer;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolling summary of long conversations, enabled with app.summary.enabled. Once the previous conversation of a
+ * session exceeds app.summary.thresholdTokens, the turns older than the last app.summary.recentMessages messages are
+ * replaced by a summary system message, both for the keyword extraction and the answer prompt.
+ * The summary is computed off the critical path by the {@link ConversationSummaryAgent}: a turn that finds no
+ * summary up to date starts one for the next turns and goes on with the turns it has. Each new summary folds the
+ * turns that aged since into the previous one, so only those are sent. Summaries are kept per user and session_state,
+ * for the app.summary.maxSessions most recent sessions and app.summary.ttl, and are only used while the turns they
+ * cover are unchanged.
+ * The prompt tokens saved per turn are published as rag.conversation.summary.saved, summary calls as
+ * rag.conversation.summaries, tagged success or failure.
+ */
+@Component
+public class ConversationSummarizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConversationSummarizer.class);
+    private static final String SUMMARY_PREFIX = "Summary of the earlier conversation:\n";
+
+    /**
+     * @param covered the number of leading messages the summary replaces
+     * @param fingerprint the fingerprint of these messages
+     */
+    private record Summary(String text, int covered, long fingerprint, long expiresAt) {}
+
+    private final ConversationSummaryAgent conversationSummaryAgent;
+    private final Tokenizer tokenizer;
+    private final boolean enabled;
+    private final int thresholdTokens;
+    private final int recentMessages;
+    private final long ttlNanos;
+    private final Map<String, Summary> summaries;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final DistributionSummary savedTokens;
+    private final Counter successes;
+    private final Counter failures;
+
+    public ConversationSummarizer(
+            ConversationSummaryAgent conversationSummaryAgent,
+            Tokenizer tokenizer,
+            MeterRegistry meterRegistry,
+            @Value("${app.summary.enabled:false}") boolean enabled,
+            @Value("${app.summary.thresholdTokens:1500}") int thresholdTokens,
+            @Value("${app.summary.recentMessages:4}") int recentMessages,
+            @Value("${app.summary.maxSessions:10000}") int maxSessions,
+            @Value("${app.summary.ttl:PT2H}") Duration ttl) {
+        this.conversationSummaryAgent = conversationSummaryAgent;
+        this.tokenizer = tokenizer;
+        this.enabled = enabled;
+        this.thresholdTokens = thresholdTokens;
+        this.recentMessages = Math.max(0, recentMessages);
+        this.ttlNanos = ttl.toNanos();
+        this.summaries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Summary> eldest) {
+                return size() > maxSessions;
+            }
+        };
+        this.savedTokens = DistributionSummary.builder("rag.conversation.summary.saved")
+                .description("Prompt tokens saved per turn by the conversation summary")
+                .baseUnit("tokens")
+                .register(meterRegistry);
+        this.successes = meterRegistry.counter("rag.conversation.summaries", "result", "success");
+        this.failures = meterRegistry.counter("rag.conversation.summaries", "result", "failure");
+    }
+
+    /**
+     * @param conversation the conversation, ending with the question
+     * @param sessionState the session_state of the request
+     * @return the conversation with its older turns replaced by the summary of the session if it's up to date, or the
+     * conversation itself
+     */
+    public List<ChatMessage> compact(List<ChatMessage> conversation, String sessionState, String userId) {
+        if (!enabled || sessionState == null || conversation.size() < 2) return conversation;
+
+        var previous = conversation.subList(0, conversation.size() - 1);
+        int previousTokens = 0;
+        for (ChatMessage message : previous) previousTokens += tokenizer.count(message);
+        if (previousTokens <= thresholdTokens) return conversation;
+
+        // Summaries end before a question, so the recent turns start with one
+        int boundary = previous.size() - recentMessages;
+        while (boundary > 0 && !(previous.get(boundary) instanceof UserMessage)) boundary--;
+        if (boundary <= 0) return conversation;
+
+        String key = userId + "/" + sessionState;
+        Summary summary = get(key);
+        if (summary != null && (summary.covered() > boundary || summary.fingerprint() != fingerprint(previous, summary.covered()))) {
+            summary = null;
+        }
+        if (summary == null || summary.covered() < boundary) summarize(key, previous, summary, boundary);
+        if (summary == null) return conversation;
+
+        var summaryMessage = summaryMessage(summary.text());
+        int replacedTokens = 0;
+        for (ChatMessage message : previous.subList(0, summary.covered())) replacedTokens += tokenizer.count(message);
+        int saved = replacedTokens - tokenizer.count(summaryMessage);
+        if (saved <= 0) return conversation;
+
+        savedTokens.record(saved);
+        LOGGER.info("Conversation summary replaced {} messages, saving {} prompt tokens", summary.covered(), saved);
+        List<ChatMessage> compacted = new ArrayList<>(conversation.size() - summary.covered() + 1);
+        compacted.add(summaryMessage);
+        compacted.addAll(conversation.subList(summary.covered(), conversation.size()));
+        return compacted;
+    }
+
+    /**
+     * Starts the summary of the messages before the boundary, folding in the previous summary, unless one is already
+     * in flight for the session.
+     */
+    private void summarize(String key, List<ChatMessage> previous, Summary summary, int boundary) {
+        if (!inFlight.add(key)) return;
+
+        List<ChatMessage> toSummarize = new ArrayList<>();
+        if (summary != null) toSummarize.add(summaryMessage(summary.text()));
+        toSummarize.addAll(previous.subList(summary == null ? 0 : summary.covered(), boundary));
+        long fingerprint = fingerprint(previous, boundary);
+
+        conversationSummaryAgent.summarizeAsync(toSummarize)
+                .doFinally(signal -> inFlight.remove(key))
+                .subscribe(
+                        text -> {
+                            successes.increment();
+                            put(key, new Summary(text, boundary, fingerprint, System.nanoTime() + ttlNanos));
+                        },
+                        e -> {
+                            failures.increment();
+                            LOGGER.warn("Conversation summary failed, the next turns send the whole history", e);
+                        });
+    }
+
+    private Summary get(String key) {
+        synchronized (summaries) {
+            Summary summary = summaries.get(key);
+            if (summary != null && System.nanoTime() - summary.expiresAt() > 0) {
+                summaries.remove(key);
+                return null;
+            }
+            return summary;
+        }
+    }
+
+    private void put(String key, Summary summary) {
+        synchronized (summaries) {
+            summaries.put(key, summary);
+        }
+    }
+
+    private static SystemMessage summaryMessage(String summary) {
+        return SystemMessage.from(SUMMARY_PREFIX + summary);
+    }
+
+    private static long fingerprint(List<ChatMessage> messages, int count) {
+        long fingerprint = count;
+        for (ChatMessage message : messages.subList(0, count)) {
+            String text = "";
+            if (message instanceof UserMessage userMessage && userMessage.hasSingleText()) text = userMessage.singleText();
+            else if (message instanceof AiMessage aiMessage && aiMessage.text() != null) text = aiMessage.text();
+            else if (message instanceof SystemMessage systemMessage) text = systemMessage.text();
+            fingerprint = 31 * fingerprint + message.type().ordinal();
+            fingerprint = 31 * fingerprint + text.hashCode();
+        }
+        return fingerprint;
+    }
+}
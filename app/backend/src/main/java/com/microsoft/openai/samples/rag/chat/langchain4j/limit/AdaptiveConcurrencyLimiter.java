@@ -0,0 +1,180 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.limit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Concurrency limit adjusted from the observed latency, in the manner of the gradient algorithm: the latency of each
+ * request is compared with a long term average, and the limit shrinks by up to half while requests get slower than
+ * tolerance times the average, or grows by its square root while they do not. Failed requests shrink the limit by
+ * the backoff ratio. The limit only grows while at least half of it is in use, so that an idle instance does not
+ * raise it without evidence, but it shrinks whatever the load.
+ * A fraction of the limit is kept for the priority lane: other requests are rejected once the limit minus these
+ * slots is in flight.
+ * The latency sample of a request is taken when it completes, or when it produces its first output if it reports
+ * it, e.g. the first streamed token: the length of an answer says nothing about the load of the deployment.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    // the long term average follows the samples with a window of about 100 requests
+    private static final double LONG_WINDOW = 100;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final double priorityRatio;
+    private final Counter rejected;
+    private final Counter priorityRejected;
+    private double limit;
+    private double longLatencyNanos;
+    private int inFlight;
+
+    /**
+     * @param mode the tag of the limiter metrics, sync or stream
+     * @param smoothing the weight of a new limit estimate in the limit
+     * @param priorityRatio the fraction of the limit kept for the priority lane
+     */
+    public AdaptiveConcurrencyLimiter(
+            String mode,
+            int initialLimit,
+            int minLimit,
+            int maxLimit,
+            double tolerance,
+            double smoothing,
+            double priorityRatio,
+            MeterRegistry meterRegistry) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.tolerance = Math.max(1, tolerance);
+        this.smoothing = smoothing;
+        this.priorityRatio = priorityRatio;
+
+        var tags = List.of(Tag.of("mode", mode));
+        meterRegistry.gauge("rag.chat.concurrency.limit", tags, this, AdaptiveConcurrencyLimiter::limit);
+        meterRegistry.gauge("rag.chat.concurrency.inflight", tags, this, AdaptiveConcurrencyLimiter::inFlight);
+        meterRegistry.gauge("rag.chat.concurrency.latency", tags, this, limiter -> limiter.latencyNanos() / 1_000_000.0);
+        this.rejected = meterRegistry.counter("rag.chat.concurrency.rejected", "mode", mode, "lane", "default");
+        this.priorityRejected = meterRegistry.counter("rag.chat.concurrency.rejected", "mode", mode, "lane", "priority");
+    }
+
+    /**
+     * @return the permit of the request, to release once it is done, or null if the request is rejected
+     */
+    public Permit tryAcquire(boolean priority) {
+        synchronized (this) {
+            int allowed = (int) limit;
+            if (!priority) allowed -= (int) Math.ceil(allowed * priorityRatio);
+            if (inFlight < Math.max(1, allowed)) {
+                inFlight++;
+                return new Permit(this, inFlight);
+            }
+        }
+        (priority ? priorityRejected : rejected).increment();
+        return null;
+    }
+
+    public synchronized double limit() {
+        return limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the long term average latency, 0 before the first request completes
+     */
+    public synchronized double latencyNanos() {
+        return longLatencyNanos;
+    }
+
+    private synchronized void release(Long latencyNanos, boolean dropped, int inFlightAtStart) {
+        inFlight--;
+        if (dropped) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            return;
+        }
+        if (latencyNanos != null) sample(latencyNanos, inFlightAtStart);
+    }
+
+    synchronized void sample(long latencyNanos, int inFlightAtStart) {
+        longLatencyNanos = longLatencyNanos == 0
+                ? latencyNanos
+                : longLatencyNanos + (latencyNanos - longLatencyNanos) / LONG_WINDOW;
+        // After a slow period the average would hold the limit down for a long time, let it recover faster
+        if (longLatencyNanos > 2 * latencyNanos) longLatencyNanos *= 0.95;
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatencyNanos / Math.max(1, latencyNanos)));
+        boolean underused = inFlightAtStart < limit / 2;
+        if (underused && gradient == 1.0) return;
+        double estimate = limit * gradient + (underused ? 0 : Math.sqrt(limit));
+        limit = Math.min(maxLimit, Math.max(minLimit, (1 - smoothing) * limit + smoothing * estimate));
+    }
+
+    /**
+     * Slot of an admitted request. Only the first release counts.
+     */
+    public static final class Permit {
+
+        /**
+         * Permit of the requests admitted while limiting is disabled.
+         */
+        public static final Permit UNLIMITED = new Permit(null, 0);
+
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final long start = System.nanoTime();
+        private final int inFlightAtStart;
+        private final AtomicBoolean sampled = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(AdaptiveConcurrencyLimiter limiter, int inFlightAtStart) {
+            this.limiter = limiter;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * The request produced its first output, its latency so far is the sample of the limit. The request keeps
+         * its slot until it is released.
+         */
+        public void firstOutput() {
+            if (limiter != null && !released.get() && sampled.compareAndSet(false, true)) {
+                limiter.sample(System.nanoTime() - start, inFlightAtStart);
+            }
+        }
+
+        /**
+         * The request completed, its latency is a sample of the limit unless its first output was.
+         */
+        public void success() {
+            release(sampled.compareAndSet(false, true) ? System.nanoTime() - start : null, false);
+        }
+
+        /**
+         * The request failed, e.g. OpenAI timed out or throttled it, the limit backs off.
+         */
+        public void dropped() {
+            release(null, true);
+        }
+
+        /**
+         * The request ended without telling anything about the load, e.g. the client went away.
+         */
+        public void ignore() {
+            release(null, false);
+        }
+
+        private void release(Long latencyNanos, boolean dropped) {
+            if (limiter != null && released.compareAndSet(false, true)) {
+                limiter.release(latencyNanos, dropped, inFlightAtStart);
+            }
+        }
+    }
+}
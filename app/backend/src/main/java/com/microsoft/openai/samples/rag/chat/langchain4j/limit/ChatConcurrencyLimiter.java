@@ -0,0 +1,75 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.limit;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Load shedding in front of the chat pipeline: when OpenAI slows down, requests beyond the adaptive concurrency limit
+ * are rejected right away instead of piling up until everything times out together. Sync and streaming requests have
+ * their own {@link AdaptiveConcurrencyLimiter}, since a streamed answer holds its slot for the whole generation.
+ * A sync request holds a servlet thread, so its limit stays within the thread pool. A streamed one holds no thread,
+ * its limit may grow to thousands and its latency sample is the time to the first token.
+ * Single-turn questions of at most app.concurrency.priority.maxChars characters go through the priority lane, which
+ * may use the app.concurrency.priority.ratio of the limit kept from the other requests.
+ * Limiter state is published as rag.chat.concurrency.limit, rag.chat.concurrency.inflight,
+ * rag.chat.concurrency.latency and rag.chat.concurrency.rejected, tagged with the mode.
+ */
+@Component
+public class ChatConcurrencyLimiter {
+
+    private final boolean enabled;
+    private final int priorityMaxChars;
+    private final AdaptiveConcurrencyLimiter sync;
+    private final AdaptiveConcurrencyLimiter stream;
+
+    public ChatConcurrencyLimiter(
+            MeterRegistry meterRegistry,
+            @Value("${app.concurrency.enabled:true}") boolean enabled,
+            @Value("${app.concurrency.sync.initialLimit:20}") int syncInitialLimit,
+            @Value("${app.concurrency.sync.maxLimit:200}") int syncMaxLimit,
+            @Value("${app.concurrency.stream.initialLimit:200}") int streamInitialLimit,
+            @Value("${app.concurrency.stream.maxLimit:5000}") int streamMaxLimit,
+            @Value("${app.concurrency.minLimit:4}") int minLimit,
+            @Value("${app.concurrency.tolerance:1.5}") double tolerance,
+            @Value("${app.concurrency.smoothing:0.2}") double smoothing,
+            @Value("${app.concurrency.priority.ratio:0.1}") double priorityRatio,
+            @Value("${app.concurrency.priority.maxChars:200}") int priorityMaxChars) {
+        this.enabled = enabled;
+        this.priorityMaxChars = priorityMaxChars;
+        this.sync = new AdaptiveConcurrencyLimiter(
+                "sync", syncInitialLimit, minLimit, syncMaxLimit, tolerance, smoothing, priorityRatio, meterRegistry);
+        this.stream = new AdaptiveConcurrencyLimiter(
+                "stream", streamInitialLimit, minLimit, streamMaxLimit, tolerance, smoothing, priorityRatio, meterRegistry);
+    }
+
+    /**
+     * @param messages the conversation of the request
+     * @return the permit of the request, to release once it is done, or null if the request is rejected
+     */
+    public AdaptiveConcurrencyLimiter.Permit tryAcquire(boolean streaming, List<ChatMessage> messages) {
+        if (!enabled) return AdaptiveConcurrencyLimiter.Permit.UNLIMITED;
+        return (streaming ? stream : sync).tryAcquire(isPriority(messages));
+    }
+
+    /**
+     * @return the delay to send in the Retry-After header of the rejected requests: the average latency sample of
+     * the mode rounded up to the second
+     */
+    public long retryAfterSeconds(boolean streaming) {
+        double latencyNanos = (streaming ? stream : sync).latencyNanos();
+        return Math.max(1, (long) Math.ceil(latencyNanos / 1_000_000_000.0));
+    }
+
+    private boolean isPriority(List<ChatMessage> messages) {
+        return messages.size() == 1
+                && messages.get(0) instanceof UserMessage userMessage
+                && userMessage.hasSingleText()
+                && userMessage.singleText().length() <= priorityMaxChars;
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.prompt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Prompt template parsed once into literal and variable segments, with the same {{variable}} syntax as the
+ * langchain4j PromptTemplate. Rendering just concatenates the segments into a per-thread reusable StringBuilder,
+ * instead of scanning the template with a regex and replacing each variable in a new string on every request.
+ */
+public final class CompiledPromptTemplate {
+
+    private static final Pattern VARIABLE = Pattern.compile("\\{\\{\\s*(.+?)\\s*}}");
+    // Builders grown beyond this size by a large prompt are not kept, to bound the memory held per thread
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    // literals.length == variables.length + 1, rendered as literal0 variable0 literal1 ... literalN
+    private final String[] literals;
+    private final String[] variables;
+    private final int literalsLength;
+
+    private CompiledPromptTemplate(String[] literals, String[] variables) {
+        this.literals = literals;
+        this.variables = variables;
+        int length = 0;
+        for (String literal : literals) length += literal.length();
+        this.literalsLength = length;
+    }
+
+    public static CompiledPromptTemplate compile(String template) {
+        if (template == null) throw new IllegalArgumentException("template cannot be null");
+
+        List<String> literals = new ArrayList<>();
+        List<String> variables = new ArrayList<>();
+        Matcher matcher = VARIABLE.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            literals.add(template.substring(start, matcher.start()));
+            variables.add(matcher.group(1));
+            start = matcher.end();
+        }
+        literals.add(template.substring(start));
+        return new CompiledPromptTemplate(literals.toArray(String[]::new), variables.toArray(String[]::new));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a variable of the template has no value
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        builder.ensureCapacity(literalsLength);
+        try {
+            for (int i = 0; i < variables.length; i++) {
+                builder.append(literals[i]);
+                String value = values.get(variables[i]);
+                if (value == null)
+                    throw new IllegalArgumentException("Value for the variable '%s' is missing".formatted(variables[i]));
+                builder.append(value);
+            }
+            builder.append(literals[variables.length]);
+            return builder.toString();
+        } finally {
+            if (builder.capacity() > MAX_RETAINED_CAPACITY) BUILDER.remove();
+        }
+    }
+}
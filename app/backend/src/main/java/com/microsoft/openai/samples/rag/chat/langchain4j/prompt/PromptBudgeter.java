@@ -0,0 +1,174 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.prompt;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Fits the answer prompt into a token budget. The system prompt and the question are always sent, the chat
+ * history gets up to app.prompt.budget.maxHistoryTokens and the sources get what is left of
+ * app.prompt.budget.maxPromptTokens.
+ * History is trimmed from the oldest turn, sources are dropped starting from the lowest scored one, and the
+ * last source that only partially fits is truncated if at least app.prompt.budget.minSourceTokens of it fit.
+ */
+@Component
+public class PromptBudgeter {
+
+    /**
+     * Outcome of the budgeting, with the token counts of each prompt part.
+     * @param history the previous conversation, without the trimmed oldest turns
+     * @param sources the sources fitting the budget, in their retrieval order
+     */
+    public record Plan(
+            List<ChatMessage> history,
+            List<Content> sources,
+            int systemTokens,
+            int historyTokens,
+            int sourceTokens,
+            int questionTokens,
+            int maxPromptTokens,
+            int droppedMessages,
+            int droppedSources,
+            int truncatedSources) {
+
+        public int totalTokens() {
+            return systemTokens + historyTokens + sourceTokens + questionTokens + Tokenizer.TOKENS_PER_REPLY;
+        }
+
+        public Map<String, Object> toMap() {
+            return Map.of(
+                    "system_tokens", systemTokens,
+                    "history_tokens", historyTokens,
+                    "sources_tokens", sourceTokens,
+                    "question_tokens", questionTokens,
+                    "total_tokens", totalTokens(),
+                    "max_prompt_tokens", maxPromptTokens,
+                    "dropped_history_messages", droppedMessages,
+                    "dropped_sources", droppedSources,
+                    "truncated_sources", truncatedSources);
+        }
+    }
+
+    private final Tokenizer tokenizer;
+    private final int maxPromptTokens;
+    private final int maxHistoryTokens;
+    private final int minSourceTokens;
+
+    public PromptBudgeter(
+            Tokenizer tokenizer,
+            @Value("${app.prompt.budget.maxPromptTokens:12000}") int maxPromptTokens,
+            @Value("${app.prompt.budget.maxHistoryTokens:3000}") int maxHistoryTokens,
+            @Value("${app.prompt.budget.minSourceTokens:100}") int minSourceTokens) {
+        this.tokenizer = tokenizer;
+        this.maxPromptTokens = maxPromptTokens;
+        this.maxHistoryTokens = maxHistoryTokens;
+        this.minSourceTokens = minSourceTokens;
+    }
+
+    /**
+     * @param systemPrompt the rendered system prompt
+     * @param history the previous conversation, oldest message first
+     * @param sources the retrieved sources
+     * @param sourceFormatter renders a source the way it's written in the prompt
+     * @param question the user question, including the template text wrapping it but not the sources
+     */
+    public Plan plan(
+            String systemPrompt,
+            List<ChatMessage> history,
+            List<Content> sources,
+            Function<Content, String> sourceFormatter,
+            String question) {
+        int systemTokens = Tokenizer.TOKENS_PER_MESSAGE + tokenizer.count(systemPrompt);
+        int questionTokens = Tokenizer.TOKENS_PER_MESSAGE + tokenizer.count(question);
+        int available = maxPromptTokens - systemTokens - questionTokens - Tokenizer.TOKENS_PER_REPLY;
+
+        // History: keep the most recent messages, never starting the kept history with an answer
+        int historyBudget = Math.min(maxHistoryTokens, Math.max(0, available));
+        int historyTokens = 0;
+        int firstKept = history.size();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            int tokens = tokenizer.count(history.get(i));
+            if (historyTokens + tokens > historyBudget) break;
+            historyTokens += tokens;
+            firstKept = i;
+        }
+        while (firstKept < history.size() && history.get(firstKept) instanceof AiMessage) {
+            historyTokens -= tokenizer.count(history.get(firstKept));
+            firstKept++;
+        }
+        List<ChatMessage> keptHistory = List.copyOf(history.subList(firstKept, history.size()));
+
+        // Sources: fill the rest, best scored first
+        int sourceBudget = Math.max(0, available - historyTokens);
+        int sourceTokens = 0;
+        int truncated = 0;
+        Set<Content> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<Content, Content> replacements = new IdentityHashMap<>();
+        List<Content> byScore = new ArrayList<>(sources);
+        byScore.sort(Comparator.comparingDouble(PromptBudgeter::score).reversed());
+        for (Content source : byScore) {
+            int tokens = tokenizer.count(sourceFormatter.apply(source));
+            if (sourceTokens + tokens <= sourceBudget) {
+                sourceTokens += tokens;
+                kept.add(source);
+                continue;
+            }
+
+            int remaining = sourceBudget - sourceTokens;
+            int textTokens = tokenizer.count(source.textSegment().text());
+            int textBudget = remaining - (tokens - textTokens);
+            if (textBudget >= minSourceTokens) {
+                var truncatedSource = truncate(source, textBudget);
+                sourceTokens += tokenizer.count(sourceFormatter.apply(truncatedSource));
+                kept.add(source);
+                replacements.put(source, truncatedSource);
+                truncated++;
+            }
+            // Smaller sources may still fit, so keep going
+        }
+
+        List<Content> keptSources = sources.stream()
+                .filter(kept::contains)
+                .map(source -> replacements.getOrDefault(source, source))
+                .toList();
+
+        return new Plan(
+                keptHistory,
+                keptSources,
+                systemTokens,
+                historyTokens,
+                sourceTokens,
+                questionTokens,
+                maxPromptTokens,
+                firstKept,
+                sources.size() - keptSources.size(),
+                truncated);
+    }
+
+    private Content truncate(Content source, int maxTokens) {
+        var segment = source.textSegment();
+        var text = tokenizer.truncate(segment.text(), maxTokens);
+        return Content.from(TextSegment.from(text, segment.metadata()), source.metadata());
+    }
+
+    private static double score(Content source) {
+        Object reranked = source.metadata().get(ContentMetadata.RERANKED_SCORE);
+        if (reranked instanceof Number number) return number.doubleValue();
+        Object score = source.metadata().get(ContentMetadata.SCORE);
+        return score instanceof Number number ? number.doubleValue() : 0;
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.prompt;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process BPE tokenizer matching the encoding of the deployed chat model (o200k_base for the gpt-4o family,
+ * cl100k_base for gpt-4 and gpt-35-turbo). Token counts are cached by text in a bounded LRU map, since the same
+ * source chunks and system prompts are counted over and over across requests.
+ */
+@Component
+public class Tokenizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Tokenizer.class);
+
+    // Per message overhead of the chat completion format: role and message delimiters
+    static final int TOKENS_PER_MESSAGE = 3;
+    // Every reply is primed with <|start|>assistant<|message|>
+    static final int TOKENS_PER_REPLY = 3;
+
+    private final Encoding encoding;
+    private final Map<String, Integer> counts;
+
+    public Tokenizer(
+            @Value("${openai.chatgpt.model:gpt-4o-mini}") String modelName,
+            @Value("${app.prompt.tokenizer.cacheMaxSize:4096}") int cacheMaxSize) {
+        var registry = Encodings.newLazyEncodingRegistry();
+        this.encoding = registry.getEncodingForModel(modelName)
+                .orElseGet(() -> registry.getEncoding(EncodingType.O200K_BASE));
+        LOGGER.info("Using {} token encoding for chat model [{}]", encoding.getName(), modelName);
+
+        this.counts = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > cacheMaxSize;
+            }
+        };
+    }
+
+    public int count(String text) {
+        if (text == null || text.isEmpty()) return 0;
+
+        synchronized (counts) {
+            Integer count = counts.get(text);
+            if (count != null) return count;
+        }
+        int count = encoding.countTokensOrdinary(text);
+        synchronized (counts) {
+            counts.put(text, count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the tokens of the message as sent to the chat completion api, including the message overhead
+     */
+    public int count(ChatMessage message) {
+        String text;
+        if (message instanceof UserMessage userMessage) {
+            text = userMessage.hasSingleText() ? userMessage.singleText() : userMessage.toString();
+        } else if (message instanceof SystemMessage systemMessage) {
+            text = systemMessage.text();
+        } else if (message instanceof AiMessage aiMessage) {
+            text = aiMessage.text();
+        } else {
+            text = message.toString();
+        }
+        return TOKENS_PER_MESSAGE + count(text);
+    }
+
+    /**
+     * @return the longest prefix of the text fitting in maxTokens tokens
+     */
+    public String truncate(String text, int maxTokens) {
+        if (maxTokens <= 0) return "";
+        var result = encoding.encodeOrdinary(text, maxTokens);
+        return result.isTruncated() ? encoding.decode(result.getTokens()) : text;
+    }
+}
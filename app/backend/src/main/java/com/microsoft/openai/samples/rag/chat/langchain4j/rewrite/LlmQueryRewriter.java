@@ -0,0 +1,41 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.rewrite;
+
+import com.microsoft.openai.samples.rag.chat.langchain4j.ExtractKeywordsAgent;
+import dev.langchain4j.data.message.ChatMessage;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Rewrites the conversation with a chat model call through {@link ExtractKeywordsAgent}.
+ * It handles follow-up questions and non english questions, at the cost of a full LLM round trip.
+ */
+@Component
+public class LlmQueryRewriter implements QueryRewriter {
+
+    private final ExtractKeywordsAgent extractKeywordsAgent;
+
+    public LlmQueryRewriter(ExtractKeywordsAgent extractKeywordsAgent) {
+        this.extractKeywordsAgent = extractKeywordsAgent;
+    }
+
+    @Override
+    public String rewrite(List<ChatMessage> conversation) {
+        return extractKeywordsAgent.extractKeywords(conversation);
+    }
+
+    /**
+     * Uses the streaming model, backed by the async OpenAI client, so no thread waits for the completion.
+     */
+    @Override
+    public Mono<String> rewriteAsync(List<ChatMessage> conversation) {
+        return Mono.defer(() -> extractKeywordsAgent.extractKeywordsAsync(conversation));
+    }
+
+    @Override
+    public String name() {
+        return "llm";
+    }
+}
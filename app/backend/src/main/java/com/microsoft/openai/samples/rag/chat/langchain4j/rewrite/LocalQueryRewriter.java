@@ -0,0 +1,113 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.rewrite;
+
+import com.microsoft.openai.samples.rag.common.StopWords;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * In-process query rewriter, following the same rules given to the LLM by {@link com.microsoft.openai.samples.rag.chat.langchain4j.ExtractKeywordsAgent}:
+ *  1. Text inside [] and <<>> and cited file names are removed.
+ *  2. Special characters and quotes are removed.
+ *  3. Stop words are removed from the last user question, keeping the remaining terms in their original order.
+ *  4. Terms of the previous user turns are weighted by frequency with an exponential decay on the turn age,
+ *     and the best ones are appended to give context to short follow-ups.
+ * It doesn't translate, so it should only be used for english conversations.
+ */
+@Component
+public class LocalQueryRewriter implements QueryRewriter {
+
+    private static final Pattern BRACKETS = Pattern.compile("\\[[^\\]]*\\]|<<.*?>>");
+    private static final Pattern FILE_NAMES = Pattern.compile("\\S+\\.(pdf|txt|docx?|html?|md|pptx?|xlsx?|csv|json)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}'-]+");
+
+    private final int maxTurns;
+    private final int maxContextTerms;
+    private final double decay;
+
+    public LocalQueryRewriter(
+            @Value("${app.queryRewriter.local.maxTurns:3}") int maxTurns,
+            @Value("${app.queryRewriter.local.maxContextTerms:3}") int maxContextTerms,
+            @Value("${app.queryRewriter.local.decay:0.5}") double decay) {
+        this.maxTurns = maxTurns;
+        this.maxContextTerms = maxContextTerms;
+        this.decay = decay;
+    }
+
+    @Override
+    public String rewrite(List<ChatMessage> conversation) {
+        List<String> userTurns = recentUserTurns(conversation);
+        if (userTurns.isEmpty())
+            throw new IllegalStateException("conversation must contain at least one user message");
+
+        Set<String> queryTerms = new LinkedHashSet<>(terms(userTurns.get(0)));
+
+        // Weight the terms of the previous turns, the most recent first
+        Map<String, Double> weights = new HashMap<>();
+        double turnWeight = 1.0;
+        for (int age = 1; age < userTurns.size(); age++) {
+            turnWeight *= decay;
+            for (String term : terms(userTurns.get(age))) {
+                if (!queryTerms.contains(term)) weights.merge(term, turnWeight, Double::sum);
+            }
+        }
+        weights.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(maxContextTerms)
+                .forEach(entry -> queryTerms.add(entry.getKey()));
+
+        if (queryTerms.isEmpty()) return clean(userTurns.get(0)).trim();
+        return String.join(" ", queryTerms);
+    }
+
+    @Override
+    public String name() {
+        return "local";
+    }
+
+    /**
+     * @return the text of the last user messages, the most recent first
+     */
+    private List<String> recentUserTurns(List<ChatMessage> conversation) {
+        List<String> turns = new ArrayList<>(maxTurns);
+        for (int i = conversation.size() - 1; i >= 0 && turns.size() < maxTurns; i--) {
+            if (conversation.get(i) instanceof UserMessage userMessage) turns.add(userMessage.singleText());
+        }
+        return turns;
+    }
+
+    static String clean(String text) {
+        String cleaned = BRACKETS.matcher(text).replaceAll(" ");
+        return FILE_NAMES.matcher(cleaned).replaceAll(" ");
+    }
+
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String token : NON_WORD.split(clean(text).toLowerCase(Locale.ROOT))) {
+            String term = stripQuotes(token);
+            if (term.isEmpty() || StopWords.contains(term)) continue;
+            terms.add(term);
+        }
+        return terms;
+    }
+
+    private static String stripQuotes(String token) {
+        int start = 0;
+        int end = token.length();
+        while (start < end && (token.charAt(start) == '\'' || token.charAt(start) == '-')) start++;
+        while (end > start && (token.charAt(end - 1) == '\'' || token.charAt(end - 1) == '-')) end--;
+        return token.substring(start, end);
+    }
+}
@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.rewrite;
+
+import dev.langchain4j.data.message.ChatMessage;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Turns the conversation, including the last user question, into a search query for the retrieval step.
+ */
+public interface QueryRewriter {
+
+    String rewrite(List<ChatMessage> conversation);
+
+    /**
+     * Non-blocking variant used by the streaming chat. Rewriters calling remote services should override it,
+     * the default runs {@link #rewrite(List)} on the subscribing thread.
+     */
+    default Mono<String> rewriteAsync(List<ChatMessage> conversation) {
+        return Mono.fromCallable(() -> rewrite(conversation));
+    }
+
+    /**
+     * @return a short name of the rewriter, used in logs and metrics
+     */
+    String name();
+}
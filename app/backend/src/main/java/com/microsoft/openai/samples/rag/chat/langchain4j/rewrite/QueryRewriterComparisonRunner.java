@@ -0,0 +1,139 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.rewrite;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.retrieval.ContentRetrieverCache;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Comparison harness between the local and the LLM query rewriters. For each question of the ground truth file
+ * (evals/ground_truth.jsonl by default) it rewrites the question with both rewriters, runs the retrieval with both
+ * queries and reports the overlap of the retrieved documents. It runs only with the rewriter-comparison profile and
+ * exits when done, e.g.:
+ * ./mvnw spring-boot:run -Dspring-boot.run.profiles=dev,rewriter-comparison
+ */
+@Component
+@Profile("rewriter-comparison")
+public class QueryRewriterComparisonRunner implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryRewriterComparisonRunner.class);
+
+    private final LlmQueryRewriter llmQueryRewriter;
+    private final LocalQueryRewriter localQueryRewriter;
+    private final ContentRetrieverCache contentRetrieverCache;
+    private final ObjectMapper objectMapper;
+    private final ApplicationContext applicationContext;
+
+    @Value("${evals.groundTruth:../../evals/ground_truth.jsonl}")
+    String groundTruthPath;
+
+    @Value("${evals.retrievalMode:hybrid}")
+    String retrievalMode;
+
+    @Value("${evals.top:3}")
+    int top;
+
+    public QueryRewriterComparisonRunner(
+            LlmQueryRewriter llmQueryRewriter,
+            LocalQueryRewriter localQueryRewriter,
+            ContentRetrieverCache contentRetrieverCache,
+            ObjectMapper objectMapper,
+            ApplicationContext applicationContext) {
+        this.llmQueryRewriter = llmQueryRewriter;
+        this.localQueryRewriter = localQueryRewriter;
+        this.contentRetrieverCache = contentRetrieverCache;
+        this.objectMapper = objectMapper;
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        var options = new RAGOptions.Builder()
+                .retrievialMode(retrievalMode)
+                .semanticRanker(true)
+                .top(top)
+                .minimumSearchScore(0)
+                .build();
+        ContentRetriever contentRetriever = contentRetrieverCache.get(options, "default");
+
+        int questions = 0;
+        int sameTop1 = 0;
+        double overlapSum = 0;
+        long llmMillis = 0;
+        long localMillis = 0;
+
+        for (String line : Files.readAllLines(Path.of(groundTruthPath))) {
+            if (line.isBlank()) continue;
+            JsonNode entry = objectMapper.readTree(line);
+            List<ChatMessage> conversation = List.of(UserMessage.from(entry.get("question").asText()));
+
+            long start = System.nanoTime();
+            String llmQuery = llmQueryRewriter.rewrite(conversation);
+            llmMillis += (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            String localQuery = localQueryRewriter.rewrite(conversation);
+            localMillis += (System.nanoTime() - start) / 1_000_000;
+
+            List<Object> llmIds = ids(contentRetriever.retrieve(Query.from(llmQuery)));
+            List<Object> localIds = ids(contentRetriever.retrieve(Query.from(localQuery)));
+
+            double overlap = overlap(llmIds, localIds);
+            questions++;
+            overlapSum += overlap;
+            if (!llmIds.isEmpty() && !localIds.isEmpty() && Objects.equals(llmIds.get(0), localIds.get(0))) sameTop1++;
+
+            LOGGER.info("overlap={} llm=[{}] local=[{}]", "%.2f".formatted(overlap), llmQuery, localQuery);
+        }
+
+        if (questions > 0) {
+            LOGGER.info("""
+                    Query rewriter comparison over {} questions (mode={}, top={}):
+                      mean retrieval overlap (jaccard): {}
+                      same top-1 document: {}%
+                      mean rewrite latency: llm {} ms, local {} ms""",
+                    questions, retrievalMode, top,
+                    "%.3f".formatted(overlapSum / questions),
+                    "%.1f".formatted(100.0 * sameTop1 / questions),
+                    llmMillis / questions, localMillis / questions);
+        }
+
+        System.exit(SpringApplication.exit(applicationContext));
+    }
+
+    private static List<Object> ids(List<Content> contents) {
+        return contents.stream().map(content -> content.metadata().get(ContentMetadata.EMBEDDING_ID)).toList();
+    }
+
+    private static double overlap(List<Object> first, List<Object> second) {
+        if (first.isEmpty() && second.isEmpty()) return 1;
+        Set<Object> union = new HashSet<>(first);
+        union.addAll(second);
+        long common = first.stream().filter(second::contains).distinct().count();
+        return (double) common / union.size();
+    }
+}
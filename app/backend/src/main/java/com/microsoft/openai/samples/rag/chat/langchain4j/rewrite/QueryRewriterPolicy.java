@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.rewrite;
+
+import com.microsoft.openai.samples.rag.common.StopWords;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the query rewriter for a conversation, based on app.queryRewriter.mode:
+ *  - llm: always use the {@link LlmQueryRewriter}
+ *  - local: always use the {@link LocalQueryRewriter}
+ *  - auto: use the local rewriter for single-turn conversations and low-ambiguity follow-ups, the LLM otherwise.
+ * A follow-up is low-ambiguity when it has enough terms on its own and no references to previous turns.
+ * Non english questions always go to the LLM, which translates them.
+ * The selected rewriter is counted in the rag.query.rewriter metric.
+ */
+@Component
+public class QueryRewriterPolicy {
+
+    public enum Mode { llm, local, auto }
+
+    private static final Set<String> REFERENCES = Set.of(
+            "it", "its", "it's", "this", "that", "these", "those", "they", "them", "their", "theirs",
+            "he", "she", "him", "her", "his", "hers", "one", "ones", "same", "above", "previous", "former", "latter",
+            "else", "more", "also", "too", "again");
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}']+");
+    private static final Pattern LETTERS_SEPARATOR = Pattern.compile("[^\\p{L}']+");
+
+    private final LlmQueryRewriter llmQueryRewriter;
+    private final LocalQueryRewriter localQueryRewriter;
+    private final Counter llmSelected;
+    private final Counter localSelected;
+    private final Mode mode;
+    private final int minTerms;
+
+    public QueryRewriterPolicy(
+            LlmQueryRewriter llmQueryRewriter,
+            LocalQueryRewriter localQueryRewriter,
+            MeterRegistry meterRegistry,
+            @Value("${app.queryRewriter.mode:auto}") Mode mode,
+            @Value("${app.queryRewriter.minTerms:3}") int minTerms) {
+        this.llmQueryRewriter = llmQueryRewriter;
+        this.localQueryRewriter = localQueryRewriter;
+        this.llmSelected = meterRegistry.counter("rag.query.rewriter", "rewriter", llmQueryRewriter.name());
+        this.localSelected = meterRegistry.counter("rag.query.rewriter", "rewriter", localQueryRewriter.name());
+        this.mode = mode;
+        this.minTerms = minTerms;
+    }
+
+    public QueryRewriter select(List<ChatMessage> conversation) {
+        QueryRewriter rewriter = switch (mode) {
+            case llm -> llmQueryRewriter;
+            case local -> localQueryRewriter;
+            case auto -> isLowAmbiguity(conversation) ? localQueryRewriter : llmQueryRewriter;
+        };
+        (rewriter == localQueryRewriter ? localSelected : llmSelected).increment();
+        return rewriter;
+    }
+
+    private boolean isLowAmbiguity(List<ChatMessage> conversation) {
+        if (conversation.isEmpty() || !(conversation.get(conversation.size() - 1) instanceof UserMessage lastQuestion))
+            return false;
+
+        String question = lastQuestion.singleText();
+        if (!isEnglish(question)) return false;
+
+        long userTurns = conversation.stream().filter(UserMessage.class::isInstance).count();
+        if (userTurns == 1) return true;
+
+        String[] words = WORD_SEPARATOR.split(question.toLowerCase(Locale.ROOT));
+        for (String word : words) {
+            if (REFERENCES.contains(word)) return false;
+        }
+        return LocalQueryRewriter.terms(question).size() >= minTerms;
+    }
+
+    /**
+     * Cheap heuristic: latin letters only and at least one english stop word when the question has a few words.
+     */
+    private static boolean isEnglish(String question) {
+        String cleaned = LocalQueryRewriter.clean(question);
+        for (int i = 0; i < cleaned.length(); i++) {
+            char c = cleaned.charAt(i);
+            if (Character.isLetter(c) && c > 0x7F) return false;
+        }
+        String[] words = LETTERS_SEPARATOR.split(cleaned.toLowerCase(Locale.ROOT));
+        if (words.length < 3) return true;
+        for (String word : words) {
+            if (StopWords.contains(word)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chat deployment of an Azure OpenAI resource, as listed in openai.chatgpt.routes:
+ * {@code <deployment>@<Azure OpenAI service name or endpoint url>}, comma separated. An url, e.g. of a local stub
+ * server, is used as is; a service name stands for https://{service}.openai.azure.com.
+ */
+public record ChatDeploymentEndpoint(String deployment, String endpoint) {
+
+    public static ChatDeploymentEndpoint of(String deployment, String serviceOrEndpoint) {
+        String endpoint = serviceOrEndpoint.contains("://")
+                ? serviceOrEndpoint
+                : "https://%s.openai.azure.com".formatted(serviceOrEndpoint);
+        return new ChatDeploymentEndpoint(deployment, endpoint);
+    }
+
+    public static List<ChatDeploymentEndpoint> parse(String routes) {
+        List<ChatDeploymentEndpoint> endpoints = new ArrayList<>();
+        if (routes == null) return endpoints;
+        for (String route : routes.split(",")) {
+            if (route.isBlank()) continue;
+            int at = route.indexOf('@');
+            if (at <= 0 || at == route.length() - 1) {
+                throw new IllegalArgumentException(
+                        "Invalid chat route [%s], expected <deployment>@<service or endpoint>".formatted(route.trim()));
+            }
+            endpoints.add(of(route.substring(0, at).trim(), route.substring(at + 1).trim()));
+        }
+        return endpoints;
+    }
+
+    /**
+     * @return the route name in the metrics and logs
+     */
+    public String name() {
+        return deployment + "@" + endpoint.replaceFirst("^https?://", "");
+    }
+}
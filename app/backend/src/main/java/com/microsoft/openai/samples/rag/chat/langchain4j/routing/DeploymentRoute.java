@@ -0,0 +1,100 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+/**
+ * A chat deployment the {@link DeploymentRouter} can send requests to, with its health statistics: the EWMA of its
+ * latency and error rate, its requests in flight and the end of its cooldown after a throttling or server error.
+ *
+ * @param <M> the model type, ChatModel or StreamingChatModel
+ */
+public class DeploymentRoute<M> {
+
+    private final String name;
+    private final M model;
+    private final double alpha;
+    private double latencyMs;
+    private boolean sampled;
+    private double errorRate;
+    private int inFlight;
+    private long unavailableUntil;
+
+    /**
+     * @param alpha the weight of a new sample in the moving averages
+     */
+    public DeploymentRoute(String name, M model, double alpha) {
+        this.name = name;
+        this.model = model;
+        this.alpha = alpha;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public M model() {
+        return model;
+    }
+
+    /**
+     * @return the start time of the request, to pass to the other methods
+     */
+    public synchronized long start() {
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    public synchronized void end() {
+        inFlight = Math.max(0, inFlight - 1);
+    }
+
+    public synchronized void recordLatency(long start) {
+        double ms = (System.nanoTime() - start) / 1_000_000.0;
+        latencyMs = sampled ? alpha * ms + (1 - alpha) * latencyMs : ms;
+        sampled = true;
+        errorRate = (1 - alpha) * errorRate;
+    }
+
+    /**
+     * Records the elapsed time of a request still waiting for its first token when another route won it: the
+     * latency is at least that long, so the average is raised to it but never lowered.
+     */
+    public synchronized void recordLatencyAtLeast(long start) {
+        double ms = (System.nanoTime() - start) / 1_000_000.0;
+        if (sampled && ms <= latencyMs) return;
+        latencyMs = sampled ? alpha * ms + (1 - alpha) * latencyMs : ms;
+        sampled = true;
+    }
+
+    public synchronized void recordError(long cooldownNanos) {
+        errorRate = alpha + (1 - alpha) * errorRate;
+        if (cooldownNanos > 0) unavailableUntil = Math.max(unavailableUntil, System.nanoTime() + cooldownNanos);
+    }
+
+    public synchronized boolean isAvailable(long now) {
+        return unavailableUntil - now <= 0;
+    }
+
+    public synchronized long unavailableUntil() {
+        return unavailableUntil;
+    }
+
+    /**
+     * @return the expected latency of a new request: the EWMA latency, scaled by the requests already in flight
+     * and by the error rate. Zero until a first sample, so that new routes are tried first.
+     */
+    public synchronized double cost() {
+        return latencyMs * (inFlight + 1) / (1 - Math.min(errorRate, 0.9));
+    }
+
+    public synchronized double latencyMs() {
+        return latencyMs;
+    }
+
+    public synchronized double errorRate() {
+        return errorRate;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+}
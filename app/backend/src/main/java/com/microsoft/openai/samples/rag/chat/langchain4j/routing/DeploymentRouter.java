@@ -0,0 +1,153 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpHeaderName;
+import com.azure.core.http.HttpResponse;
+import dev.langchain4j.exception.NonRetriableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Orders the chat deployments for a request: the available ones by increasing {@link DeploymentRoute#cost()}, then
+ * the ones cooling down after a throttling or server error, by end of cooldown. With app.routing.explore probability
+ * a random available route goes first, so that the latency of the others doesn't go stale.
+ * A 429 or 503 response cools the route down for its retry-after-ms or retry-after header, app.routing.cooldown
+ * otherwise, and so does any other server error or timeout. Client errors fail the request without trying another
+ * route, as they would fail on any deployment.
+ * Route latencies and errors are published as rag.openai.route.latency and rag.openai.route.requests, tagged with
+ * the route and the mode, sync or stream.
+ *
+ * @param <M> the model type, ChatModel or StreamingChatModel
+ */
+public class DeploymentRouter<M> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentRouter.class);
+    private static final HttpHeaderName RETRY_AFTER_MS = HttpHeaderName.fromString("retry-after-ms");
+
+    private final List<DeploymentRoute<M>> routes;
+    private final double explore;
+    private final long cooldownNanos;
+    private final int maxAttempts;
+    private final Map<String, Counter> successes = new HashMap<>();
+    private final Map<String, Counter> failures = new HashMap<>();
+
+    /**
+     * @param mode the tag of the route metrics
+     * @param maxAttempts the number of routes a request can be sent to, hedges included
+     */
+    public DeploymentRouter(
+            String mode,
+            List<DeploymentRoute<M>> routes,
+            MeterRegistry meterRegistry,
+            double explore,
+            Duration cooldown,
+            int maxAttempts) {
+        if (routes.isEmpty()) throw new IllegalArgumentException("routes cannot be empty");
+
+        this.routes = List.copyOf(routes);
+        this.explore = explore;
+        this.cooldownNanos = cooldown.toNanos();
+        this.maxAttempts = Math.max(1, Math.min(maxAttempts, routes.size()));
+        for (DeploymentRoute<M> route : routes) {
+            meterRegistry.gauge("rag.openai.route.latency",
+                    List.of(Tag.of("route", route.name()), Tag.of("mode", mode)),
+                    route, DeploymentRoute::latencyMs);
+            successes.put(route.name(),
+                    meterRegistry.counter("rag.openai.route.requests", "route", route.name(), "mode", mode, "outcome", "ok"));
+            failures.put(route.name(),
+                    meterRegistry.counter("rag.openai.route.requests", "route", route.name(), "mode", mode, "outcome", "error"));
+        }
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return the routes to try, best first
+     */
+    public List<DeploymentRoute<M>> candidates() {
+        long now = System.nanoTime();
+        List<DeploymentRoute<M>> available = new ArrayList<>(routes.size());
+        List<DeploymentRoute<M>> coolingDown = new ArrayList<>();
+        for (DeploymentRoute<M> route : routes) {
+            (route.isAvailable(now) ? available : coolingDown).add(route);
+        }
+
+        // Costs are read once, they change while sorting
+        Map<DeploymentRoute<M>, Double> costs = new HashMap<>();
+        available.forEach(route -> costs.put(route, route.cost()));
+        available.sort(Comparator.comparingDouble(costs::get));
+        if (available.size() > 1 && ThreadLocalRandom.current().nextDouble() < explore) {
+            available.add(0, available.remove(ThreadLocalRandom.current().nextInt(1, available.size())));
+        }
+        coolingDown.sort(Comparator.comparingLong(route -> route.unavailableUntil() - now));
+        available.addAll(coolingDown);
+        return available;
+    }
+
+    public void succeeded(DeploymentRoute<M> route) {
+        successes.get(route.name()).increment();
+    }
+
+    /**
+     * Records the failure of a request and cools the route down if the deployment is throttling or failing.
+     */
+    public void failed(DeploymentRoute<M> route, Throwable error) {
+        failures.get(route.name()).increment();
+        HttpResponse response = httpResponse(error);
+        int status = response != null ? response.getStatusCode() : 0;
+        if (status >= 400 && status < 500 && status != 408 && status != 429) {
+            route.recordError(0);
+            return;
+        }
+        long cooldown = status == 429 || status == 503 ? retryAfterNanos(response) : cooldownNanos;
+        route.recordError(cooldown);
+        LOGGER.warn("Chat deployment route {} failed with status {}, cooling down for {} ms",
+                route.name(), status, cooldown / 1_000_000);
+    }
+
+    /**
+     * @return true if the request may succeed on another route: throttling, server errors, timeouts and I/O errors
+     */
+    public static boolean isRetriable(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NonRetriableException) return false;
+        }
+        HttpResponse response = httpResponse(error);
+        if (response == null) return true;
+        int status = response.getStatusCode();
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    private long retryAfterNanos(HttpResponse response) {
+        try {
+            String retryAfterMs = response.getHeaderValue(RETRY_AFTER_MS);
+            if (retryAfterMs != null) return Duration.ofMillis((long) Double.parseDouble(retryAfterMs)).toNanos();
+            String retryAfter = response.getHeaderValue(HttpHeaderName.RETRY_AFTER);
+            if (retryAfter != null) return Duration.ofSeconds(Long.parseLong(retryAfter.trim())).toNanos();
+        } catch (NumberFormatException e) {
+            // An HTTP date, or a malformed value: use the default cooldown
+        }
+        return cooldownNanos;
+    }
+
+    private static HttpResponse httpResponse(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException httpError && httpError.getResponse() != null) return httpError.getResponse();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.ChatResponseMetadata;
+
+/**
+ * Metadata of the responses of {@link RoutingChatModel} and {@link RoutingStreamingChatModel}, with the name of the
+ * route that served the request, e.g. to tag the token metrics with it.
+ */
+public class RoutedChatResponseMetadata extends ChatResponseMetadata {
+
+    private final String route;
+
+    private RoutedChatResponseMetadata(Builder builder) {
+        super(builder);
+        this.route = builder.route;
+    }
+
+    public String route() {
+        return route;
+    }
+
+    /**
+     * @return the response with the route added to its metadata
+     */
+    static ChatResponse withRoute(ChatResponse response, String route) {
+        ChatResponseMetadata metadata = response.metadata();
+        return ChatResponse.builder()
+                .aiMessage(response.aiMessage())
+                .metadata(new Builder()
+                        .id(metadata.id())
+                        .modelName(metadata.modelName())
+                        .tokenUsage(metadata.tokenUsage())
+                        .finishReason(metadata.finishReason())
+                        .route(route)
+                        .build())
+                .build();
+    }
+
+    private static final class Builder extends ChatResponseMetadata.Builder<Builder> {
+
+        private String route;
+
+        private Builder route(String route) {
+            this.route = route;
+            return this;
+        }
+
+        @Override
+        public RoutedChatResponseMetadata build() {
+            return new RoutedChatResponseMetadata(this);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ChatModel} sending each request to the best route of its {@link DeploymentRouter}, and to the next one
+ * when it fails with a retriable error, up to app.routing.maxAttempts routes. The route that served the response is
+ * in its {@link RoutedChatResponseMetadata}.
+ */
+public class RoutingChatModel implements ChatModel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingChatModel.class);
+
+    private final DeploymentRouter<ChatModel> router;
+
+    public RoutingChatModel(DeploymentRouter<ChatModel> router) {
+        this.router = router;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest chatRequest) {
+        var candidates = router.candidates();
+        RuntimeException failure = null;
+        for (int attempt = 0; attempt < router.maxAttempts(); attempt++) {
+            var route = candidates.get(attempt);
+            long start = route.start();
+            try {
+                ChatResponse response = route.model().chat(chatRequest);
+                route.recordLatency(start);
+                router.succeeded(route);
+                return RoutedChatResponseMetadata.withRoute(response, route.name());
+            } catch (RuntimeException e) {
+                router.failed(route, e);
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+                if (!DeploymentRouter.isRetriable(e)) break;
+                LOGGER.warn("Chat completion failed on route {}, trying the next one", route.name());
+            } finally {
+                route.end();
+            }
+        }
+        throw failure;
+    }
+}
@@ -0,0 +1,213 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StreamingChatModel} sending each request to the best route of its {@link DeploymentRouter}. The route
+ * latency is the time to the first token. A request failing before its first token is sent to the next route.
+ * When hedging is enabled and no token arrived after app.routing.hedge.delay, the request is also sent to the next
+ * route: the first attempt to stream a token wins, the other one is cancelled on its next callback by throwing from
+ * it, which makes the OpenAI client cancel its subscription. Up to app.routing.maxAttempts routes per request.
+ * Hedges are published as rag.openai.hedges, tagged won or lost. The route that served the response is in its
+ * {@link RoutedChatResponseMetadata}.
+ */
+public class RoutingStreamingChatModel implements StreamingChatModel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingStreamingChatModel.class);
+
+    private final DeploymentRouter<StreamingChatModel> router;
+    private final Duration hedgeDelay;
+    private final Scheduler scheduler = Schedulers.parallel();
+    private final Counter hedgesWon;
+    private final Counter hedgesLost;
+
+    /**
+     * @param hedgeDelay the delay without a first token before hedging, null to disable hedging
+     */
+    public RoutingStreamingChatModel(
+            DeploymentRouter<StreamingChatModel> router, Duration hedgeDelay, MeterRegistry meterRegistry) {
+        this.router = router;
+        this.hedgeDelay = hedgeDelay;
+        this.hedgesWon = meterRegistry.counter("rag.openai.hedges", "outcome", "won");
+        this.hedgesLost = meterRegistry.counter("rag.openai.hedges", "outcome", "lost");
+    }
+
+    @Override
+    public void chat(ChatRequest chatRequest, StreamingChatResponseHandler handler) {
+        new Call(chatRequest, handler).start();
+    }
+
+    /**
+     * The attempts of one request. Attempts call back from the OpenAI client threads, hence the synchronization.
+     */
+    private final class Call {
+
+        private final ChatRequest chatRequest;
+        private final StreamingChatResponseHandler handler;
+        private final List<DeploymentRoute<StreamingChatModel>> candidates = router.candidates();
+        private final List<Attempt> attempts = new ArrayList<>(2);
+        private int launched;
+        private int running;
+        private boolean hedged;
+        private boolean done;
+        private Attempt winner;
+        private Disposable hedgeTimer;
+
+        private Call(ChatRequest chatRequest, StreamingChatResponseHandler handler) {
+            this.chatRequest = chatRequest;
+            this.handler = handler;
+        }
+
+        private void start() {
+            launch(false);
+        }
+
+        private void launch(boolean hedge) {
+            Attempt attempt;
+            synchronized (this) {
+                if (done || winner != null || launched >= router.maxAttempts()) return;
+                attempt = new Attempt(candidates.get(launched++), hedge);
+                attempts.add(attempt);
+                running++;
+                hedged |= hedge;
+                if (hedgeDelay != null && launched < router.maxAttempts()) {
+                    // A retry after a failure replaces the timer of the failed attempt
+                    if (hedgeTimer != null) hedgeTimer.dispose();
+                    hedgeTimer = scheduler.schedule(this::hedge, hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+            try {
+                attempt.route.model().chat(chatRequest, attempt);
+            } catch (RuntimeException e) {
+                attempt.onError(e);
+            }
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (done || winner != null) return;
+                LOGGER.info("No token after {} ms, hedging the chat completion on another route", hedgeDelay.toMillis());
+            }
+            launch(true);
+        }
+
+        /**
+         * @return true if the attempt is the winner, i.e. the first one to call back with a token or a response
+         */
+        private synchronized boolean win(Attempt attempt) {
+            if (winner == null) {
+                winner = attempt;
+                if (hedgeTimer != null) hedgeTimer.dispose();
+                attempt.route.recordLatency(attempt.start);
+                // A losing attempt still waiting for its first token is at least that slow, record it so that a
+                // route losing every hedge doesn't stay the cheapest one
+                for (Attempt other : attempts) {
+                    if (other != attempt && !other.failed) other.route.recordLatencyAtLeast(other.start);
+                }
+                if (attempt.hedge) hedgesWon.increment();
+                else if (hedged) hedgesLost.increment();
+            }
+            return winner == attempt;
+        }
+
+        private void failed(Attempt attempt, Throwable error) {
+            boolean retry;
+            synchronized (this) {
+                running--;
+                attempt.failed = true;
+                if (winner != null && winner != attempt) return;
+                router.failed(attempt.route, error);
+                // Another attempt still running may succeed
+                if (winner == null && running > 0) return;
+                // Once tokens were forwarded the answer can't switch to another route
+                retry = winner == null && DeploymentRouter.isRetriable(error) && launched < router.maxAttempts();
+                if (!retry) {
+                    done = true;
+                    if (hedgeTimer != null) hedgeTimer.dispose();
+                }
+            }
+            if (retry) {
+                LOGGER.warn("Chat completion failed on route {}, trying the next one", attempt.route.name());
+                launch(false);
+            } else {
+                handler.onError(error);
+            }
+        }
+
+        /**
+         * The downstream handler threw, e.g. because the client went away: not a failure of the route.
+         */
+        private void aborted(Throwable error) {
+            synchronized (this) {
+                running--;
+                done = true;
+                if (hedgeTimer != null) hedgeTimer.dispose();
+            }
+            handler.onError(error);
+        }
+
+        private final class Attempt implements StreamingChatResponseHandler {
+
+            private final DeploymentRoute<StreamingChatModel> route;
+            private final boolean hedge;
+            private final long start;
+            private volatile boolean cancelled;
+            private volatile boolean aborted;
+            // Guarded by the call
+            private boolean failed;
+
+            private Attempt(DeploymentRoute<StreamingChatModel> route, boolean hedge) {
+                this.route = route;
+                this.hedge = hedge;
+                this.start = route.start();
+            }
+
+            @Override
+            public void onPartialResponse(String partialResponse) {
+                if (!win(this)) {
+                    cancelled = true;
+                    throw new CancellationException("Chat completion won by another route");
+                }
+                try {
+                    handler.onPartialResponse(partialResponse);
+                } catch (RuntimeException e) {
+                    aborted = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void onCompleteResponse(ChatResponse completeResponse) {
+                route.end();
+                if (!win(this)) return;
+                router.succeeded(route);
+                handler.onCompleteResponse(RoutedChatResponseMetadata.withRoute(completeResponse, route.name()));
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                route.end();
+                if (cancelled) return;
+                if (aborted) aborted(error);
+                else failed(this, error);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+
+/**
+ * Writes {@link ChatAppResponse} instances, the elements of the streaming chat api. Plain answer deltas, the vast
+ * majority of the streamed frames, are written by {@link ChatDeltaEncoder}. Any other response goes through an
+ * {@link ObjectWriter} prebuilt for the type, so Jackson doesn't look up the serializer for each frame.
+ * It's write only: requests are still read by the Jackson converter. Each write is timed as the serialization stage
+ * of {@link ChatMetrics}.
+ */
+public class ChatAppResponseHttpMessageConverter extends AbstractHttpMessageConverter<ChatAppResponse> {
+
+    private final ObjectWriter objectWriter;
+    private final ChatMetrics chatMetrics;
+
+    public ChatAppResponseHttpMessageConverter(ObjectMapper objectMapper, ChatMetrics chatMetrics) {
+        super(MediaType.APPLICATION_JSON);
+        this.objectWriter = objectMapper.writerFor(ChatAppResponse.class)
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.chatMetrics = chatMetrics;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return ChatAppResponse.class.equals(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected ChatAppResponse readInternal(Class<? extends ChatAppResponse> clazz, HttpInputMessage inputMessage)
+            throws HttpMessageNotReadableException {
+        throw new HttpMessageNotReadableException("ChatAppResponse is write only", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(ChatAppResponse response, HttpOutputMessage outputMessage) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (ChatDeltaEncoder.isPlainDelta(response)) {
+                ChatDeltaEncoder.writeDelta(response.delta().content(), outputMessage.getBody());
+            } else {
+                objectWriter.writeValue(outputMessage.getBody(), response);
+            }
+        } finally {
+            chatMetrics.record(ChatMetrics.Stage.SERIALIZATION, System.nanoTime() - start);
+        }
+    }
+}
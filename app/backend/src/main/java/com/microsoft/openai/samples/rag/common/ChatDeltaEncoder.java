@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import com.microsoft.openai.samples.rag.model.ResponseMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes streamed answer deltas without going through the Jackson object graph serialization.
+ * A delta frame has a fixed envelope, {"delta":{"content":"...","role":"assistant"}}, so only the token text
+ * needs to be escaped. It's escaped and UTF-8 encoded straight into a per-thread reusable buffer, which is
+ * then written to the output with a single call. The output is byte for byte what Jackson produces.
+ */
+public final class ChatDeltaEncoder {
+
+    private static final byte[] PREFIX = "{\"delta\":{\"content\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUFFIX = "\",\"role\":\"assistant\"}}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    // Buffers grown by an unusually large frame are not kept, to bound the memory held per thread
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    private ChatDeltaEncoder() {
+    }
+
+    /**
+     * @return true if the response only carries an assistant delta, as built by {@link ResponseMessageUtils#buildDelta(String)}
+     */
+    public static boolean isPlainDelta(ChatAppResponse response) {
+        return response.message() == null
+                && response.context() == null
+                && response.followupQuestions() == null
+                && response.threadId() == null
+                && response.delta() != null
+                && response.delta().content() != null
+                && ResponseMessage.ChatRole.ASSISTANT.equals(response.delta().role());
+    }
+
+    public static void writeDelta(String content, OutputStream outputStream) throws IOException {
+        // worst case is 6 bytes per char, for escaped control chars
+        int maxLength = PREFIX.length + content.length() * 6 + SUFFIX.length;
+        byte[] buffer = BUFFER.get();
+        if (buffer.length < maxLength) {
+            buffer = new byte[Math.max(maxLength, buffer.length * 2)];
+            if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) BUFFER.set(buffer);
+        }
+
+        System.arraycopy(PREFIX, 0, buffer, 0, PREFIX.length);
+        int position = encode(content, buffer, PREFIX.length);
+        System.arraycopy(SUFFIX, 0, buffer, position, SUFFIX.length);
+        outputStream.write(buffer, 0, position + SUFFIX.length);
+    }
+
+    /**
+     * Escapes the text as a JSON string body, the same way Jackson does by default, and encodes it as UTF-8.
+     * @return the position after the last written byte
+     */
+    static int encode(String text, byte[] buffer, int position) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buffer[position++] = (byte) c;
+                    continue;
+                }
+                byte shortEscape = switch (c) {
+                    case '"' -> '"';
+                    case '\\' -> '\\';
+                    case '\n' -> 'n';
+                    case '\r' -> 'r';
+                    case '\t' -> 't';
+                    case '\b' -> 'b';
+                    case '\f' -> 'f';
+                    default -> 0;
+                };
+                if (shortEscape == 0) {
+                    position = escape(c, buffer, position);
+                } else {
+                    buffer[position++] = '\\';
+                    buffer[position++] = shortEscape;
+                }
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Jackson escapes surrogates, paired or not, rather than encoding the code point as 4 UTF-8 bytes
+                position = escape(c, buffer, position);
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    private static int escape(char c, byte[] buffer, int position) {
+        buffer[position++] = '\\';
+        buffer[position++] = 'u';
+        buffer[position++] = HEX[c >> 12];
+        buffer[position++] = HEX[(c >> 8) & 0xF];
+        buffer[position++] = HEX[(c >> 4) & 0xF];
+        buffer[position++] = HEX[c & 0xF];
+        return position;
+    }
+}
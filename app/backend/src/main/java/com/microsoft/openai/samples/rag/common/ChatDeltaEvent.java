@@ -0,0 +1,36 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event of a frame written to a streamed chat response, lasting while the frame is pushed
+ * downstream. There are many per response, so the jfr/rag.jfc settings only record the ones over a threshold.
+ */
+@Name("com.microsoft.openai.samples.rag.ChatDelta")
+@Label("Chat Delta Write")
+@Category({"RAG", "Chat"})
+@Description("Frame written to a streamed chat response")
+@StackTrace(false)
+public class ChatDeltaEvent extends Event {
+
+    @Label("Request Id")
+    public String requestId;
+
+    @Label("Characters")
+    @Description("Characters of the answer in the frame")
+    public int chars;
+
+    @Label("Tokens")
+    @Description("Answer tokens merged into the frame")
+    public int tokens;
+
+    public ChatDeltaEvent(String requestId) {
+        this.requestId = requestId;
+    }
+}
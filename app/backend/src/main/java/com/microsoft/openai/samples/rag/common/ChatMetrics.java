@@ -0,0 +1,261 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import com.microsoft.openai.samples.rag.chat.langchain4j.routing.RoutedChatResponseMetadata;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.output.TokenUsage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Latency of the chat pipeline stages, published as the rag.chat.stage timer tagged with the stage name, with
+ * percentile histograms so that p99 regressions can be traced to search or OpenAI from Prometheus
+ * (/actuator/prometheus). Answer tokens are counted in rag.chat.tokens, tagged with the token type and the chat
+ * deployment, or the route that served the answer when openai.chatgpt.routes is set. When app.metrics.timingsThought is set the stage timings of each request are also returned as a
+ * "Timings" thought. The stages timed per request are also JDK Flight Recorder {@link ChatStageEvent}s.
+ * Streamed requests whose client went away are counted in rag.chat.aborted, tagged with the stage they were in,
+ * with an estimate of the tokens saved in rag.chat.aborted.tokens.
+ */
+@Component
+public class ChatMetrics {
+
+    public enum Stage {
+        KEYWORDS("keywords"),
+        EMBEDDING("embedding"),
+        SEARCH("search"),
+        // keyword extraction and search together when speculative retrieval overlaps them, search only otherwise
+        RETRIEVAL("retrieval"),
+        PROMPT("prompt"),
+        // from the request start to the first streamed answer token
+        FIRST_TOKEN("first_token"),
+        GENERATION("generation"),
+        // the follow-up questions call, when separate from the answer
+        FOLLOW_UPS("follow_ups"),
+        SERIALIZATION("serialization"),
+        HISTORY("history"),
+        TOTAL("total");
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+
+        public String tag() {
+            return tag;
+        }
+    }
+
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final AtomicLong requests = new AtomicLong();
+    private final MeterRegistry meterRegistry;
+    private final String chatDeployment;
+    private final Map<String, TokenCounters> tokenCounters = new ConcurrentHashMap<>();
+    private final DoubleAdder inputTokens = new DoubleAdder();
+    private final DoubleAdder outputTokens = new DoubleAdder();
+    private final AtomicLong answers = new AtomicLong();
+    private final Counter retrievalAborted;
+    private final Counter generationAborted;
+    private final Counter inputTokensSaved;
+    private final Counter outputTokensSaved;
+    private final boolean timingsThought;
+
+    public ChatMetrics(
+            MeterRegistry meterRegistry,
+            @Value("${openai.chatgpt.deployment}") String chatDeployment,
+            @Value("${app.metrics.timingsThought:false}") boolean timingsThought) {
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, Timer.builder("rag.chat.stage")
+                    .description("Latency of the chat pipeline stages")
+                    .tag("stage", stage.tag())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+        this.meterRegistry = meterRegistry;
+        this.chatDeployment = chatDeployment;
+        this.retrievalAborted = meterRegistry.counter("rag.chat.aborted", "stage", Stage.RETRIEVAL.tag());
+        this.generationAborted = meterRegistry.counter("rag.chat.aborted", "stage", Stage.GENERATION.tag());
+        this.inputTokensSaved = meterRegistry.counter("rag.chat.aborted.tokens", "deployment", chatDeployment, "type", "input");
+        this.outputTokensSaved = meterRegistry.counter("rag.chat.aborted.tokens", "deployment", chatDeployment, "type", "output");
+        this.timingsThought = timingsThought;
+    }
+
+    public void record(Stage stage, long nanos) {
+        timers.get(stage).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public <T> T time(Stage stage, Supplier<T> task) {
+        long start = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the tokens of an answer, tagged with the route in its {@link RoutedChatResponseMetadata} if any.
+     */
+    public void recordTokens(ChatResponse chatResponse) {
+        TokenUsage tokenUsage = chatResponse.tokenUsage();
+        if (tokenUsage == null) return;
+        String deployment = chatResponse.metadata() instanceof RoutedChatResponseMetadata routed
+                ? routed.route()
+                : chatDeployment;
+        TokenCounters counters = tokenCounters.computeIfAbsent(deployment, this::tokenCounters);
+        if (tokenUsage.inputTokenCount() != null) {
+            counters.input().increment(tokenUsage.inputTokenCount());
+            inputTokens.add(tokenUsage.inputTokenCount());
+        }
+        if (tokenUsage.outputTokenCount() != null) {
+            counters.output().increment(tokenUsage.outputTokenCount());
+            outputTokens.add(tokenUsage.outputTokenCount());
+        }
+        answers.incrementAndGet();
+    }
+
+    private TokenCounters tokenCounters(String deployment) {
+        return new TokenCounters(
+                meterRegistry.counter("rag.chat.tokens", "deployment", deployment, "type", "input"),
+                meterRegistry.counter("rag.chat.tokens", "deployment", deployment, "type", "output"));
+    }
+
+    private record TokenCounters(Counter input, Counter output) {}
+
+    /**
+     * Records a request aborted because its client went away. The tokens saved are estimated from the average
+     * answer: a request aborted before the answer generation saves its input and output tokens, one aborted during
+     * the generation saves the output tokens it didn't stream yet.
+     *
+     * @param stage RETRIEVAL if the answer generation didn't start yet, GENERATION otherwise
+     * @param streamedTokens the answer tokens streamed before the abort
+     */
+    public void recordAborted(Stage stage, int streamedTokens) {
+        long answerCount = answers.get();
+        double meanInputTokens = answerCount > 0 ? inputTokens.sum() / answerCount : 0;
+        double meanOutputTokens = answerCount > 0 ? outputTokens.sum() / answerCount : 0;
+        if (stage == Stage.GENERATION) {
+            generationAborted.increment();
+            outputTokensSaved.increment(Math.max(0, meanOutputTokens - streamedTokens));
+        } else {
+            retrievalAborted.increment();
+            inputTokensSaved.increment(meanInputTokens);
+            outputTokensSaved.increment(meanOutputTokens);
+        }
+    }
+
+    public boolean isTimingsThoughtEnabled() {
+        return timingsThought;
+    }
+
+    /**
+     * @return the timings of a new request, started now
+     */
+    public Timings start() {
+        return new Timings();
+    }
+
+    /**
+     * Stage timings of one request. Stages may be recorded from the retrieval and OpenAI client threads.
+     */
+    public final class Timings {
+
+        private final String requestId = Long.toString(requests.incrementAndGet());
+        private final long startedAt = System.nanoTime();
+        private final Map<Stage, Long> nanos = new EnumMap<>(Stage.class);
+
+        private Timings() {}
+
+        /**
+         * @return the id of the request in the flight recorder events, unique until the application restarts
+         */
+        public String requestId() {
+            return requestId;
+        }
+
+        public synchronized void record(Stage stage, long stageNanos) {
+            ChatMetrics.this.record(stage, stageNanos);
+            nanos.merge(stage, stageNanos, Long::sum);
+        }
+
+        public <T> T time(Stage stage, Supplier<T> task) {
+            return time(stage, task, null);
+        }
+
+        /**
+         * @param describe sets the sizes of the stage event from the task result, may be null
+         */
+        public <T> T time(Stage stage, Supplier<T> task, BiConsumer<ChatStageEvent, T> describe) {
+            var event = new ChatStageEvent(requestId, stage);
+            event.begin();
+            long start = System.nanoTime();
+            T value = null;
+            try {
+                value = task.get();
+                return value;
+            } finally {
+                record(stage, System.nanoTime() - start);
+                commit(event, value, describe);
+            }
+        }
+
+        /**
+         * @return the mono, recording the stage from its subscription to its value
+         */
+        public <T> Mono<T> time(Stage stage, Mono<T> mono) {
+            return time(stage, mono, null);
+        }
+
+        /**
+         * @param describe sets the sizes of the stage event from the mono value, may be null
+         */
+        public <T> Mono<T> time(Stage stage, Mono<T> mono, BiConsumer<ChatStageEvent, T> describe) {
+            return Mono.defer(() -> {
+                var event = new ChatStageEvent(requestId, stage);
+                event.begin();
+                long start = System.nanoTime();
+                return mono.doOnSuccess(value -> {
+                    record(stage, System.nanoTime() - start);
+                    commit(event, value, describe);
+                });
+            });
+        }
+
+        private <T> void commit(ChatStageEvent event, T value, BiConsumer<ChatStageEvent, T> describe) {
+            if (!event.shouldCommit()) return;
+            if (describe != null && value != null) describe.accept(event, value);
+            event.commit();
+        }
+
+        public long sinceStart() {
+            return System.nanoTime() - startedAt;
+        }
+
+        public void complete() {
+            record(Stage.TOTAL, sinceStart());
+        }
+
+        /**
+         * @return the recorded stages in milliseconds, in pipeline order
+         */
+        public synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            nanos.forEach((stage, stageNanos) -> map.put(stage.tag() + "_ms", Math.round(stageNanos / 100_000.0) / 10.0));
+            return map;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event of a chat pipeline stage: keyword extraction, retrieval or prompt build. Disabled
+ * unless a recording enables it, e.g. with the jfr/rag.jfc settings, so it costs next to nothing otherwise.
+ */
+@Name("com.microsoft.openai.samples.rag.ChatStage")
+@Label("Chat Stage")
+@Category({"RAG", "Chat"})
+@Description("Stage of the chat pipeline")
+@StackTrace(false)
+public class ChatStageEvent extends Event {
+
+    @Label("Request Id")
+    public String requestId;
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Characters")
+    @Description("Characters of the keywords, of the retrieved sources or of the prompt")
+    public long chars;
+
+    @Label("Sources")
+    public int sources;
+
+    @Label("Tokens")
+    @Description("Tokens of the prompt")
+    public int tokens;
+
+    public ChatStageEvent(String requestId, ChatMetrics.Stage stage) {
+        this.requestId = requestId;
+        this.stage = stage.tag();
+    }
+}
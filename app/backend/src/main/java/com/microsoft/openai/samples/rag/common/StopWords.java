@@ -0,0 +1,32 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import java.util.Set;
+
+/**
+ * English stop words, ignored when the terms of questions and search queries are extracted or compared.
+ */
+public final class StopWords {
+
+    private static final Set<String> WORDS = Set.of(
+            "a", "about", "above", "after", "again", "all", "am", "an", "and", "any", "are", "as", "at",
+            "be", "because", "been", "before", "being", "below", "between", "both", "but", "by",
+            "can", "could", "did", "do", "does", "doing", "down", "during", "each", "few", "for", "from", "further",
+            "had", "has", "have", "having", "he", "her", "here", "hers", "him", "his", "how",
+            "i", "if", "in", "into", "is", "it", "it's", "its", "itself", "just", "me", "more", "most", "my",
+            "no", "nor", "not", "now", "of", "off", "on", "once", "only", "or", "other", "our", "ours", "out", "over", "own",
+            "please", "same", "she", "should", "so", "some", "such", "tell",
+            "than", "that", "the", "their", "theirs", "them", "then", "there", "these", "they", "this", "those",
+            "through", "to", "too", "under", "until", "up", "very", "was", "we", "were", "what", "when", "where",
+            "which", "while", "who", "whom", "why", "will", "with", "would", "you", "your", "yours");
+
+    private StopWords() {
+    }
+
+    /**
+     * @param term a lower-cased term
+     */
+    public static boolean contains(String term) {
+        return WORDS.contains(term);
+    }
+}
@@ -17,5 +17,6 @@ public record AppConfigurationProperties(
         boolean showSpeechOutputBrowser,
         boolean showSpeechOutputAzure,
         boolean showChatHistoryBrowser,
-        boolean showChatHistoryCosmos
+        boolean showChatHistoryCosmos,
+        boolean serverConversationEnabled
 ) {}
@@ -4,22 +4,87 @@ package com.microsoft.openai.samples.rag.config;
 
 import com.azure.ai.openai.OpenAIAsyncClient;
 import com.azure.ai.openai.OpenAIClient;
+import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.http.policy.HttpLogDetailLevel;
+import com.azure.core.http.policy.HttpLogOptions;
+import com.microsoft.openai.samples.rag.chat.langchain4j.ConversationSummaryAgent;
+import com.microsoft.openai.samples.rag.chat.langchain4j.FollowUpQuestionsAgent;
+import com.microsoft.openai.samples.rag.chat.langchain4j.routing.ChatDeploymentEndpoint;
+import com.microsoft.openai.samples.rag.chat.langchain4j.routing.DeploymentRoute;
+import com.microsoft.openai.samples.rag.chat.langchain4j.routing.DeploymentRouter;
+import com.microsoft.openai.samples.rag.chat.langchain4j.routing.RoutingChatModel;
+import com.microsoft.openai.samples.rag.chat.langchain4j.routing.RoutingStreamingChatModel;
+import com.microsoft.openai.samples.rag.retrieval.CachingEmbeddingModel;
 import dev.langchain4j.model.azure.AzureOpenAiChatModel;
 import dev.langchain4j.model.azure.AzureOpenAiEmbeddingModel;
 import dev.langchain4j.model.azure.AzureOpenAiStreamingChatModel;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Langchain4j models. When openai.chatgpt.routes lists more chat deployments, the chat models route each request
+ * across them and the openai.chatgpt.deployment one, see {@link DeploymentRouter}.
+ * The models of the openai.service deployments use the clients of {@link OpenAIConfiguration}, the routes clients
+ * of their own with the same logging.
+ */
 @Configuration
 public class Langchain4JConfiguration {
 
+    @Value("${openai.service}")
+    private String openAIServiceName;
+
     @Value("${openai.chatgpt.deployment}")
     private String gptChatDeploymentModelId;
 
+    @Value("${openai.chatgpt.routes:}")
+    private String chatRoutes;
+
+    @Value("${openai.chatgpt.routes.apiKey:}")
+    private String chatRoutesApiKey;
+
+    @Value("${openai.tracing.enabled:false}")
+    private boolean openAITracingEnabled;
+
+    @Value("${app.routing.ewmaAlpha:0.2}")
+    private double routingEwmaAlpha;
+
+    @Value("${app.routing.explore:0.05}")
+    private double routingExplore;
+
+    @Value("${app.routing.cooldown:PT10S}")
+    private Duration routingCooldown;
+
+    @Value("${app.routing.maxAttempts:2}")
+    private int routingMaxAttempts;
+
+    @Value("${app.routing.hedge.enabled:false}")
+    private boolean hedgeEnabled;
+
+    @Value("${app.routing.hedge.delay:PT2S}")
+    private Duration hedgeDelay;
+
+    @Value("${openai.followup.deployment:}")
+    private String followUpDeployment;
+
+    @Value("${app.followup.separateCall:true}")
+    private boolean followUpSeparateCall;
+
+    @Value("${openai.summary.deployment:}")
+    private String summaryDeployment;
+
     @Value("${openai.embedding.deployment}")
     private String azureOpenAIDeploymentName;
 
@@ -32,37 +97,123 @@ public class Langchain4JConfiguration {
     @Value("${openai.requests.maxTokens}")
     private Integer maxTokens;
 
+    @Value("${app.embedding.cache.enabled:true}")
+    private boolean embeddingCacheEnabled;
+
+    @Value("${app.embedding.cache.maxBytes:67108864}")
+    private long embeddingCacheMaxBytes;
+
+    @Value("${app.embedding.cache.ttl:PT0S}")
+    private Duration embeddingCacheTtl;
+
+    @Bean
+    public ChatModel chatLanguageModel(
+            OpenAIClient azureOpenAICLient, TokenCredential tokenCredential, MeterRegistry meterRegistry) {
+        var chatModel = chatModel(azureOpenAICLient, gptChatDeploymentModelId);
+        var endpoints = ChatDeploymentEndpoint.parse(chatRoutes);
+        if (endpoints.isEmpty()) return chatModel;
+
+        var routes = routes(chatModel, endpoints,
+                endpoint -> chatModel(clientBuilder(endpoint, tokenCredential).buildClient(), endpoint.deployment()));
+        return new RoutingChatModel(new DeploymentRouter<>(
+                "sync", routes, meterRegistry, routingExplore, routingCooldown, routingMaxAttempts));
+    }
+
+    @Bean
+    public StreamingChatModel chatLanguageModelAsync(
+            OpenAIAsyncClient openAIAsyncClient, TokenCredential tokenCredential, MeterRegistry meterRegistry) {
+        var streamingChatModel = streamingChatModel(openAIAsyncClient, gptChatDeploymentModelId);
+        var endpoints = ChatDeploymentEndpoint.parse(chatRoutes);
+        if (endpoints.isEmpty()) return streamingChatModel;
+
+        var routes = routes(streamingChatModel, endpoints, endpoint -> streamingChatModel(
+                clientBuilder(endpoint, tokenCredential).buildAsyncClient(), endpoint.deployment()));
+        return new RoutingStreamingChatModel(
+                new DeploymentRouter<>("stream", routes, meterRegistry, routingExplore, routingCooldown, routingMaxAttempts),
+                hedgeEnabled ? hedgeDelay : null,
+                meterRegistry);
+    }
+
+    /**
+     * The follow-up questions use the streaming chat model, unless openai.followup.deployment names a smaller
+     * deployment of the openai.service resource.
+     */
     @Bean
-    public ChatModel chatLanguageModel(OpenAIClient azureOpenAICLient, OpenAIAsyncClient asyncOpenAIClient) {
+    public FollowUpQuestionsAgent followUpQuestionsAgent(
+            StreamingChatModel streamingChatModel, OpenAIAsyncClient openAIAsyncClient) {
+        if (followUpDeployment.isBlank()) return new FollowUpQuestionsAgent(streamingChatModel, followUpSeparateCall);
+        return new FollowUpQuestionsAgent(
+                streamingChatModel(openAIAsyncClient, followUpDeployment), followUpSeparateCall);
+    }
+
+    /**
+     * The conversation summaries use the streaming chat model, unless openai.summary.deployment names a smaller
+     * deployment of the openai.service resource.
+     */
+    @Bean
+    public ConversationSummaryAgent conversationSummaryAgent(
+            StreamingChatModel streamingChatModel, OpenAIAsyncClient openAIAsyncClient) {
+        if (summaryDeployment.isBlank()) return new ConversationSummaryAgent(streamingChatModel);
+        return new ConversationSummaryAgent(streamingChatModel(openAIAsyncClient, summaryDeployment));
+    }
 
+    private ChatModel chatModel(OpenAIClient openAIClient, String deployment) {
         return AzureOpenAiChatModel.builder()
-                .openAIClient(azureOpenAICLient)
-                .deploymentName(gptChatDeploymentModelId)
+                .openAIClient(openAIClient)
+                .deploymentName(deployment)
                 .logRequestsAndResponses(true)
                 .temperature(temperature)
                 .maxTokens(maxTokens)
                 .build();
     }
 
-    @Bean
-    public StreamingChatModel chatLanguageModelAsync(OpenAIClient openAIClient,OpenAIAsyncClient asyncOpenAIClient) {
+    /**
+     * Streamed completions run on the non-blocking async client. The model is built with its constructor: given an
+     * OpenAIClient the builder prefers it over the async one, and without it ignores openAIAsyncClient.
+     */
+    private StreamingChatModel streamingChatModel(OpenAIAsyncClient openAIAsyncClient, String deployment) {
+        return new AzureOpenAiStreamingChatModel(null, openAIAsyncClient, deployment, null, maxTokens, temperature,
+                null, null, null, null, null, null, null, null, null, null, null, null, List.of(), Set.of());
+    }
 
-        return AzureOpenAiStreamingChatModel.builder()
-                //.openAIAsyncClient(asyncOpenAIClient)
-                .openAIClient(openAIClient)
-                .deploymentName(gptChatDeploymentModelId)
-                .logRequestsAndResponses(true)
-                .build();
+    /**
+     * @return the routes of the openai.chatgpt.deployment model and of the openai.chatgpt.routes endpoints
+     */
+    private <M> List<DeploymentRoute<M>> routes(
+            M model, List<ChatDeploymentEndpoint> endpoints, Function<ChatDeploymentEndpoint, M> endpointModel) {
+        List<DeploymentRoute<M>> routes = new ArrayList<>(endpoints.size() + 1);
+        var primary = ChatDeploymentEndpoint.of(gptChatDeploymentModelId, openAIServiceName);
+        routes.add(new DeploymentRoute<>(primary.name(), model, routingEwmaAlpha));
+        for (var endpoint : endpoints) {
+            routes.add(new DeploymentRoute<>(endpoint.name(), endpointModel.apply(endpoint), routingEwmaAlpha));
+        }
+        return routes;
     }
 
+    /**
+     * The api key, when set, authenticates the routes on resources the application identity has no role on.
+     * With openai.tracing.enabled the requests and responses are logged, as by the openai.service clients.
+     */
+    private OpenAIClientBuilder clientBuilder(ChatDeploymentEndpoint endpoint, TokenCredential tokenCredential) {
+        var builder = new OpenAIClientBuilder().endpoint(endpoint.endpoint());
+        if (openAITracingEnabled) {
+            builder.httpLogOptions(new HttpLogOptions().setLogLevel(HttpLogDetailLevel.BODY_AND_HEADERS));
+        }
+        return chatRoutesApiKey.isBlank()
+                ? builder.credential(tokenCredential)
+                : builder.credential(new AzureKeyCredential(chatRoutesApiKey));
+    }
 
     @Bean
-    public EmbeddingModel embeddingModel(OpenAIClient openAIClient) {
-        return AzureOpenAiEmbeddingModel.builder()
+    public EmbeddingModel embeddingModel(OpenAIClient openAIClient, MeterRegistry meterRegistry) {
+        var embeddingModel = AzureOpenAiEmbeddingModel.builder()
                 .openAIClient(openAIClient)
                 .deploymentName(azureOpenAIDeploymentName)
                 .dimensions(dimensions)
                 .build();
+
+        if (!embeddingCacheEnabled) return embeddingModel;
+        return new CachingEmbeddingModel(embeddingModel, meterRegistry, embeddingCacheMaxBytes, embeddingCacheTtl);
     }
 
 
@@ -0,0 +1,29 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.openai.samples.rag.common.ChatAppResponseHttpMessageConverter;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebMvcConfiguration implements WebMvcConfigurer {
+
+    private final ObjectMapper objectMapper;
+    private final ChatMetrics chatMetrics;
+
+    public WebMvcConfiguration(ObjectMapper objectMapper, ChatMetrics chatMetrics) {
+        this.objectMapper = objectMapper;
+        this.chatMetrics = chatMetrics;
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        // Ahead of the Jackson converter, which would otherwise serialize every streamed chat delta
+        converters.add(0, new ChatAppResponseHttpMessageConverter(objectMapper, chatMetrics));
+    }
+}
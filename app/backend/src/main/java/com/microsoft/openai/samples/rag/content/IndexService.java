@@ -1,6 +1,8 @@
 package com.microsoft.openai.samples.rag.content;
 
+import com.microsoft.openai.samples.rag.chat.langchain4j.cache.SemanticAnswerCache;
 import com.microsoft.openai.samples.rag.proxy.BlobStorageProxy;
+import com.microsoft.openai.samples.rag.retrieval.SessionRetrievalMemory;
 import com.microsoft.openai.samples.rag.security.LoggedUserService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,12 +25,16 @@ public class IndexService {
     private final String indexingAPIUrl;
     private final LoggedUserService loggedUserService;
     private final BlobStorageProxy blobStorageProxy;
+    private final SemanticAnswerCache semanticAnswerCache;
+    private final SessionRetrievalMemory sessionRetrievalMemory;
 
-    public IndexService(WebClient.Builder webClientBuilder, @Value("${indexing.api.url}") String indexingAPIUrl, LoggedUserService loggedUserService, BlobStorageProxy blobStorageProxy) {
+    public IndexService(WebClient.Builder webClientBuilder, @Value("${indexing.api.url}") String indexingAPIUrl, LoggedUserService loggedUserService, BlobStorageProxy blobStorageProxy, SemanticAnswerCache semanticAnswerCache, SessionRetrievalMemory sessionRetrievalMemory) {
         this.webClientBuilder = webClientBuilder;
         this.indexingAPIUrl = indexingAPIUrl;
         this.loggedUserService = loggedUserService;
         this.blobStorageProxy = blobStorageProxy;
+        this.semanticAnswerCache = semanticAnswerCache;
+        this.sessionRetrievalMemory = sessionRetrievalMemory;
     }
 
     public void synchAddFile(String filename, byte [] fileContent) {
@@ -67,6 +73,9 @@ public class IndexService {
                 throw new RuntimeException("Error indexing file [%s]".formatted(filename), ex);
         }
 
+        // The new document may change any answer the user can get, or anyone's when it's not restricted to a user
+        semanticAnswerCache.invalidateUser(loggedUserService.getLoggedUser().entraId());
+        sessionRetrievalMemory.invalidateUser(loggedUserService.getLoggedUser().entraId());
         LOGGER.info("File {} successfully indexed", filename);
     }
 
@@ -88,6 +97,8 @@ public class IndexService {
         } catch (Exception ex) {
             throw new RuntimeException("Error deleting file [%s] from the index".formatted(filename), ex);
         }
+        semanticAnswerCache.invalidateFile(entraOid, filename);
+        sessionRetrievalMemory.invalidateFile(entraOid, filename);
 
         try {
             boolean result = blobStorageProxy.deleteIfExistsFileFromFolder(folderName,filename);
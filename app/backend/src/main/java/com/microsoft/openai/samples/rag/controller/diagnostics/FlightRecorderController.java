@@ -0,0 +1,140 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.controller.diagnostics;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Starts and dumps a JDK Flight Recorder recording on demand, to profile a running instance without attaching an
+ * agent or opening a shell on it. The recording uses the JDK default settings plus the jfr/rag.jfc ones enabling the
+ * chat events. One recording at a time, stopped after at most app.jfr.maxDuration and bounded to app.jfr.maxSize bytes.
+ * Disabled unless app.jfr.endpoint.enabled is set, since recordings hold stack traces and request data.
+ */
+@RestController
+@RequestMapping("/api/diagnostics/jfr")
+@ConditionalOnProperty(name = "app.jfr.endpoint.enabled", havingValue = "true")
+public class FlightRecorderController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecorderController.class);
+    static final String SETTINGS = "jfr/rag.jfc";
+
+    private final Duration maxDuration;
+    private final long maxSize;
+    private Recording recording;
+
+    public FlightRecorderController(
+            @Value("${app.jfr.maxDuration:PT30M}") Duration maxDuration,
+            @Value("${app.jfr.maxSize:104857600}") long maxSize) {
+        this.maxDuration = maxDuration;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Starts a recording, unless one is already running.
+     *
+     * @param durationSeconds the duration of the recording, capped to app.jfr.maxDuration
+     */
+    @PostMapping("/start")
+    public synchronized ResponseEntity<Map<String, Object>> start(
+            @RequestParam(defaultValue = "300") long durationSeconds) throws IOException, ParseException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(status());
+        }
+        if (recording != null) recording.close();
+
+        Map<String, String> settings = new HashMap<>(Configuration.getConfiguration("default").getSettings());
+        try (var reader = new InputStreamReader(new ClassPathResource(SETTINGS).getInputStream(), StandardCharsets.UTF_8)) {
+            settings.putAll(Configuration.create(reader).getSettings());
+        }
+
+        Duration duration = Duration.ofSeconds(durationSeconds);
+        recording = new Recording(settings);
+        recording.setName("rag-on-demand");
+        recording.setToDisk(true);
+        recording.setMaxSize(maxSize);
+        recording.setDuration(duration.compareTo(maxDuration) > 0 ? maxDuration : duration);
+        recording.start();
+        LOGGER.info("Flight recording started for {}", recording.getDuration());
+        return ResponseEntity.ok(status());
+    }
+
+    @PostMapping("/stop")
+    public synchronized ResponseEntity<Map<String, Object>> stop() {
+        if (recording == null) return ResponseEntity.notFound().build();
+        if (recording.getState() == RecordingState.RUNNING) recording.stop();
+        return ResponseEntity.ok(status());
+    }
+
+    /**
+     * Downloads the data recorded so far, whether the recording is running or stopped.
+     */
+    @GetMapping("/dump")
+    public synchronized ResponseEntity<InputStreamResource> dump() throws IOException {
+        if (recording == null || recording.getState() == RecordingState.CLOSED) return ResponseEntity.notFound().build();
+
+        Path file = Files.createTempFile("rag-", ".jfr");
+        try {
+            recording.dump(file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        LOGGER.info("Flight recording dumped, {} bytes", Files.size(file));
+
+        // The temporary file is deleted once the response is written
+        return ResponseEntity.ok()
+                .header("Content-Disposition", "attachment; filename=rag-%d.jfr".formatted(Instant.now().getEpochSecond()))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(Files.size(file))
+                .body(new InputStreamResource(Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE)));
+    }
+
+    @GetMapping
+    public synchronized ResponseEntity<Map<String, Object>> get() {
+        if (recording == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(status());
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (recording != null) recording.close();
+    }
+
+    private Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", recording.getState().name());
+        status.put("start", recording.getStartTime());
+        status.put("duration", recording.getDuration());
+        status.put("size", recording.getSize());
+        return status;
+    }
+}
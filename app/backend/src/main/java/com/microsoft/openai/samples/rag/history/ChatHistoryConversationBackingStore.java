@@ -0,0 +1,52 @@
+package com.microsoft.openai.samples.rag.history;
+
+import com.microsoft.openai.samples.rag.chat.langchain4j.conversation.ConversationBackingStore;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loads the conversations from the Cosmos DB chat history, which the client saves under the session_state after each
+ * answer.
+ */
+@Component
+@ConditionalOnProperty(name = "app.showChatHistoryCosmos", havingValue = "true")
+public class ChatHistoryConversationBackingStore implements ConversationBackingStore {
+
+    private final ChatHistoryService service;
+
+    public ChatHistoryConversationBackingStore(ChatHistoryService service) {
+        this.service = service;
+    }
+
+    @Override
+    public List<ChatMessage> load(String userId, String sessionState) {
+        List<MessagePair> messagePairs = new ArrayList<>();
+        for (ChatHistoryItem item : service.getSessionMessages(userId, sessionState)) {
+            if (item instanceof MessagePair mp && mp.getResponse() != null && mp.getResponse().message() != null) {
+                messagePairs.add(mp);
+            }
+        }
+        if (messagePairs.isEmpty()) return null;
+
+        // Message pair ids are the session id followed by the index of the pair
+        messagePairs.sort(Comparator.comparingInt(ChatHistoryConversationBackingStore::index));
+        List<ChatMessage> conversation = new ArrayList<>();
+        for (MessagePair mp : messagePairs) {
+            conversation.add(UserMessage.from(mp.getQuestion()));
+            conversation.add(AiMessage.from(mp.getResponse().message().content()));
+        }
+        return conversation;
+    }
+
+    private static int index(MessagePair messagePair) {
+        String id = messagePair.getId();
+        return Integer.parseInt(id.substring(id.lastIndexOf('-') + 1));
+    }
+}
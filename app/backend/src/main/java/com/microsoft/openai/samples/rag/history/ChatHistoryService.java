@@ -4,6 +4,7 @@ import com.azure.cosmos.CosmosAsyncClient;
 import com.azure.cosmos.CosmosAsyncDatabase;
 import com.azure.cosmos.CosmosAsyncContainer;
 import com.azure.cosmos.models.*;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
@@ -16,15 +17,18 @@ public class ChatHistoryService {
     private final String databaseName;
     private final ChatHistoryRepository repository;
     private final String chatHistoryItemContainerName;
+    private final ChatMetrics chatMetrics;
 
     public ChatHistoryService(CosmosAsyncClient cosmosAsyncClient,
                               @Value("${app.cosmosdb.databaseName}") String databaseName,
                               @Value("${app.cosmosdb.containerName}") String chatHistoryItemContainerName,
-                              ChatHistoryRepository repository) {
+                              ChatHistoryRepository repository,
+                              ChatMetrics chatMetrics) {
         this.cosmosAsyncClient = cosmosAsyncClient;
         this.databaseName = databaseName;
         this.repository = repository;
         this.chatHistoryItemContainerName = chatHistoryItemContainerName;
+        this.chatMetrics = chatMetrics;
     }
 
     public void saveSessionAndMessages(Session session, List<MessagePair> messagePairs) {
@@ -44,7 +48,8 @@ public class ChatHistoryService {
             }
         }
         // Execute batch for session and messages
-        CosmosBatchResponse response = chatHistoryItemContainer.executeCosmosBatch(batch).block();
+        CosmosBatchResponse response = chatMetrics.time(ChatMetrics.Stage.HISTORY,
+            () -> chatHistoryItemContainer.executeCosmosBatch(batch).block());
         if (response == null || !response.isSuccessStatusCode()) {
             throw new RuntimeException("Failed to upsert chat history items: " +
                 (response != null ? response.getDiagnostics().toString() : "null response"));
@@ -1,10 +1,13 @@
 // Copyright (c) Microsoft. All rights reserved.
 package com.microsoft.openai.samples.rag.model;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import java.util.List;
 
 public record ChatAppRequest(
         List<ResponseMessage> messages,
         ChatAppRequestContext context,
         boolean stream,
-        String approach) {}
+        String approach,
+        @JsonProperty("session_state") String sessionState) {}
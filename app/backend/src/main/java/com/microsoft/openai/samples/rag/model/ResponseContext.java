@@ -7,5 +7,10 @@ import java.util.List;
 
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
-public record ResponseContext(ResponseDataPoint data_points,List<ResponseThought> thoughts, List<String> followup_questions) {}
+public record ResponseContext(ResponseDataPoint data_points,List<ResponseThought> thoughts, List<String> followup_questions, String thoughts_id) {
+
+    public ResponseContext(ResponseDataPoint data_points, List<ResponseThought> thoughts, List<String> followup_questions) {
+        this(data_points, thoughts, followup_questions, null);
+    }
+}
 
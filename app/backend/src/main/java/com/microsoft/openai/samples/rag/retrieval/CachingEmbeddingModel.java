@@ -0,0 +1,204 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@link EmbeddingModel} decorator caching the embeddings of the search queries, which repeat a lot across users
+ * asking the same handbook questions. Entries are keyed on the normalized text (NFKC, collapsed whitespace). Case
+ * is kept, since the embedding model is case sensitive and e.g. "US" and "us" get different vectors. The vectors
+ * are stored as float16, half the memory of the floats with no visible effect on cosine similarity ranking.
+ * The cache is bounded by app.embedding.cache.maxBytes with LRU eviction, entries optionally expire after
+ * app.embedding.cache.ttl. Lookups are published as rag.embedding.cache.requests, tagged hit or miss, and the
+ * overall ratio as rag.embedding.cache.hit.ratio.
+ */
+public class CachingEmbeddingModel implements EmbeddingModel {
+
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+    // Approximate per entry overhead: map node, key string and entry object headers
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private record Entry(short[] vector, long expiresAt, int bytes) {}
+
+    private final EmbeddingModel delegate;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * @param ttl zero or negative to keep entries until they are evicted
+     */
+    public CachingEmbeddingModel(EmbeddingModel delegate, MeterRegistry meterRegistry, long maxBytes, Duration ttl) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl == null || ttl.isNegative() || ttl.isZero() ? 0 : ttl.toNanos();
+        this.hits = meterRegistry.counter("rag.embedding.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("rag.embedding.cache.requests", "result", "miss");
+        meterRegistry.gauge("rag.embedding.cache.size", this, cache -> cache.size());
+        meterRegistry.gauge("rag.embedding.cache.bytes", this, cache -> cache.bytes());
+        meterRegistry.gauge("rag.embedding.cache.hit.ratio", this, cache -> cache.hitRatio());
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> textSegments) {
+        List<Embedding> embeddings = new ArrayList<>(textSegments.size());
+        List<TextSegment> missing = new ArrayList<>();
+        List<Integer> missingIndexes = new ArrayList<>();
+
+        for (int i = 0; i < textSegments.size(); i++) {
+            Embedding cached = get(normalize(textSegments.get(i).text()));
+            embeddings.add(cached);
+            if (cached == null) {
+                missing.add(textSegments.get(i));
+                missingIndexes.add(i);
+            }
+        }
+        hits.increment(textSegments.size() - missing.size());
+        if (missing.isEmpty()) return Response.from(embeddings);
+
+        misses.increment(missing.size());
+        Response<List<Embedding>> response = delegate.embedAll(missing);
+        for (int i = 0; i < missing.size(); i++) {
+            Embedding embedding = response.content().get(i);
+            embeddings.set(missingIndexes.get(i), embedding);
+            put(normalize(missing.get(i).text()), embedding);
+        }
+        return Response.from(embeddings, response.tokenUsage(), response.finishReason());
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long bytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public double hitRatio() {
+        double requests = hits.count() + misses.count();
+        return requests == 0 ? 0 : hits.count() / requests;
+    }
+
+    static String normalize(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC);
+        return WHITESPACES.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    private Embedding get(String key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt() != 0 && System.nanoTime() - entry.expiresAt() > 0) {
+                remove(key);
+                entry = null;
+            }
+        }
+        return entry == null ? null : new Embedding(toFloats(entry.vector()));
+    }
+
+    private void put(String key, Embedding embedding) {
+        short[] vector = toHalves(embedding.vector());
+        int entryBytes = vector.length * Short.BYTES + key.length() * 2 + ENTRY_OVERHEAD_BYTES;
+        if (entryBytes > maxBytes) return;
+
+        long expiresAt = ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos;
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, new Entry(vector, expiresAt, entryBytes));
+            bytes += entryBytes;
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes();
+                eldest.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) bytes -= previous.bytes();
+    }
+
+    private static short[] toHalves(float[] vector) {
+        short[] halves = new short[vector.length];
+        for (int i = 0; i < vector.length; i++) halves[i] = toHalf(vector[i]);
+        return halves;
+    }
+
+    private static float[] toFloats(short[] halves) {
+        float[] vector = new float[halves.length];
+        for (int i = 0; i < halves.length; i++) vector[i] = toFloat(halves[i]);
+        return vector;
+    }
+
+    /**
+     * IEEE 754 binary16 conversion with round to nearest even, as Float.floatToFloat16 in Java 20.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (floatExponent == 0xff) return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+
+        int exponent = floatExponent - 127 + 15;
+        if (exponent >= 0x1f) return (short) (sign | 0x7c00);
+        if (exponent <= 0) {
+            // subnormal half, or zero when too small
+            if (exponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+
+        int half = (exponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+        // a carry out of the mantissa correctly bumps the exponent, up to infinity
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) half++;
+        return (short) (sign | half);
+    }
+
+    static float toFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+
+        if (exponent == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.azure.search.documents.SearchClient;
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.approaches.RetrievalMode;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of {@link SearchContentRetriever} instances keyed by the retrieval parameters and
+ * the security filter shape. The per-user filter values (oid, excluded category) are bound to the
+ * cached retriever for each request, so they never cause a new retriever to be built.
+ * Cache hits and misses are published as the rag.retriever.cache.requests metric.
+ */
+@Component
+public class ContentRetrieverCache {
+
+    private record Key(RetrievalMode retrievalMode, boolean semanticRanker, int top, float minScore,
+                       SearchFilterShape filterShape) {}
+
+    private final SearchClient searchClient;
+    private final EmbeddingModel embeddingModel;
+    private final MultiQueryRetriever multiQueryRetriever;
+    private final SourceDiversifier sourceDiversifier;
+    private final ChatMetrics chatMetrics;
+    private final boolean enableGlobalDocumentAccess;
+    private final Map<Key, SearchContentRetriever> retrievers;
+    private final Counter hits;
+    private final Counter misses;
+
+    public ContentRetrieverCache(
+            SearchClient searchClient,
+            EmbeddingModel embeddingModel,
+            MeterRegistry meterRegistry,
+            MultiQueryRetriever multiQueryRetriever,
+            SourceDiversifier sourceDiversifier,
+            ChatMetrics chatMetrics,
+            @Value("${app.enableGlobalDocumentAccess:true}") boolean enableGlobalDocumentAccess,
+            @Value("${app.retrieval.retrieverCacheMaxSize:64}") int maxSize) {
+        this.searchClient = searchClient;
+        this.embeddingModel = embeddingModel;
+        this.multiQueryRetriever = multiQueryRetriever;
+        this.sourceDiversifier = sourceDiversifier;
+        this.chatMetrics = chatMetrics;
+        this.enableGlobalDocumentAccess = enableGlobalDocumentAccess;
+        this.retrievers = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SearchContentRetriever> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.hits = meterRegistry.counter("rag.retriever.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("rag.retriever.cache.requests", "result", "miss");
+        meterRegistry.gauge("rag.retriever.cache.size", this, cache -> cache.size());
+    }
+
+    /**
+     * @return a retriever bound to the security filter of the given user and the options excluded category,
+     * decorated with the configured {@link MultiQueryRetriever} strategy
+     */
+    public ContentRetriever get(RAGOptions options, String userId) {
+        var filterShape = SearchFilterShape.of(userId, options.getExcludeCategory(), enableGlobalDocumentAccess);
+        var key = new Key(
+                options.getRetrievalMode(),
+                options.isSemanticRanker(),
+                options.getTop(),
+                options.getMinimumSearchScore(),
+                filterShape);
+
+        return multiQueryRetriever.decorate(getOrCreate(key).bind(userId, options.getExcludeCategory()));
+    }
+
+    public int size() {
+        synchronized (retrievers) {
+            return retrievers.size();
+        }
+    }
+
+    private SearchContentRetriever getOrCreate(Key key) {
+        synchronized (retrievers) {
+            var retriever = retrievers.get(key);
+            if (retriever != null) {
+                hits.increment();
+                return retriever;
+            }
+            misses.increment();
+            retriever = new SearchContentRetriever(
+                    searchClient,
+                    embeddingModel,
+                    key.retrievalMode(),
+                    key.semanticRanker(),
+                    key.top(),
+                    key.minScore(),
+                    key.filterShape(),
+                    sourceDiversifier,
+                    chatMetrics);
+            retrievers.put(key, retriever);
+            return retriever;
+        }
+    }
+}
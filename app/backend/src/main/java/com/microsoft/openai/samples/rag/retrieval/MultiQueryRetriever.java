@@ -0,0 +1,202 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.microsoft.openai.samples.rag.approaches.RetrievalStrategy;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Multi-query retrieval strategy, enabled with app.retrieval.strategy=multiQuery. Each search runs with up to
+ * app.retrieval.multiQuery.maxVariants variants of the question: the generated keywords, the raw user question
+ * (read from the query metadata) and its sub-questions when it asks several things at once. The variants are
+ * searched concurrently on the {@link RetrievalExecutor}, the first one on the calling thread, and their ranked
+ * lists are fused with reciprocal rank fusion: score(doc) = sum of 1 / (k + rank) over the lists.
+ * A variant not done within app.retrieval.multiQuery.timeoutMs is left out of the fusion, so latency stays close
+ * to a single search. Variant outcomes are published as rag.retrieval.multiquery.variants, tagged ok, timeout or
+ * error.
+ */
+@Component
+public class MultiQueryRetriever {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiQueryRetriever.class);
+    private static final Pattern SUB_QUESTION_SEPARATOR =
+            Pattern.compile("[?!;]+|\\.\\s+|\\s+(?:and also|and|as well as)\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+    private final RetrievalExecutor retrievalExecutor;
+    private final RetrievalStrategy strategy;
+    private final int maxVariants;
+    private final boolean subQuestions;
+    private final int minSubQuestionTerms;
+    private final long timeoutMs;
+    private final int rrfK;
+    private final Counter ok;
+    private final Counter timeouts;
+    private final Counter errors;
+
+    public MultiQueryRetriever(
+            RetrievalExecutor retrievalExecutor,
+            MeterRegistry meterRegistry,
+            @Value("${app.retrieval.strategy:single}") RetrievalStrategy strategy,
+            @Value("${app.retrieval.multiQuery.maxVariants:4}") int maxVariants,
+            @Value("${app.retrieval.multiQuery.subQuestions:true}") boolean subQuestions,
+            @Value("${app.retrieval.multiQuery.minSubQuestionTerms:3}") int minSubQuestionTerms,
+            @Value("${app.retrieval.multiQuery.timeoutMs:3000}") long timeoutMs,
+            @Value("${app.retrieval.multiQuery.rrfK:60}") int rrfK) {
+        this.retrievalExecutor = retrievalExecutor;
+        this.strategy = strategy;
+        this.maxVariants = Math.max(1, maxVariants);
+        this.subQuestions = subQuestions;
+        this.minSubQuestionTerms = minSubQuestionTerms;
+        this.timeoutMs = timeoutMs;
+        this.rrfK = rrfK;
+        this.ok = meterRegistry.counter("rag.retrieval.multiquery.variants", "outcome", "ok");
+        this.timeouts = meterRegistry.counter("rag.retrieval.multiquery.variants", "outcome", "timeout");
+        this.errors = meterRegistry.counter("rag.retrieval.multiquery.variants", "outcome", "error");
+    }
+
+    /**
+     * @return the retriever itself with the single strategy, otherwise a retriever searching it with the variants
+     */
+    public ContentRetriever decorate(ContentRetriever contentRetriever) {
+        if (strategy != RetrievalStrategy.multiQuery) return contentRetriever;
+        return query -> retrieve(query, contentRetriever);
+    }
+
+    private List<Content> retrieve(Query query, ContentRetriever contentRetriever) {
+        List<String> variants = variants(query);
+        if (variants.size() == 1) return contentRetriever.retrieve(query);
+
+        // The timeout completes a copy: orTimeout would complete the search future itself, which then could no
+        // longer be cancelled to interrupt the search
+        List<CompletableFuture<List<Content>>> searches = new ArrayList<>(variants.size() - 1);
+        List<CompletableFuture<List<Content>>> timedSearches = new ArrayList<>(variants.size() - 1);
+        for (String variant : variants.subList(1, variants.size())) {
+            var search = retrievalExecutor.submit(() -> contentRetriever.retrieve(variantQuery(variant, query)));
+            searches.add(search);
+            timedSearches.add(search.copy().orTimeout(timeoutMs, TimeUnit.MILLISECONDS));
+        }
+
+        // The first variant is the query itself: its failure fails the retrieval as with the single strategy
+        List<List<Content>> rankings = new ArrayList<>(variants.size());
+        try {
+            rankings.add(contentRetriever.retrieve(query));
+            ok.increment();
+        } catch (RuntimeException e) {
+            searches.forEach(search -> search.cancel(true));
+            throw e;
+        }
+
+        for (int i = 0; i < searches.size(); i++) {
+            try {
+                rankings.add(timedSearches.get(i).join());
+                ok.increment();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof TimeoutException) {
+                    searches.get(i).cancel(true);
+                    timeouts.increment();
+                    LOGGER.warn("Search with query variant [{}] timed out after {} ms", variants.get(i + 1), timeoutMs);
+                } else {
+                    errors.increment();
+                    LOGGER.warn("Search with query variant [{}] failed", variants.get(i + 1), e.getCause());
+                }
+            }
+        }
+
+        List<Content> fused = fuse(rankings);
+        LOGGER.info("Fused {} sources from {} query variants: {}", fused.size(), rankings.size(), variants);
+        return fused;
+    }
+
+    /**
+     * @return the distinct variants, the query text first
+     */
+    List<String> variants(Query query) {
+        Map<String, String> variants = new LinkedHashMap<>();
+        addVariant(variants, query.text());
+
+        if (query.metadata() != null && query.metadata().chatMessage() instanceof UserMessage userMessage
+                && userMessage.hasSingleText()) {
+            String question = userMessage.singleText();
+            addVariant(variants, question);
+            if (subQuestions) {
+                List<String> parts = new ArrayList<>();
+                for (String part : SUB_QUESTION_SEPARATOR.split(question)) {
+                    if (WHITESPACES.split(part.trim()).length >= minSubQuestionTerms) parts.add(part.trim());
+                }
+                if (parts.size() > 1) parts.forEach(part -> addVariant(variants, part));
+            }
+        }
+        return variants.values().stream().limit(maxVariants).toList();
+    }
+
+    private static Query variantQuery(String variant, Query query) {
+        return query.metadata() == null ? Query.from(variant) : Query.from(variant, query.metadata());
+    }
+
+    private static void addVariant(Map<String, String> variants, String variant) {
+        if (variant == null || variant.isBlank()) return;
+        String key = WHITESPACES.matcher(variant.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+        variants.putIfAbsent(key, variant.trim());
+    }
+
+    /**
+     * Reciprocal rank fusion of the rankings, keeping as many sources as the longest ranking. A source found by
+     * several variants keeps the content and scores of its best ranked occurrence.
+     */
+    List<Content> fuse(List<List<Content>> rankings) {
+        Map<Object, Double> scores = new HashMap<>();
+        Map<Object, Content> contents = new HashMap<>();
+        Map<Object, Integer> bestRanks = new HashMap<>();
+        Set<Object> order = new LinkedHashSet<>();
+        int limit = 0;
+
+        for (List<Content> ranking : rankings) {
+            limit = Math.max(limit, ranking.size());
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                Content content = ranking.get(rank);
+                Object id = id(content);
+                scores.merge(id, 1.0 / (rrfK + rank + 1), Double::sum);
+                order.add(id);
+                Integer bestRank = bestRanks.get(id);
+                if (bestRank == null || rank < bestRank) {
+                    bestRanks.put(id, rank);
+                    contents.put(id, content);
+                }
+            }
+        }
+
+        // Stable sort: ties keep the order of first appearance, i.e. the keywords ranking first
+        List<Object> ids = new ArrayList<>(order);
+        ids.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        return ids.stream().limit(limit).map(contents::get).toList();
+    }
+
+    private static Object id(Content content) {
+        Object id = content.metadata().get(ContentMetadata.EMBEDDING_ID);
+        return id != null ? id : content.textSegment().text();
+    }
+}
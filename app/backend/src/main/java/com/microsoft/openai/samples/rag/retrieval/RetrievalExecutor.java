@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded thread pool used to run search calls concurrently with the request thread.
+ * When the queue is full the task overflows to Reactor's bounded elastic scheduler rather than running on the
+ * submitting thread, which may be a Netty event loop of the OpenAI async client continuing a reactive chain.
+ * It's deliberately not exposed as an Executor bean, to leave the Spring Boot applicationTaskExecutor untouched.
+ */
+@Component
+public class RetrievalExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    public RetrievalExecutor(
+            @Value("${app.retrieval.executor.poolSize:16}") int poolSize,
+            @Value("${app.retrieval.executor.queueCapacity:256}") int queueCapacity) {
+        var threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    var thread = new Thread(runnable, "retrieval-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (task, pool) -> {
+                    if (pool.isShutdown()) throw new RejectedExecutionException("Retrieval executor is shut down");
+                    Schedulers.boundedElastic().schedule(task);
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the future of the task. Cancelling it interrupts the task if it's running, e.g. to abort a search
+     * whose client went away, which CompletableFuture alone doesn't do.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        var future = new CompletableFuture<T>();
+        Future<?> execution = executor.submit(() -> {
+            if (future.isDone()) return;
+            try {
+                future.complete(task.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        future.whenComplete((value, error) -> {
+            if (future.isCancelled()) execution.cancel(true);
+        });
+        return future;
+    }
+
+    /**
+     * Lazy variant of {@link #submit(Supplier)} for reactive pipelines: the task is submitted on subscription
+     * and the returned future is cancelled if the subscriber cancels.
+     */
+    public <T> Mono<T> mono(Supplier<T> task) {
+        return Mono.fromFuture(() -> submit(task));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,202 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.azure.core.util.Context;
+import com.azure.search.documents.SearchClient;
+import com.azure.search.documents.SearchDocument;
+import com.azure.search.documents.models.QueryType;
+import com.azure.search.documents.models.SearchOptions;
+import com.azure.search.documents.models.SearchResult;
+import com.azure.search.documents.models.SemanticSearchOptions;
+import com.azure.search.documents.models.VectorSearchOptions;
+import com.azure.search.documents.models.VectorizedQuery;
+import com.microsoft.openai.samples.rag.approaches.RetrievalMode;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retrieves content from Azure AI Search using the shared {@link SearchClient} bean, so all the retrievers
+ * share one HTTP pipeline, connection pool and token cache. Unlike the langchain4j AzureAiSearchContentRetriever
+ * the security filter values are passed for each query, so an instance can be reused across users.
+ * It reads the index schema created by the langchain4j AzureAiSearchEmbeddingStore used by the indexer.
+ * Scores are normalized the same way langchain4j does: vector scores are converted to relevance scores,
+ * semantic reranker scores are divided by 4, text and hybrid scores are used as returned by the service.
+ * When the {@link SourceDiversifier} is enabled it over-fetches and returns the diversified top results.
+ * The query embedding and the search calls are timed as the embedding and search stages of {@link ChatMetrics}.
+ */
+public class SearchContentRetriever {
+
+    static final String FIELD_ID = "id";
+    static final String FIELD_CONTENT = "content";
+    static final String FIELD_CONTENT_VECTOR = "content_vector";
+    static final String FIELD_METADATA = "metadata";
+    static final String FIELD_METADATA_ATTRIBUTES = "attributes";
+    static final String SEMANTIC_SEARCH_CONFIG_NAME = "semantic-search-config";
+
+    private final SearchClient searchClient;
+    private final EmbeddingModel embeddingModel;
+    private final RetrievalMode retrievalMode;
+    private final boolean semanticRanker;
+    private final int top;
+    private final double minScore;
+    private final SearchFilterShape filterShape;
+    private final SourceDiversifier diversifier;
+    private final ChatMetrics chatMetrics;
+
+    public SearchContentRetriever(
+            SearchClient searchClient,
+            EmbeddingModel embeddingModel,
+            RetrievalMode retrievalMode,
+            boolean semanticRanker,
+            int top,
+            double minScore,
+            SearchFilterShape filterShape,
+            SourceDiversifier diversifier,
+            ChatMetrics chatMetrics) {
+        if (retrievalMode == null) throw new IllegalArgumentException("retrievalMode cannot be null");
+
+        this.searchClient = searchClient;
+        this.embeddingModel = embeddingModel;
+        this.retrievalMode = retrievalMode;
+        this.semanticRanker = semanticRanker;
+        this.top = top;
+        this.minScore = minScore;
+        this.filterShape = filterShape;
+        this.diversifier = diversifier;
+        this.chatMetrics = chatMetrics;
+    }
+
+    /**
+     * Binds the per-request security filter values, returning a lightweight langchain4j {@link ContentRetriever}.
+     */
+    public ContentRetriever bind(String userId, String excludeCategory) {
+        String filter = filterShape.render(userId, excludeCategory);
+        return query -> retrieve(query.text(), filter);
+    }
+
+    public List<Content> retrieve(String query, String filter) {
+        int fetchSize = diversifier.fetchSize(top);
+        boolean withVectors = diversifier.useVectors() && retrievalMode != RetrievalMode.text;
+        SearchOptions searchOptions = new SearchOptions()
+                .setTop(fetchSize)
+                .setFilter(filter)
+                .setSelect(withVectors
+                        ? new String[] {FIELD_ID, FIELD_CONTENT, FIELD_METADATA, FIELD_CONTENT_VECTOR}
+                        : new String[] {FIELD_ID, FIELD_CONTENT, FIELD_METADATA});
+
+        String searchText = null;
+        switch (retrievalMode) {
+            case text:
+                searchText = query;
+                break;
+            case hybrid:
+                searchText = query;
+                searchOptions.setVectorSearchOptions(vectorSearchOptions(query, fetchSize));
+                if (semanticRanker) {
+                    searchOptions.setQueryType(QueryType.SEMANTIC)
+                            .setSemanticSearchOptions(new SemanticSearchOptions()
+                                    .setSemanticConfigurationName(SEMANTIC_SEARCH_CONFIG_NAME));
+                }
+                break;
+            case vectors:
+                searchOptions.setVectorSearchOptions(vectorSearchOptions(query, fetchSize));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported retrieval mode: " + retrievalMode);
+        }
+
+        String text = searchText;
+        return chatMetrics.time(ChatMetrics.Stage.SEARCH, () -> search(text, searchOptions, fetchSize, withVectors));
+    }
+
+    private List<Content> search(String searchText, SearchOptions searchOptions, int fetchSize, boolean withVectors) {
+        if (!diversifier.isEnabled()) {
+            List<Content> contents = new ArrayList<>(top);
+            for (SearchResult result : searchClient.search(searchText, searchOptions, Context.NONE)) {
+                double score = score(result);
+                if (score < minScore) continue;
+                contents.add(toContent(result, result.getDocument(SearchDocument.class), score));
+                if (contents.size() >= top) break;
+            }
+            return contents;
+        }
+
+        List<SourceDiversifier.Candidate> candidates = new ArrayList<>(fetchSize);
+        for (SearchResult result : searchClient.search(searchText, searchOptions, Context.NONE)) {
+            double score = score(result);
+            if (score < minScore) continue;
+            SearchDocument document = result.getDocument(SearchDocument.class);
+            candidates.add(new SourceDiversifier.Candidate(
+                    toContent(result, document, score), score, withVectors ? vector(document) : null));
+            if (candidates.size() >= fetchSize) break;
+        }
+        return diversifier.select(candidates, top);
+    }
+
+    private VectorSearchOptions vectorSearchOptions(String query, int kNearestNeighbors) {
+        List<Float> vector = chatMetrics.time(ChatMetrics.Stage.EMBEDDING, () -> embeddingModel.embed(query))
+                .content().vectorAsList();
+        return new VectorSearchOptions().setQueries(
+                new VectorizedQuery(vector)
+                        .setFields(FIELD_CONTENT_VECTOR)
+                        .setKNearestNeighborsCount(kNearestNeighbors));
+    }
+
+    private static float[] vector(SearchDocument document) {
+        if (!(document.get(FIELD_CONTENT_VECTOR) instanceof List<?> values)) return null;
+        float[] vector = new float[values.size()];
+        for (int i = 0; i < vector.length; i++) {
+            if (!(values.get(i) instanceof Number number)) return null;
+            vector[i] = number.floatValue();
+        }
+        return vector;
+    }
+
+    private double score(SearchResult result) {
+        if (retrievalMode == RetrievalMode.vectors) {
+            // Azure returns 1 / (1 + cosine distance) for cosine similarity based vector fields
+            double cosineDistance = (1 - result.getScore()) / result.getScore();
+            return (2 - cosineDistance) / 2;
+        }
+        if (semanticRanker && retrievalMode == RetrievalMode.hybrid
+                && result.getSemanticSearch() != null
+                && result.getSemanticSearch().getRerankerScore() != null) {
+            return result.getSemanticSearch().getRerankerScore() / 4.0;
+        }
+        return result.getScore();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Content toContent(SearchResult result, SearchDocument document, double score) {
+        Metadata metadata = new Metadata();
+        if (document.get(FIELD_METADATA) instanceof Map<?, ?> documentMetadata
+                && documentMetadata.get(FIELD_METADATA_ATTRIBUTES) instanceof List<?> attributes) {
+            for (Object attribute : attributes) {
+                var keyValue = (Map<String, Object>) attribute;
+                Object key = keyValue.get("key");
+                Object value = keyValue.get("value");
+                if (key != null && value != null) metadata.put(key.toString(), value.toString());
+            }
+        }
+
+        Map<ContentMetadata, Object> contentMetadata = new HashMap<>();
+        contentMetadata.put(ContentMetadata.SCORE, score);
+        contentMetadata.put(ContentMetadata.EMBEDDING_ID, document.get(FIELD_ID));
+        if (result.getSemanticSearch() != null && result.getSemanticSearch().getRerankerScore() != null) {
+            contentMetadata.put(ContentMetadata.RERANKED_SCORE, result.getSemanticSearch().getRerankerScore());
+        }
+
+        Object text = document.get(FIELD_CONTENT);
+        return Content.from(TextSegment.from(text == null ? "" : text.toString(), metadata), contentMetadata);
+    }
+}
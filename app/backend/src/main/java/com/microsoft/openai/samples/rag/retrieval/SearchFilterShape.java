@@ -0,0 +1,49 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+/**
+ * The shape of the security filter applied to an Azure AI Search query. The shape only depends on
+ * which of the user id and excluded category are set, so it can be part of a cache key, while the
+ * actual values are rendered into the OData expression for each request.
+ * Filters target the metadata attributes collection created by the langchain4j AzureAiSearchEmbeddingStore.
+ */
+public enum SearchFilterShape {
+    NONE(null),
+    CATEGORY("not metadata/attributes/any(k: k/key eq 'category' and k/value eq '%2$s')"),
+    OID("metadata/attributes/any(k: k/key eq 'oid' and k/value eq '%1$s')"),
+    OID_OR_DEFAULT(
+            "metadata/attributes/any(k: k/key eq 'oid' and (k/value eq '%1$s' or k/value eq 'default'))"),
+    CATEGORY_AND_OID(CATEGORY.template + " and " + OID.template),
+    CATEGORY_AND_OID_OR_DEFAULT(CATEGORY.template + " and " + OID_OR_DEFAULT.template);
+
+    private final String template;
+
+    SearchFilterShape(String template) {
+        this.template = template;
+    }
+
+    /**
+     * Same decision table previously used when building the langchain4j retriever: documents in the
+     * "default" folder are visible to everyone only if global document access is enabled.
+     */
+    public static SearchFilterShape of(String userId, String excludeCategory, boolean enableGlobalDocumentAccess) {
+        boolean hasUser = userId != null && !userId.isEmpty();
+        boolean hasCategory = excludeCategory != null && !excludeCategory.isEmpty();
+
+        if (!hasUser) return hasCategory ? CATEGORY : NONE;
+        if (enableGlobalDocumentAccess) return hasCategory ? CATEGORY_AND_OID_OR_DEFAULT : OID_OR_DEFAULT;
+        return hasCategory ? CATEGORY_AND_OID : OID;
+    }
+
+    /**
+     * @return the OData filter expression for the given values or null if no filter is required.
+     */
+    public String render(String userId, String excludeCategory) {
+        if (template == null) return null;
+        return template.formatted(escape(userId), escape(excludeCategory));
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("'", "''");
+    }
+}
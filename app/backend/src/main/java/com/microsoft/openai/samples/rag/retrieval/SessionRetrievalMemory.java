@@ -0,0 +1,180 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.approaches.RetrievalMode;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Retrieval memory of the chat sessions, enabled with app.retrieval.session.enabled. Follow-up questions are often
+ * about the chunks the previous turn retrieved: the sources of the last search of each session are kept with the
+ * embedding of its query, and reused without searching when the new query embedding has a cosine similarity of at
+ * least app.retrieval.session.threshold and the sources are at most app.retrieval.session.maxAge old.
+ * Sources are only reused for the same user, session_state and retrieval options. The embeddings go through the
+ * cached embedding model, so in vector and hybrid modes the search itself doesn't embed the query again. Text mode
+ * searches don't embed the query, the memory is skipped for them rather than adding an embedding call to each turn.
+ * Uploads and deletes through {@link com.microsoft.openai.samples.rag.content.IndexService} invalidate the affected
+ * sessions. Lookups are published as rag.retrieval.session.requests, tagged hit or miss.
+ */
+@Component
+public class SessionRetrievalMemory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionRetrievalMemory.class);
+
+    private record Scope(RetrievalMode retrievalMode, boolean semanticRanker, Integer top, float minScore,
+                         String excludeCategory) {
+
+        static Scope of(RAGOptions options) {
+            return new Scope(options.getRetrievalMode(), options.isSemanticRanker(), options.getTop(),
+                    options.getMinimumSearchScore(), options.getExcludeCategory());
+        }
+    }
+
+    private record Entry(String userId, Scope scope, float[] vector, List<Content> sources, Set<String> fileNames,
+                         long retrievedAt) {}
+
+    private final EmbeddingModel embeddingModel;
+    private final boolean enabled;
+    private final double threshold;
+    private final long maxAgeNanos;
+    private final Map<String, Entry> sessions;
+    private final Counter hits;
+    private final Counter misses;
+
+    public SessionRetrievalMemory(
+            EmbeddingModel embeddingModel,
+            MeterRegistry meterRegistry,
+            @Value("${app.retrieval.session.enabled:false}") boolean enabled,
+            @Value("${app.retrieval.session.threshold:0.92}") double threshold,
+            @Value("${app.retrieval.session.maxAge:PT5M}") Duration maxAge,
+            @Value("${app.retrieval.session.maxSessions:10000}") int maxSessions) {
+        this.embeddingModel = embeddingModel;
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.maxAgeNanos = maxAge.toNanos();
+        this.sessions = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSessions;
+            }
+        };
+        this.hits = meterRegistry.counter("rag.retrieval.session.requests", "result", "hit");
+        this.misses = meterRegistry.counter("rag.retrieval.session.requests", "result", "miss");
+        meterRegistry.gauge("rag.retrieval.session.size", this, memory -> memory.size());
+    }
+
+    /**
+     * @return a retriever reusing the last sources of the session of the options, or the retriever itself if the
+     * memory is disabled, the request has no session or searches in text mode
+     */
+    public ContentRetriever decorate(ContentRetriever contentRetriever, RAGOptions options, String userId) {
+        if (!enabled || options.getThreadId() == null || options.getRetrievalMode() == RetrievalMode.text) {
+            return contentRetriever;
+        }
+        String key = userId + "/" + options.getThreadId();
+        Scope scope = Scope.of(options);
+        return query -> retrieve(query, key, userId, scope, contentRetriever);
+    }
+
+    /**
+     * Drops the sessions of the given user, or all of them if the user is not set, e.g. after a new document is
+     * indexed in their folder.
+     */
+    public void invalidateUser(String userId) {
+        int removed = removeIf(entry -> !StringUtils.hasText(userId) || userId.equals(entry.userId()));
+        LOGGER.info("Session retrieval memory invalidated {} sessions for user [{}]", removed, userId);
+    }
+
+    /**
+     * Drops the sessions of the given user, or of any user if not set, whose sources include the given file.
+     */
+    public void invalidateFile(String userId, String fileName) {
+        int removed = removeIf(entry -> entry.fileNames().contains(fileName)
+                && (!StringUtils.hasText(userId) || userId.equals(entry.userId())));
+        LOGGER.info("Session retrieval memory invalidated {} sessions retrieving file [{}]", removed, fileName);
+    }
+
+    public int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    private List<Content> retrieve(Query query, String key, String userId, Scope scope, ContentRetriever contentRetriever) {
+        float[] vector = normalize(embeddingModel.embed(query.text()).content().vector());
+
+        Entry entry;
+        synchronized (sessions) {
+            entry = sessions.get(key);
+        }
+        if (entry != null && entry.scope().equals(scope) && System.nanoTime() - entry.retrievedAt() <= maxAgeNanos) {
+            double similarity = dot(vector, entry.vector());
+            if (similarity >= threshold) {
+                hits.increment();
+                LOGGER.info("Reusing the {} sources of the previous turn, query similarity {}", entry.sources().size(), similarity);
+                return entry.sources();
+            }
+        }
+        misses.increment();
+
+        List<Content> sources = contentRetriever.retrieve(query);
+        Set<String> fileNames = sources.stream()
+                .map(source -> source.textSegment().metadata().getString("file_name"))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toUnmodifiableSet());
+        var retrieved = new Entry(userId, scope, vector, List.copyOf(sources), fileNames, System.nanoTime());
+        synchronized (sessions) {
+            sessions.put(key, retrieved);
+        }
+        return sources;
+    }
+
+    private int removeIf(Predicate<Entry> predicate) {
+        int removed = 0;
+        synchronized (sessions) {
+            Iterator<Entry> entries = sessions.values().iterator();
+            while (entries.hasNext()) {
+                if (predicate.test(entries.next())) {
+                    entries.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = Math.sqrt(dot(vector, vector));
+        if (norm == 0) return vector;
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) normalized[i] = (float) (vector[i] / norm);
+        return normalized;
+    }
+
+    private static double dot(float[] first, float[] second) {
+        if (first.length != second.length) return 0;
+        double dot = 0;
+        for (int i = 0; i < first.length; i++) dot += first[i] * second[i];
+        return dot;
+    }
+}
@@ -0,0 +1,98 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses how many of the retrieved sources go into the prompt, instead of always sending top of them.
+ * Sources the semantic reranker scored below the request minimumRerankerScore are dropped first. Then, when
+ * app.retrieval.cutoff.adaptive is set, the list is cut at the knee of the score distribution: the first drop
+ * between two consecutive scores larger than app.retrieval.cutoff.maxRelativeGap of the higher one, keeping at
+ * least app.retrieval.cutoff.minSources. The token budget is enforced afterwards by the PromptBudgeter.
+ */
+@Component
+public class SourceCutoff {
+
+    /**
+     * @param sources the selected sources, in their retrieval order
+     * @param retrieved the number of retrieved sources
+     * @param k the number of selected sources
+     * @param reason what limited k: none, reranker_threshold or score_gap
+     * @param scores the scores of the retrieved sources, in their retrieval order
+     */
+    public record Selection(List<Content> sources, int retrieved, int k, String reason, List<Double> scores) {
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("retrieved", retrieved);
+            map.put("k", k);
+            map.put("cutoff", reason);
+            map.put("scores", scores);
+            return map;
+        }
+    }
+
+    private final boolean adaptive;
+    private final int minSources;
+    private final double maxRelativeGap;
+
+    public SourceCutoff(
+            @Value("${app.retrieval.cutoff.adaptive:true}") boolean adaptive,
+            @Value("${app.retrieval.cutoff.minSources:1}") int minSources,
+            @Value("${app.retrieval.cutoff.maxRelativeGap:0.5}") double maxRelativeGap) {
+        this.adaptive = adaptive;
+        this.minSources = Math.max(1, minSources);
+        this.maxRelativeGap = maxRelativeGap;
+    }
+
+    public Selection apply(List<Content> sources, RAGOptions options) {
+        List<Double> scores = sources.stream().map(SourceCutoff::score).toList();
+
+        // Reranker scores are kept on the service 0-4 scale, as the request threshold
+        List<Content> kept = new ArrayList<>(sources.size());
+        for (Content source : sources) {
+            Object rerankerScore = source.metadata().get(ContentMetadata.RERANKED_SCORE);
+            if (rerankerScore instanceof Number number && number.doubleValue() < options.getMinimumRerankerScore()) continue;
+            kept.add(source);
+        }
+        String reason = kept.size() < sources.size() ? "reranker_threshold" : "none";
+        if (!adaptive || kept.size() <= minSources) {
+            return new Selection(List.copyOf(kept), sources.size(), kept.size(), reason, scores);
+        }
+
+        double[] sorted = kept.stream().mapToDouble(SourceCutoff::score).toArray();
+        Arrays.sort(sorted);
+        int k = sorted.length;
+        // sorted is ascending: walk the scores from the best one down
+        for (int i = minSources; i < sorted.length; i++) {
+            double higher = sorted[sorted.length - i];
+            double lower = sorted[sorted.length - i - 1];
+            if (higher > 0 && (higher - lower) / higher > maxRelativeGap) {
+                k = i;
+                break;
+            }
+        }
+        if (k == kept.size()) return new Selection(List.copyOf(kept), sources.size(), k, reason, scores);
+
+        double minScore = sorted[sorted.length - k];
+        List<Content> selected = new ArrayList<>(k);
+        for (Content source : kept) {
+            if (selected.size() < k && score(source) >= minScore) selected.add(source);
+        }
+        return new Selection(List.copyOf(selected), sources.size(), selected.size(), "score_gap", scores);
+    }
+
+    private static double score(Content source) {
+        return source.metadata().get(ContentMetadata.SCORE) instanceof Number number ? number.doubleValue() : 0;
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import dev.langchain4j.rag.content.Content;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Post-retrieval stage removing the redundancy between the retrieved chunks, which otherwise costs prompt tokens
+ * for the same text: chunk overlaps and pages indexed several times.
+ * Search over-fetches app.retrieval.diversify.overFetchFactor times top results. Near-duplicates are collapsed
+ * first, keeping the best scored one: two chunks are near-duplicates when the SimHash of their word 3-shingles
+ * differ by at most app.retrieval.diversify.maxHammingDistance bits. Then top chunks are re-selected with maximal
+ * marginal relevance, trading the search score against the similarity to the chunks already selected with
+ * app.retrieval.diversify.lambda. The similarity is the cosine of the content vectors when search returned them,
+ * the SimHash similarity otherwise.
+ * Runs on every search, so it only allocates a few arrays sized by the candidate count. Collapsed near-duplicates
+ * are published as rag.retrieval.diversify.collapsed.
+ */
+@Component
+public class SourceDiversifier {
+
+    private static final int SHINGLE_SIZE = 3;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * @param vector the content vector, null if not returned by search
+     */
+    public record Candidate(Content content, double score, float[] vector) {}
+
+    private final boolean enabled;
+    private final int overFetchFactor;
+    private final double lambda;
+    private final int maxHammingDistance;
+    private final boolean useVectors;
+    private final Counter collapsed;
+
+    public SourceDiversifier(
+            MeterRegistry meterRegistry,
+            @Value("${app.retrieval.diversify.enabled:false}") boolean enabled,
+            @Value("${app.retrieval.diversify.overFetchFactor:3}") int overFetchFactor,
+            @Value("${app.retrieval.diversify.lambda:0.7}") double lambda,
+            @Value("${app.retrieval.diversify.maxHammingDistance:3}") int maxHammingDistance,
+            @Value("${app.retrieval.diversify.useVectors:true}") boolean useVectors) {
+        this.enabled = enabled;
+        this.overFetchFactor = Math.max(1, overFetchFactor);
+        this.lambda = lambda;
+        this.maxHammingDistance = maxHammingDistance;
+        this.useVectors = useVectors;
+        this.collapsed = meterRegistry.counter("rag.retrieval.diversify.collapsed");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if search should return the content vectors for the similarity between chunks
+     */
+    public boolean useVectors() {
+        return enabled && useVectors;
+    }
+
+    /**
+     * @return the number of results to fetch from search for top sources
+     */
+    public int fetchSize(int top) {
+        return enabled ? top * overFetchFactor : top;
+    }
+
+    /**
+     * @param candidates the search results, best first
+     * @return up to top diversified sources, in selection order
+     */
+    public List<Content> select(List<Candidate> candidates, int top) {
+        int n = candidates.size();
+        if (n <= 1) return candidates.stream().map(Candidate::content).toList();
+
+        // Collapse near-duplicates, candidates are in rank order so the first one seen is kept
+        long[] hashes = new long[n];
+        int[] kept = new int[n];
+        int keptCount = 0;
+        for (int i = 0; i < n; i++) {
+            hashes[i] = simHash(candidates.get(i).content().textSegment().text());
+            boolean duplicate = false;
+            for (int k = 0; k < keptCount && !duplicate; k++) {
+                duplicate = Long.bitCount(hashes[i] ^ hashes[kept[k]]) <= maxHammingDistance;
+            }
+            if (!duplicate) kept[keptCount++] = i;
+        }
+        if (keptCount < n) collapsed.increment(n - keptCount);
+
+        // Maximal marginal relevance over the remaining candidates
+        double maxScore = 0;
+        for (int k = 0; k < keptCount; k++) maxScore = Math.max(maxScore, candidates.get(kept[k]).score());
+        double[] relevance = new double[keptCount];
+        for (int k = 0; k < keptCount; k++) {
+            relevance[k] = maxScore > 0
+                    ? candidates.get(kept[k]).score() / maxScore
+                    : 1 - (double) k / keptCount;
+        }
+
+        int size = Math.min(top, keptCount);
+        List<Content> selected = new ArrayList<>(size);
+        boolean[] taken = new boolean[keptCount];
+        double[] maxSimilarity = new double[keptCount];
+        Arrays.fill(maxSimilarity, Double.NEGATIVE_INFINITY);
+        int last = -1;
+        for (int s = 0; s < size; s++) {
+            int best = -1;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < keptCount; k++) {
+                if (taken[k]) continue;
+                if (last >= 0) {
+                    maxSimilarity[k] = Math.max(maxSimilarity[k],
+                            similarity(candidates.get(kept[k]), hashes[kept[k]], candidates.get(kept[last]), hashes[kept[last]]));
+                }
+                double value = s == 0
+                        ? relevance[k]
+                        : lambda * relevance[k] - (1 - lambda) * maxSimilarity[k];
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = k;
+                }
+            }
+            taken[best] = true;
+            last = best;
+            selected.add(candidates.get(kept[best]).content());
+        }
+        return selected;
+    }
+
+    private static double similarity(Candidate a, long hashA, Candidate b, long hashB) {
+        if (a.vector() != null && b.vector() != null && a.vector().length == b.vector().length) {
+            return cosine(a.vector(), b.vector());
+        }
+        return 1 - Long.bitCount(hashA ^ hashB) / 64.0;
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+    }
+
+    /**
+     * 64 bit SimHash of the lower cased word 3-shingles of the text, or of all its words when it has fewer.
+     * Words are hashed while scanning the characters, so no substring is allocated.
+     */
+    static long simHash(String text) {
+        if (text == null || text.isEmpty()) return 0;
+
+        int[] weights = new int[64];
+        long previous2 = 0;
+        long previous1 = 0;
+        long word = FNV_OFFSET;
+        boolean inWord = false;
+        int words = 0;
+        for (int i = 0, length = text.length(); i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word = (word ^ Character.toLowerCase(c)) * FNV_PRIME;
+                inWord = true;
+            } else if (inWord) {
+                words++;
+                if (words >= SHINGLE_SIZE) addShingle(weights, mix(previous2 * 961 + previous1 * 31 + word));
+                previous2 = previous1;
+                previous1 = word;
+                word = FNV_OFFSET;
+                inWord = false;
+            }
+        }
+        if (words == 0) return 0;
+        if (words < SHINGLE_SIZE) addShingle(weights, mix(previous2 * 961 + previous1 * 31));
+
+        long hash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) hash |= 1L << bit;
+        }
+        return hash;
+    }
+
+    private static void addShingle(int[] weights, long shingle) {
+        for (int bit = 0; bit < 64; bit++) {
+            weights[bit] += ((shingle >>> bit) & 1) != 0 ? 1 : -1;
+        }
+    }
+
+    // MurmurHash3 finalizer, spreads the combined word hashes over all the bits
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
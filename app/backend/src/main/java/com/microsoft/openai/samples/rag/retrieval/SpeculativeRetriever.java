@@ -0,0 +1,164 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.microsoft.openai.samples.rag.common.StopWords;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Starts retrieval on the raw user question while the search query is still being generated.
+ * When the generated query is close enough to the raw question (share of its terms found in the question, at least
+ * app.retrieval.speculative.minOverlap) the speculative results are kept, otherwise they are thrown away and a second retrieval runs with the generated query.
+ * The outcome of each speculation is published as the rag.retrieval.speculative metric.
+ */
+@Component
+public class SpeculativeRetriever {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpeculativeRetriever.class);
+    private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * @param query the generated search query
+     * @param sources the retrieved sources
+     * @param speculative true if the sources were retrieved with the raw question
+     */
+    public record Result(String query, List<Content> sources, boolean speculative) {}
+
+    private final RetrievalExecutor retrievalExecutor;
+    private final boolean enabled;
+    private final boolean singleTurnOnly;
+    private final double minOverlap;
+    private final Counter kept;
+    private final Counter discarded;
+
+    public SpeculativeRetriever(
+            RetrievalExecutor retrievalExecutor,
+            MeterRegistry meterRegistry,
+            @Value("${app.retrieval.speculative.enabled:false}") boolean enabled,
+            @Value("${app.retrieval.speculative.singleTurnOnly:true}") boolean singleTurnOnly,
+            @Value("${app.retrieval.speculative.minOverlap:0.6}") double minOverlap) {
+        this.retrievalExecutor = retrievalExecutor;
+        this.enabled = enabled;
+        this.singleTurnOnly = singleTurnOnly;
+        this.minOverlap = minOverlap;
+        this.kept = meterRegistry.counter("rag.retrieval.speculative", "outcome", "kept");
+        this.discarded = meterRegistry.counter("rag.retrieval.speculative", "outcome", "discarded");
+    }
+
+    public boolean shouldSpeculate(boolean singleTurn) {
+        return enabled && (singleTurn || !singleTurnOnly);
+    }
+
+    /**
+     * @param question the raw last user question, used for the speculative retrieval
+     * @param queryGenerator generates the search query, typically an LLM call
+     * @param contentRetriever the retriever bound to the user security filter
+     */
+    public Result retrieve(String question, Supplier<String> queryGenerator, ContentRetriever contentRetriever) {
+        CompletableFuture<List<Content>> speculation =
+                retrievalExecutor.submit(() -> contentRetriever.retrieve(Query.from(question)));
+
+        String query;
+        try {
+            query = queryGenerator.get();
+        } catch (RuntimeException e) {
+            speculation.cancel(true);
+            throw e;
+        }
+
+        double overlap = overlap(question, query);
+        if (overlap >= minOverlap) {
+            try {
+                List<Content> sources = speculation.join();
+                kept.increment();
+                LOGGER.info("Speculative retrieval kept, query overlap {}", overlap);
+                return new Result(query, sources, true);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Speculative retrieval failed, retrieving with generated query", e);
+            }
+        } else {
+            speculation.cancel(true);
+        }
+
+        discarded.increment();
+        LOGGER.info("Speculative retrieval discarded, query overlap {}", overlap);
+        return new Result(query, contentRetriever.retrieve(Query.from(query)), false);
+    }
+
+    /**
+     * Non-blocking variant of {@link #retrieve(String, Supplier, ContentRetriever)}: searches run on the
+     * {@link RetrievalExecutor} and the speculation is cancelled if the subscriber cancels.
+     */
+    public Mono<Result> retrieveAsync(String question, Mono<String> queryGenerator, ContentRetriever contentRetriever) {
+        return Mono.defer(() -> {
+            CompletableFuture<List<Content>> speculation =
+                    retrievalExecutor.submit(() -> contentRetriever.retrieve(Query.from(question)));
+
+            return queryGenerator
+                    .doOnError(e -> speculation.cancel(true))
+                    .doOnCancel(() -> speculation.cancel(true))
+                    .flatMap(query -> {
+                        double overlap = overlap(question, query);
+                        if (overlap < minOverlap) {
+                            speculation.cancel(true);
+                            return discard(query, overlap, contentRetriever);
+                        }
+                        return Mono.fromFuture(speculation)
+                                .map(sources -> {
+                                    kept.increment();
+                                    LOGGER.info("Speculative retrieval kept, query overlap {}", overlap);
+                                    return new Result(query, sources, true);
+                                })
+                                .onErrorResume(e -> {
+                                    LOGGER.warn("Speculative retrieval failed, retrieving with generated query", e);
+                                    return discard(query, overlap, contentRetriever);
+                                });
+                    });
+        });
+    }
+
+    private Mono<Result> discard(String query, double overlap, ContentRetriever contentRetriever) {
+        discarded.increment();
+        LOGGER.info("Speculative retrieval discarded, query overlap {}", overlap);
+        return retrievalExecutor.mono(() -> contentRetriever.retrieve(Query.from(query)))
+                .map(sources -> new Result(query, sources, false));
+    }
+
+    /**
+     * Containment of the query terms in the question terms: the share of the lower-cased query terms, stop words
+     * excluded, that also appear in the question. A keyword rewrite that only drops words of the question scores 1,
+     * while terms added from the conversation history or a translation lower the score.
+     */
+    static double overlap(String question, String query) {
+        Set<String> questionTerms = terms(question);
+        Set<String> queryTerms = terms(query);
+        if (questionTerms.isEmpty() || queryTerms.isEmpty()) return 0;
+
+        long common = queryTerms.stream().filter(questionTerms::contains).count();
+        return (double) common / queryTerms.size();
+    }
+
+    private static Set<String> terms(String text) {
+        if (text == null) return Set.of();
+        return Arrays.stream(TERM_SEPARATOR.split(text.toLowerCase(Locale.ROOT)))
+                .filter(term -> term.length() > 1 && !StopWords.contains(term))
+                .collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.PromptBudgeter;
+import com.microsoft.openai.samples.rag.chat.langchain4j.prompt.Tokenizer;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.input.PromptTemplate;
+import dev.langchain4j.rag.content.Content;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AnswerQuestionAgentTest {
+
+    // the prompt is built when the question is asked
+    private static final ChatModel ANSWER = new ChatModel() {
+        @Override
+        public ChatResponse doChat(ChatRequest request) {
+            return ChatResponse.builder().aiMessage(AiMessage.from("answer")).build();
+        }
+    };
+
+    private final PromptBudgeter promptBudgeter = new PromptBudgeter(new Tokenizer("gpt-4o-mini", 100), 12_000, 3_000, 100);
+
+    @Test
+    void buildsTheSamePromptAsPromptTemplate() {
+        var history = List.of(UserMessage.from("What is covered?"), AiMessage.from("Emergency services [a.pdf]."));
+        var sources = List.of(
+                Content.from(TextSegment.from("Deductible is $2,000.", Metadata.from(Map.of("file_name", "a.pdf", "page_number", "2")))),
+                Content.from(TextSegment.from("No vision coverage.", Metadata.from(Map.of("file_name", "b.txt")))));
+
+        var agent = new AnswerQuestionAgent(history, sources, "Answer in French.", true, ANSWER, null, promptBudgeter, "request");
+        agent.answerQuestion("What is the deductible?", null);
+
+        String systemPrompt = PromptTemplate.from(AnswerQuestionAgent.SYSTEM_CHAT_MESSAGE_TEMPLATE).apply(Map.of(
+                "customPrompt", "Answer in French.",
+                "followUpQuestions", AnswerQuestionAgent.FOLLOW_UP_QUESTIONS_TEMPLATE)).text();
+        String question = PromptTemplate.from(AnswerQuestionAgent.GROUNDED_USER_QUESTION_TEMPLATE).apply(Map.of(
+                "question", "What is the deductible?",
+                "sources", "a.pdf#page=2: Deductible is $2,000.\nb.txt: No vision coverage.\n")).text();
+        assertThat(agent.getMessages()).containsExactly(
+                SystemMessage.from(systemPrompt), history.get(0), history.get(1), UserMessage.from(question));
+        assertThat(agent.getSources()).isEqualTo(sources);
+    }
+
+    @Test
+    void leavesOutTheFollowUpQuestionsPrompt() {
+        var agent = new AnswerQuestionAgent(null, List.of(), null, false, ANSWER, null, promptBudgeter, "request");
+        agent.answerQuestion("Hi", null);
+
+        var systemMessage = (SystemMessage) agent.getMessages().get(0);
+        assertThat(systemMessage.text()).doesNotContain("<<").endsWith("\n\n\n");
+        assertThat(agent.getMessages()).hasSize(2);
+    }
+}
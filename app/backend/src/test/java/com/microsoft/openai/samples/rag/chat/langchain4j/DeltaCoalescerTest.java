@@ -0,0 +1,73 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j;
+
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.common.ResponseMessageUtils;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeltaCoalescerTest {
+
+    private final RAGOptions options = new RAGOptions.Builder().retrievialMode("hybrid").threadId("thread").build();
+    private final List<ChatAppResponse> frames = new ArrayList<>();
+    private final AtomicInteger firstTokens = new AtomicInteger();
+
+    @Test
+    void reportsTheFirstTokenAfterTheSourcesFrame() {
+        var buffer = open(new DeltaCoalescer(new SimpleMeterRegistry(), true, 1_000, 64));
+
+        buffer.send(ResponseMessageUtils.buildRetrievalComplete(options, List.of(), "deductible", null));
+        assertThat(frames).hasSize(1);
+        assertThat(firstTokens).hasValue(0);
+
+        buffer.send(ResponseMessageUtils.buildDelta("The"));
+        assertThat(firstTokens).hasValue(1);
+
+        buffer.append(" deductible");
+        buffer.append(" is $2,000.");
+        buffer.close();
+        assertThat(frames).extracting(frame -> frame.delta().content())
+                .containsExactly("", "The", " deductible is $2,000.");
+        assertThat(firstTokens).hasValue(1);
+    }
+
+    @Test
+    void waitsForANonEmptyToken() {
+        var buffer = open(new DeltaCoalescer(new SimpleMeterRegistry(), true, 1_000, 64));
+
+        buffer.send(ResponseMessageUtils.buildDelta(""));
+        assertThat(firstTokens).hasValue(0);
+
+        buffer.append("Hello");
+        assertThat(firstTokens).as("the token is still buffered").hasValue(0);
+        buffer.flush();
+        assertThat(firstTokens).hasValue(1);
+    }
+
+    @Test
+    void reportsTheFirstTokenWithoutCoalescing() {
+        var buffer = open(new DeltaCoalescer(new SimpleMeterRegistry(), false, 1_000, 64));
+
+        buffer.append("Hello");
+        buffer.append(" world");
+
+        assertThat(frames).hasSize(2);
+        assertThat(firstTokens).hasValue(1);
+    }
+
+    private DeltaCoalescer.Buffer open(DeltaCoalescer deltaCoalescer) {
+        var buffer = new AtomicReference<DeltaCoalescer.Buffer>();
+        Flux.<ChatAppResponse>create(sink -> buffer.set(deltaCoalescer.open(sink, "request", firstTokens::incrementAndGet)))
+                .subscribe(frames::add);
+        return buffer.get();
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HnswIndexTest {
+
+    private static final int DIMENSIONS = 32;
+
+    private final Random random = new Random(7);
+
+    @Test
+    void searchesAnEmptyIndex() {
+        assertThat(new HnswIndex(16, 100, 50).search(randomVector(), 5)).isEmpty();
+    }
+
+    @Test
+    void assignsSequentialIds() {
+        var index = new HnswIndex(16, 100, 50);
+
+        assertThat(index.add(randomVector())).isZero();
+        assertThat(index.add(randomVector())).isEqualTo(1);
+        assertThat(index.size()).isEqualTo(2);
+    }
+
+    @Test
+    void findsTheIndexedVectorsThemselves() {
+        var index = new HnswIndex(16, 100, 50);
+        List<float[]> vectors = addRandomVectors(index, 1_000);
+
+        for (int id = 0; id < vectors.size(); id += 37) {
+            var matches = index.search(vectors.get(id), 1);
+            assertThat(matches).hasSize(1);
+            assertThat(matches.get(0).id()).isEqualTo(id);
+            assertThat(matches.get(0).similarity()).isCloseTo(1f, within(1e-5f));
+        }
+    }
+
+    @Test
+    void matchesTheExactNeighboursClosely() {
+        var index = new HnswIndex(16, 100, 50);
+        List<float[]> vectors = addRandomVectors(index, 2_000);
+
+        int found = 0;
+        int expected = 0;
+        for (int q = 0; q < 50; q++) {
+            float[] query = randomVector();
+            List<Integer> exact = exactNeighbours(vectors, query, 10);
+            List<HnswIndex.Match> matches = index.search(query, 10);
+
+            assertThat(matches).hasSize(10).isSortedAccordingTo(Comparator.comparingDouble(HnswIndex.Match::similarity).reversed());
+            found += (int) matches.stream().filter(match -> exact.contains(match.id())).count();
+            expected += exact.size();
+        }
+        assertThat((double) found / expected).isGreaterThanOrEqualTo(0.9);
+    }
+
+    @Test
+    void neverReturnsRemovedNodes() {
+        var index = new HnswIndex(16, 100, 50);
+        List<float[]> vectors = addRandomVectors(index, 500);
+
+        for (int id = 0; id < vectors.size(); id += 2) index.remove(id);
+
+        assertThat(index.size()).isEqualTo(250);
+        assertThat(index.deleted()).isEqualTo(250);
+        assertThat(index.isRemoved(0)).isTrue();
+        assertThat(index.isRemoved(1)).isFalse();
+        assertThat(index.search(vectors.get(0), 1)).noneMatch(match -> match.id() == 0);
+        for (int q = 0; q < 20; q++) {
+            assertThat(index.search(randomVector(), 10)).isNotEmpty().allMatch(match -> match.id() % 2 == 1);
+        }
+        // removed nodes still route the search to the live ones
+        assertThat(index.search(vectors.get(1), 1).get(0).id()).isEqualTo(1);
+    }
+
+    private List<float[]> addRandomVectors(HnswIndex index, int count) {
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            float[] vector = randomVector();
+            vectors.add(vector);
+            index.add(vector);
+        }
+        return vectors;
+    }
+
+    private static List<Integer> exactNeighbours(List<float[]> vectors, float[] query, int k) {
+        return IntStream.range(0, vectors.size()).boxed()
+                .sorted(Comparator.comparingDouble((Integer id) -> HnswIndex.similarity(query, vectors.get(id))).reversed())
+                .limit(k)
+                .toList();
+    }
+
+    private float[] randomVector() {
+        float[] vector = new float[DIMENSIONS];
+        double norm = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < DIMENSIONS; i++) vector[i] *= scale;
+        return vector;
+    }
+}
@@ -0,0 +1,201 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.limit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void clampsTheInitialLimit() {
+        assertThat(limiter(500, 10, 100).limit()).isEqualTo(100);
+        assertThat(limiter(1, 10, 100).limit()).isEqualTo(10);
+    }
+
+    @Test
+    void keepsSlotsForThePriorityLane() {
+        var limiter = limiter(10, 1, 100);
+        List<AdaptiveConcurrencyLimiter.Permit> permits = new ArrayList<>();
+
+        // 2 of the 10 slots are kept for the priority lane
+        for (int i = 0; i < 8; i++) permits.add(limiter.tryAcquire(false));
+        assertThat(permits).doesNotContainNull();
+        assertThat(limiter.tryAcquire(false)).isNull();
+        assertThat(limiter.tryAcquire(true)).isNotNull();
+        assertThat(limiter.tryAcquire(true)).isNotNull();
+        assertThat(limiter.tryAcquire(true)).isNull();
+        assertThat(limiter.inFlight()).isEqualTo(10);
+
+        // the priority requests still use the slot freed by a default one
+        permits.get(0).ignore();
+        assertThat(limiter.inFlight()).isEqualTo(9);
+        assertThat(limiter.tryAcquire(false)).isNull();
+        assertThat(limiter.tryAcquire(true)).isNotNull();
+
+        assertThat(meterRegistry.counter("rag.chat.concurrency.rejected", "mode", "sync", "lane", "default").count()).isEqualTo(2);
+        assertThat(meterRegistry.counter("rag.chat.concurrency.rejected", "mode", "sync", "lane", "priority").count()).isEqualTo(1);
+    }
+
+    @Test
+    void admitsOneRequestAtTheMinimumLimit() {
+        var limiter = limiter(1, 1, 10);
+
+        assertThat(limiter.tryAcquire(false)).isNotNull();
+        assertThat(limiter.tryAcquire(false)).isNull();
+    }
+
+    @Test
+    void backsOffOnDroppedRequests() {
+        var limiter = limiter(20, 15, 100);
+
+        limiter.tryAcquire(false).dropped();
+        assertThat(limiter.limit()).isCloseTo(18, within(1e-9));
+        limiter.tryAcquire(false).dropped();
+        limiter.tryAcquire(false).dropped();
+        assertThat(limiter.limit()).isEqualTo(15);
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    @Test
+    void onlyTheFirstReleaseCounts() {
+        var limiter = limiter(20, 1, 100);
+        var permit = limiter.tryAcquire(false);
+        limiter.tryAcquire(false);
+
+        permit.dropped();
+        permit.dropped();
+        permit.success();
+
+        assertThat(limiter.inFlight()).isEqualTo(1);
+        assertThat(limiter.limit()).isCloseTo(18, within(1e-9));
+    }
+
+    @Test
+    void growsWhileTheLatencyHoldsUnderLoad() {
+        var limiter = limiter(20, 1, 100);
+
+        limiter.sample(10 * MILLIS, 20);
+
+        // limit + smoothing * sqrt(limit)
+        assertThat(limiter.latencyNanos()).isEqualTo(10 * MILLIS);
+        assertThat(limiter.limit()).isCloseTo(20 + 0.2 * Math.sqrt(20), within(1e-9));
+    }
+
+    @Test
+    void shrinksByUpToHalfWhenTheLatencyRises() {
+        var limiter = limiter(20, 1, 100);
+        limiter.sample(10 * MILLIS, 20);
+        double limit = limiter.limit();
+
+        limiter.sample(100 * MILLIS, 20);
+
+        // the gradient is capped at 0.5: limit + smoothing * (limit * 0.5 + sqrt(limit) - limit)
+        double expected = limit + 0.2 * (limit * 0.5 + Math.sqrt(limit) - limit);
+        assertThat(limiter.limit()).isCloseTo(expected, within(1e-9)).isLessThan(limit);
+        assertThat(limiter.latencyNanos()).isCloseTo(10 * MILLIS + 90 * MILLIS / 100.0, within(1.0));
+    }
+
+    @Test
+    void toleratesLatencyWithinTheTolerance() {
+        var limiter = limiter(20, 1, 100);
+        limiter.sample(10 * MILLIS, 20);
+        double limit = limiter.limit();
+
+        // twice the average is within the tolerance of 2, the limit keeps growing
+        limiter.sample(19 * MILLIS, 20);
+
+        assertThat(limiter.limit()).isGreaterThan(limit);
+    }
+
+    @Test
+    void doesNotGrowWhileUnderused() {
+        var limiter = limiter(20, 1, 100);
+
+        limiter.sample(10 * MILLIS, 5);
+        assertThat(limiter.limit()).isEqualTo(20);
+
+        // but still shrinks
+        limiter.sample(100 * MILLIS, 5);
+        assertThat(limiter.limit()).isLessThan(20);
+    }
+
+    @Test
+    void staysWithinTheBounds() {
+        var limiter = limiter(20, 10, 25);
+
+        for (int i = 0; i < 100; i++) limiter.sample(10 * MILLIS, 25);
+        assertThat(limiter.limit()).isEqualTo(25);
+
+        for (int i = 0; i < 20; i++) limiter.sample(1_000 * MILLIS, 25);
+        assertThat(limiter.limit()).isEqualTo(10);
+
+        // the long term average catches up with the new latency, which becomes the baseline
+        for (int i = 0; i < 100; i++) limiter.sample(1_000 * MILLIS, 25);
+        assertThat(limiter.limit()).isEqualTo(25);
+    }
+
+    @Test
+    void recoversFromASlowPeriod() {
+        var limiter = limiter(20, 1, 100);
+        limiter.sample(1_000 * MILLIS, 20);
+
+        limiter.sample(10 * MILLIS, 20);
+
+        // the average decays faster than the window once the latency is back to normal
+        assertThat(limiter.latencyNanos()).isCloseTo((1_000 * MILLIS - 990 * MILLIS / 100.0) * 0.95, within(1.0));
+    }
+
+    @Test
+    void samplesTheFirstOutputOnly() throws InterruptedException {
+        var limiter = limiter(20, 1, 100);
+        var permit = limiter.tryAcquire(false);
+
+        Thread.sleep(5);
+        permit.firstOutput();
+        double latency = limiter.latencyNanos();
+        assertThat(latency).isGreaterThanOrEqualTo(5 * MILLIS);
+
+        Thread.sleep(5);
+        permit.firstOutput();
+        permit.success();
+        assertThat(limiter.latencyNanos()).isEqualTo(latency);
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    @Test
+    void samplesOnSuccessWithoutFirstOutput() {
+        var limiter = limiter(20, 1, 100);
+
+        limiter.tryAcquire(false).success();
+
+        assertThat(limiter.latencyNanos()).isPositive();
+        assertThat(limiter.inFlight()).isZero();
+    }
+
+    @Test
+    void unlimitedPermitsAreNoOps() {
+        var permit = AdaptiveConcurrencyLimiter.Permit.UNLIMITED;
+
+        permit.firstOutput();
+        permit.success();
+        permit.dropped();
+        permit.ignore();
+    }
+
+    /**
+     * tolerance 2, smoothing 0.2, priority ratio 0.2
+     */
+    private AdaptiveConcurrencyLimiter limiter(int initialLimit, int minLimit, int maxLimit) {
+        return new AdaptiveConcurrencyLimiter("sync", initialLimit, minLimit, maxLimit, 2, 0.2, 0.2, meterRegistry);
+    }
+}
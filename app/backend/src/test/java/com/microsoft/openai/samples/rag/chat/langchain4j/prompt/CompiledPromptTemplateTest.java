@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.prompt;
+
+import dev.langchain4j.model.input.PromptTemplate;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompiledPromptTemplateTest {
+
+    @Test
+    void rendersLikePromptTemplate() {
+        String template = "{{first}} and {{second}}, then {{first}} again{{last}}";
+        Map<String, String> values = Map.of("first", "one", "second", "two $1 \\ {{first}}", "last", "!");
+
+        assertThat(CompiledPromptTemplate.compile(template).render(values))
+                .isEqualTo(PromptTemplate.from(template).apply(Map.<String, Object>copyOf(values)).text())
+                .isEqualTo("one and two $1 \\ {{first}}, then one again!");
+    }
+
+    @Test
+    void rendersVariablesAtTheEdges() {
+        assertThat(CompiledPromptTemplate.compile("{{a}}{{b}}").render(Map.of("a", "1", "b", "2"))).isEqualTo("12");
+    }
+
+    @Test
+    void rendersTemplatesWithoutVariables() {
+        assertThat(CompiledPromptTemplate.compile("").render(Map.of())).isEmpty();
+        assertThat(CompiledPromptTemplate.compile("no variables {here}").render(Map.of("here", "x")))
+                .isEqualTo("no variables {here}");
+    }
+
+    @Test
+    void trimsVariableNames() {
+        assertThat(CompiledPromptTemplate.compile("[{{ name }}]").render(Map.of("name", "value"))).isEqualTo("[value]");
+    }
+
+    @Test
+    void failsOnMissingValuesWithThePromptTemplateMessage() {
+        var template = CompiledPromptTemplate.compile("{{question}} {{sources}}");
+
+        assertThatThrownBy(() -> template.render(Map.of("question", "q")))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Value for the variable 'sources' is missing");
+        // the reused builder is reset after a failure
+        assertThat(template.render(Map.of("question", "q", "sources", "s"))).isEqualTo("q s");
+    }
+
+    @Test
+    void rendersLargeValuesAndThenSmallOnes() {
+        var template = CompiledPromptTemplate.compile("<{{value}}>");
+        String large = "x".repeat(100_000);
+
+        assertThat(template.render(Map.of("value", large))).isEqualTo("<" + large + ">");
+        assertThat(template.render(Map.of("value", "small"))).isEqualTo("<small>");
+    }
+
+    @Test
+    void rejectsNullTemplates() {
+        assertThatThrownBy(() -> CompiledPromptTemplate.compile(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
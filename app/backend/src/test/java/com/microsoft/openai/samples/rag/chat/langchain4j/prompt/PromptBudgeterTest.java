@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.prompt;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.ContentMetadata;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PromptBudgeterTest {
+
+    private static final String SYSTEM = "Answer using the sources below.";
+    private static final String QUESTION = "What is the deductible?";
+    private static final Function<Content, String> FORMATTER = source -> source.textSegment().text();
+
+    private final Tokenizer tokenizer = new Tokenizer("gpt-4o-mini", 100);
+
+    @Test
+    void keepsEverythingThatFits() {
+        List<ChatMessage> history = List.of(UserMessage.from("Hi"), AiMessage.from("Hello"));
+        List<Content> sources = List.of(source("a.pdf: first", 0.5), source("b.pdf: second", 0.9));
+
+        var plan = budgeter(10_000, 1_000, 10).plan(SYSTEM, history, sources, FORMATTER, QUESTION);
+
+        assertThat(plan.history()).isEqualTo(history);
+        assertThat(plan.sources()).isEqualTo(sources);
+        assertThat(plan.droppedMessages()).isZero();
+        assertThat(plan.droppedSources()).isZero();
+        assertThat(plan.truncatedSources()).isZero();
+        assertThat(plan.historyTokens()).isEqualTo(tokenizer.count(history.get(0)) + tokenizer.count(history.get(1)));
+        assertThat(plan.sourceTokens()).isEqualTo(tokenizer.count("a.pdf: first") + tokenizer.count("b.pdf: second"));
+        assertThat(plan.totalTokens()).isEqualTo(plan.systemTokens() + plan.historyTokens() + plan.sourceTokens()
+                + plan.questionTokens() + Tokenizer.TOKENS_PER_REPLY);
+    }
+
+    @Test
+    void trimsTheOldestTurnsWithoutStartingOnAnAnswer() {
+        var oldQuestion = UserMessage.from(words("old", 50));
+        var oldAnswer = AiMessage.from(words("answer", 50));
+        var question = UserMessage.from(words("recent", 20));
+        var answer = AiMessage.from(words("reply", 20));
+        List<ChatMessage> history = List.of(oldQuestion, oldAnswer, question, answer);
+
+        // Room for the old answer and the last turn, but not for the old question
+        int maxHistoryTokens = tokenizer.count(oldAnswer) + tokenizer.count(question) + tokenizer.count(answer);
+        var plan = budgeter(10_000, maxHistoryTokens, 10).plan(SYSTEM, history, List.of(), FORMATTER, QUESTION);
+
+        assertThat(plan.history()).containsExactly(question, answer);
+        assertThat(plan.droppedMessages()).isEqualTo(2);
+        assertThat(plan.historyTokens()).isEqualTo(tokenizer.count(question) + tokenizer.count(answer));
+    }
+
+    @Test
+    void dropsTheLowestScoredSourcesAndKeepsTheRetrievalOrder() {
+        var low = source(words("low", 40), 0.1);
+        var high = source(words("high", 40), 0.9);
+        var middle = source(words("middle", 40), 0.5);
+
+        int maxPromptTokens = fixedTokens() + tokenizer.count(FORMATTER.apply(high)) + tokenizer.count(FORMATTER.apply(middle));
+        var plan = budgeter(maxPromptTokens, 0, 1_000).plan(SYSTEM, List.of(), List.of(low, high, middle), FORMATTER, QUESTION);
+
+        assertThat(plan.sources()).containsExactly(high, middle);
+        assertThat(plan.droppedSources()).isEqualTo(1);
+        assertThat(plan.totalTokens()).isEqualTo(maxPromptTokens);
+    }
+
+    @Test
+    void prefersTheRerankedScore() {
+        var rerankedHigh = Content.from(TextSegment.from(words("reranked", 40)),
+                Map.of(ContentMetadata.SCORE, 0.1, ContentMetadata.RERANKED_SCORE, 3.5));
+        var scoredHigh = Content.from(TextSegment.from(words("scored", 40)),
+                Map.of(ContentMetadata.SCORE, 0.9, ContentMetadata.RERANKED_SCORE, 1.0));
+
+        int maxPromptTokens = fixedTokens() + tokenizer.count(FORMATTER.apply(rerankedHigh));
+        var plan = budgeter(maxPromptTokens, 0, 1_000).plan(SYSTEM, List.of(), List.of(scoredHigh, rerankedHigh), FORMATTER, QUESTION);
+
+        assertThat(plan.sources()).containsExactly(rerankedHigh);
+    }
+
+    @Test
+    void truncatesTheLastSourceWhenEnoughOfItFits() {
+        var first = source(words("first", 40), 0.9);
+        var second = source(words("second", 200), 0.5);
+
+        int maxPromptTokens = fixedTokens() + tokenizer.count(FORMATTER.apply(first)) + 50;
+        var plan = budgeter(maxPromptTokens, 0, 50).plan(SYSTEM, List.of(), List.of(first, second), FORMATTER, QUESTION);
+
+        assertThat(plan.sources()).hasSize(2);
+        assertThat(plan.sources().get(0)).isSameAs(first);
+        var truncated = plan.sources().get(1);
+        assertThat(second.textSegment().text()).startsWith(truncated.textSegment().text());
+        assertThat(tokenizer.count(truncated.textSegment().text())).isEqualTo(50);
+        assertThat(truncated.metadata()).isEqualTo(second.metadata());
+        assertThat(plan.truncatedSources()).isEqualTo(1);
+        assertThat(plan.droppedSources()).isZero();
+        assertThat(plan.totalTokens()).isEqualTo(maxPromptTokens);
+    }
+
+    @Test
+    void skipsSourcesTooLargeToTruncateButKeepsSmallerOnes() {
+        var large = source(words("large", 200), 0.9);
+        var small = source(words("small", 10), 0.5);
+
+        // Not enough room for minSourceTokens of the large source, enough for the small one
+        int maxPromptTokens = fixedTokens() + tokenizer.count(FORMATTER.apply(small)) + 5;
+        var plan = budgeter(maxPromptTokens, 0, 50).plan(SYSTEM, List.of(), List.of(large, small), FORMATTER, QUESTION);
+
+        assertThat(plan.sources()).containsExactly(small);
+        assertThat(plan.truncatedSources()).isZero();
+        assertThat(plan.droppedSources()).isEqualTo(1);
+    }
+
+    @Test
+    void historyIsCappedEvenWhenThePromptHasRoom() {
+        List<ChatMessage> history = List.of(UserMessage.from(words("question", 100)), AiMessage.from(words("answer", 100)));
+
+        var plan = budgeter(10_000, 50, 10).plan(SYSTEM, history, List.of(), FORMATTER, QUESTION);
+
+        assertThat(plan.history()).isEmpty();
+        assertThat(plan.historyTokens()).isZero();
+        assertThat(plan.droppedMessages()).isEqualTo(2);
+    }
+
+    private PromptBudgeter budgeter(int maxPromptTokens, int maxHistoryTokens, int minSourceTokens) {
+        return new PromptBudgeter(tokenizer, maxPromptTokens, maxHistoryTokens, minSourceTokens);
+    }
+
+    private int fixedTokens() {
+        return 2 * Tokenizer.TOKENS_PER_MESSAGE + tokenizer.count(SYSTEM) + tokenizer.count(QUESTION) + Tokenizer.TOKENS_PER_REPLY;
+    }
+
+    private static Content source(String text, double score) {
+        return Content.from(TextSegment.from(text), Map.of(ContentMetadata.SCORE, score));
+    }
+
+    private static String words(String word, int count) {
+        return (word + " ").repeat(count).strip();
+    }
+}
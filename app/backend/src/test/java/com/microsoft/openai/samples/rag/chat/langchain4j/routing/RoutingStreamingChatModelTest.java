@@ -0,0 +1,322 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.chat.langchain4j.routing;
+
+import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpPipelineBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.azure.AzureOpenAiStreamingChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Runs the routed streaming model over real Azure OpenAI clients against a stub server, one deployment per route.
+ */
+class RoutingStreamingChatModelTest {
+
+    private static final Duration COOLDOWN = Duration.ofSeconds(10);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Map<String, Deployment> deployments = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private HttpServer server;
+
+    @FunctionalInterface
+    private interface Deployment {
+        void handle(HttpExchange exchange) throws IOException, InterruptedException;
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/openai/deployments/", exchange -> {
+            String deployment = exchange.getRequestURI().getPath().split("/")[3];
+            requests.computeIfAbsent(deployment, d -> new AtomicInteger()).incrementAndGet();
+            try (exchange) {
+                deployments.get(deployment).handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The client cancelled the stream
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    void failsOverOnThrottlingAndCoolsDownForRetryAfterMs() {
+        deployments.put("a", exchange -> status(exchange, 429, Map.of("retry-after-ms", "5000")));
+        deployments.put("b", exchange -> stream(exchange, "Hello", " world"));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, null));
+
+        assertThat(result.tokens).containsExactly("Hello", " world");
+        assertThat(result.response.join().metadata()).isInstanceOf(RoutedChatResponseMetadata.class)
+                .extracting(metadata -> ((RoutedChatResponseMetadata) metadata).route()).isEqualTo("b");
+        assertThat(cooldownMs(routes.get(0))).isCloseTo(5_000, within(500.0));
+        assertThat(routes.get(0).errorRate()).isPositive();
+        assertInFlightReleased(routes);
+    }
+
+    @Test
+    void coolsDownForRetryAfterSeconds() {
+        deployments.put("a", exchange -> status(exchange, 503, Map.of("Retry-After", "7")));
+        deployments.put("b", exchange -> stream(exchange, "Hello"));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, null));
+
+        assertThat(result.tokens).containsExactly("Hello");
+        assertThat(cooldownMs(routes.get(0))).isCloseTo(7_000, within(500.0));
+    }
+
+    @Test
+    void failsOverOnServerErrorsAndCoolsDownForTheDefault() {
+        deployments.put("a", exchange -> status(exchange, 500, Map.of()));
+        deployments.put("b", exchange -> stream(exchange, "Hello"));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, null));
+
+        assertThat(result.tokens).containsExactly("Hello");
+        assertThat(cooldownMs(routes.get(0))).isCloseTo(COOLDOWN.toMillis(), within(500.0));
+        assertThat(meterRegistry.get("rag.openai.route.requests").tags("route", "a", "outcome", "error").counter().count())
+                .isEqualTo(1);
+        assertThat(meterRegistry.get("rag.openai.route.requests").tags("route", "b", "outcome", "ok").counter().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void failsWithTheLastErrorWhenEveryRouteFails() {
+        deployments.put("a", exchange -> status(exchange, 500, Map.of()));
+        deployments.put("b", exchange -> status(exchange, 502, Map.of()));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, null));
+
+        assertThat(result.error.join()).isInstanceOf(HttpResponseException.class);
+        assertThat(((HttpResponseException) result.error.join()).getResponse().getStatusCode()).isEqualTo(502);
+        assertInFlightReleased(routes);
+    }
+
+    @Test
+    void doesNotRetryClientErrors() {
+        deployments.put("a", exchange -> status(exchange, 400, Map.of()));
+        deployments.put("b", exchange -> stream(exchange, "Hello"));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, null));
+
+        assertThat(result.error.join()).isInstanceOf(HttpResponseException.class);
+        assertThat(((HttpResponseException) result.error.join()).getResponse().getStatusCode()).isEqualTo(400);
+        assertThat(requests).doesNotContainKey("b");
+        // The deployment is fine, the request is not
+        assertThat(routes.get(0).isAvailable(System.nanoTime())).isTrue();
+        assertInFlightReleased(routes);
+    }
+
+    @Test
+    void hedgesASlowFirstTokenAndCancelsTheLoser() throws InterruptedException {
+        var slowStarted = new CompletableFuture<Void>();
+        deployments.put("a", exchange -> {
+            slowStarted.complete(null);
+            Thread.sleep(500);
+            stream(exchange, "Slow", " answer");
+        });
+        deployments.put("b", exchange -> stream(exchange, "Fast", " answer"));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, Duration.ofMillis(100)));
+
+        assertThat(slowStarted).isDone();
+        assertThat(result.tokens).containsExactly("Fast", " answer");
+        assertThat(((RoutedChatResponseMetadata) result.response.join().metadata()).route()).isEqualTo("b");
+        assertThat(meterRegistry.get("rag.openai.hedges").tag("outcome", "won").counter().count()).isEqualTo(1);
+        // The loser was at least as slow as the hedge delay
+        assertThat(routes.get(0).latencyMs()).isGreaterThanOrEqualTo(100);
+
+        // The loser is cancelled at its first token, after the answer completed
+        awaitInFlightReleased(routes);
+        assertThat(result.tokens).containsExactly("Fast", " answer");
+        assertThat(result.error).isNotDone();
+    }
+
+    @Test
+    void doesNotHedgeAFastFirstToken() throws InterruptedException {
+        deployments.put("a", exchange -> stream(exchange, "Hello"));
+        deployments.put("b", exchange -> stream(exchange, "Hedged"));
+        // The first request loads the HTTP client, warm it up so that the first token comes within the delay
+        chat(model(routes("a"), 1, null));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, Duration.ofMillis(200)));
+        Thread.sleep(300);
+
+        assertThat(result.tokens).containsExactly("Hello");
+        assertThat(requests).doesNotContainKey("b");
+    }
+
+    @Test
+    void doesNotSwitchRoutesOnceTokensWereForwarded() {
+        deployments.put("a", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            body.write(chunk("Partial").getBytes(StandardCharsets.UTF_8));
+            body.flush();
+            Thread.sleep(100);
+            body.write("data: {not json\n\n".getBytes(StandardCharsets.UTF_8));
+        });
+        deployments.put("b", exchange -> stream(exchange, "Other"));
+        var routes = routes("a", "b");
+
+        var result = chat(model(routes, 2, null));
+
+        assertThat(result.error.join()).isNotNull();
+        assertThat(result.tokens).containsExactly("Partial");
+        assertThat(requests).doesNotContainKey("b");
+        assertInFlightReleased(routes);
+    }
+
+    /**
+     * @return the routes of the given deployments of the stub server, in this order while none has a latency
+     */
+    private List<DeploymentRoute<StreamingChatModel>> routes(String... names) {
+        String endpoint = "http://localhost:" + server.getAddress().getPort();
+        return Arrays.stream(names)
+                .map(name -> new DeploymentRoute<StreamingChatModel>(name, streamingChatModel(endpoint, name), 0.2))
+                .toList();
+    }
+
+    private RoutingStreamingChatModel model(List<DeploymentRoute<StreamingChatModel>> routes, int maxAttempts, Duration hedgeDelay) {
+        // No exploration, so that the routes are tried in order
+        var router = new DeploymentRouter<>("stream", routes, meterRegistry, 0, COOLDOWN, maxAttempts);
+        return new RoutingStreamingChatModel(router, hedgeDelay, meterRegistry);
+    }
+
+    /**
+     * The pipeline has no retry policy, so that the routes see each failure, and no credential policy, which would
+     * require https.
+     */
+    private static StreamingChatModel streamingChatModel(String endpoint, String deployment) {
+        var client = new OpenAIClientBuilder()
+                .endpoint(endpoint)
+                .pipeline(new HttpPipelineBuilder().build())
+                .buildAsyncClient();
+        return new AzureOpenAiStreamingChatModel(null, client, deployment, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, List.of(), Set.of());
+    }
+
+    private static Result chat(StreamingChatModel model) {
+        var result = new Result();
+        model.chat(ChatRequest.builder().messages(UserMessage.from("Hi")).build(), result);
+        try {
+            CompletableFuture.anyOf(result.response, result.error).get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new AssertionError("No response from the routed model", e);
+        }
+        return result;
+    }
+
+    private static final class Result implements StreamingChatResponseHandler {
+
+        private final List<String> tokens = new CopyOnWriteArrayList<>();
+        private final CompletableFuture<ChatResponse> response = new CompletableFuture<>();
+        private final CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            tokens.add(partialResponse);
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse completeResponse) {
+            response.complete(completeResponse);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error.complete(error);
+        }
+    }
+
+    private static double cooldownMs(DeploymentRoute<?> route) {
+        return (route.unavailableUntil() - System.nanoTime()) / 1_000_000.0;
+    }
+
+    private static void assertInFlightReleased(List<? extends DeploymentRoute<?>> routes) {
+        assertThat(routes).allSatisfy(route -> assertThat(route.inFlight()).as(route.name()).isZero());
+    }
+
+    private static void awaitInFlightReleased(List<? extends DeploymentRoute<?>> routes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (routes.stream().anyMatch(route -> route.inFlight() > 0) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertInFlightReleased(routes);
+    }
+
+    private static void status(HttpExchange exchange, int status, Map<String, String> headers) throws IOException {
+        headers.forEach(exchange.getResponseHeaders()::set);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        byte[] body = "{\"error\":{\"code\":\"%d\",\"message\":\"stub\"}}".formatted(status).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void stream(HttpExchange exchange, String... tokens) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+        for (String token : tokens) {
+            body.write(chunk(token).getBytes(StandardCharsets.UTF_8));
+            body.flush();
+        }
+        body.write(("data: {\"id\":\"1\",\"object\":\"chat.completion.chunk\",\"created\":1,\"model\":\"gpt-4o-mini\","
+                + "\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"stop\"}]}\n\n").getBytes(StandardCharsets.UTF_8));
+        body.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String chunk(String token) {
+        return ("data: {\"id\":\"1\",\"object\":\"chat.completion.chunk\",\"created\":1,\"model\":\"gpt-4o-mini\","
+                + "\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":\"%s\"},\"finish_reason\":null}]}\n\n")
+                .formatted(token);
+    }
+}
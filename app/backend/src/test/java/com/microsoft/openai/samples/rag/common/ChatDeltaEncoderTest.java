@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.openai.samples.rag.model.ChatAppResponse;
+import com.microsoft.openai.samples.rag.model.ResponseContext;
+import com.microsoft.openai.samples.rag.model.ResponseMessage;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChatDeltaEncoderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "The deductible is $2,000",
+            "He said \"no\" \\ twice",
+            "line\nbreak\ttab\rreturn\bback\fform",
+            "control \u0000 \u0001 \u001F chars",
+            "accents \u00E9 \u00F1 \u00FC and CJK \u4FDD\u967A",
+            "emoji \uD83D\uDE00 outside the BMP",
+            "unpaired \uD83D surrogates \uDE00",
+            "<<Are there exclusions?>>"
+    })
+    void writesTheSameBytesAsJackson(String content) throws IOException {
+        var out = new ByteArrayOutputStream();
+        ChatDeltaEncoder.writeDelta(content, out);
+
+        assertThat(out.toByteArray()).isEqualTo(objectMapper.writeValueAsBytes(ResponseMessageUtils.buildDelta(content)));
+    }
+
+    @Test
+    void growsTheBufferForLargeDeltas() throws IOException {
+        String content = "\"quoted\" text\n".repeat(5_000);
+        for (int i = 0; i < 2; i++) {
+            var out = new ByteArrayOutputStream();
+            ChatDeltaEncoder.writeDelta(content, out);
+            assertThat(out.toByteArray()).isEqualTo(objectMapper.writeValueAsBytes(ResponseMessageUtils.buildDelta(content)));
+        }
+
+        var out = new ByteArrayOutputStream();
+        ChatDeltaEncoder.writeDelta("short", out);
+        assertThat(out.toString()).isEqualTo("{\"delta\":{\"content\":\"short\",\"role\":\"assistant\"}}");
+    }
+
+    @Test
+    void onlyPlainAssistantDeltasAreEncoded() {
+        assertThat(ChatDeltaEncoder.isPlainDelta(ResponseMessageUtils.buildDelta("token"))).isTrue();
+
+        var userDelta = new ChatAppResponse(null, null, new ResponseMessage("token", ResponseMessage.ChatRole.USER), null, null);
+        var withContext = new ChatAppResponse(
+                null, new ResponseContext(null, null, List.of()), new ResponseMessage("token", ResponseMessage.ChatRole.ASSISTANT), null, null);
+        var withSessionState = new ChatAppResponse(
+                null, null, new ResponseMessage("token", ResponseMessage.ChatRole.ASSISTANT), null, "session");
+        var emptyDelta = new ChatAppResponse(null, null, new ResponseMessage(null, ResponseMessage.ChatRole.ASSISTANT), null, null);
+
+        assertThat(ChatDeltaEncoder.isPlainDelta(userDelta)).isFalse();
+        assertThat(ChatDeltaEncoder.isPlainDelta(withContext)).isFalse();
+        assertThat(ChatDeltaEncoder.isPlainDelta(withSessionState)).isFalse();
+        assertThat(ChatDeltaEncoder.isPlainDelta(emptyDelta)).isFalse();
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.search.documents.SearchClientBuilder;
+import com.microsoft.openai.samples.rag.approaches.RAGOptions;
+import com.microsoft.openai.samples.rag.approaches.RetrievalStrategy;
+import com.microsoft.openai.samples.rag.common.ChatMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContentRetrieverCacheTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void sharesRetrieversAcrossUsersWithTheSameFilterShape() {
+        var cache = cache(64);
+
+        cache.get(options("hybrid", 3, "internal"), "alice");
+        cache.get(options("hybrid", 3, "internal"), "bob");
+        cache.get(options("hybrid", 3, "other"), "carol");
+
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(requests("miss")).isEqualTo(1);
+        assertThat(requests("hit")).isEqualTo(2);
+    }
+
+    @Test
+    void keysRetrieversByTheRetrievalParameters() {
+        var cache = cache(64);
+
+        cache.get(options("hybrid", 3, null), "alice");
+        cache.get(options("text", 3, null), "alice");
+        cache.get(options("hybrid", 5, null), "alice");
+        cache.get(options("hybrid", 3, "internal"), "alice");
+        cache.get(options("hybrid", 3, null), null);
+
+        assertThat(cache.size()).isEqualTo(5);
+        assertThat(requests("miss")).isEqualTo(5);
+        assertThat(requests("hit")).isZero();
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedRetriever() {
+        var cache = cache(2);
+
+        cache.get(options("hybrid", 1, null), "alice");
+        cache.get(options("hybrid", 2, null), "alice");
+        cache.get(options("hybrid", 1, null), "alice");
+        cache.get(options("hybrid", 3, null), "alice");
+        assertThat(cache.size()).isEqualTo(2);
+
+        // top 1 was used more recently than top 2, which was evicted
+        cache.get(options("hybrid", 1, null), "alice");
+        assertThat(requests("hit")).isEqualTo(2);
+        cache.get(options("hybrid", 2, null), "alice");
+        assertThat(requests("miss")).isEqualTo(4);
+    }
+
+    private ContentRetrieverCache cache(int maxSize) {
+        var searchClient = new SearchClientBuilder()
+                .endpoint("https://search.search.windows.net")
+                .credential(new AzureKeyCredential("key"))
+                .indexName("gptkbindex")
+                .buildClient();
+        var sourceDiversifier = new SourceDiversifier(meterRegistry, false, 3, 0.7, 3, true);
+        var multiQueryRetriever = new MultiQueryRetriever(null, meterRegistry, RetrievalStrategy.single, 4, true, 3, 3000, 60);
+        return new ContentRetrieverCache(searchClient, null, meterRegistry, multiQueryRetriever, sourceDiversifier,
+                new ChatMetrics(meterRegistry, "gpt-4o-mini", false), true, maxSize);
+    }
+
+    private double requests(String result) {
+        return meterRegistry.counter("rag.retriever.cache.requests", "result", result).count();
+    }
+
+    private static RAGOptions options(String retrievalMode, int top, String excludeCategory) {
+        return new RAGOptions.Builder()
+                .retrievialMode(retrievalMode)
+                .top(top)
+                .excludeCategory(excludeCategory)
+                .build();
+    }
+}
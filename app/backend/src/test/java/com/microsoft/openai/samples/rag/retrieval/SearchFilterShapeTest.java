@@ -0,0 +1,33 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SearchFilterShapeTest {
+
+    @Test
+    void dependsOnWhichValuesAreSet() {
+        assertThat(SearchFilterShape.of(null, "", true)).isEqualTo(SearchFilterShape.NONE);
+        assertThat(SearchFilterShape.of("", "internal", true)).isEqualTo(SearchFilterShape.CATEGORY);
+        assertThat(SearchFilterShape.of("oid", null, true)).isEqualTo(SearchFilterShape.OID_OR_DEFAULT);
+        assertThat(SearchFilterShape.of("oid", "internal", true)).isEqualTo(SearchFilterShape.CATEGORY_AND_OID_OR_DEFAULT);
+        assertThat(SearchFilterShape.of("oid", null, false)).isEqualTo(SearchFilterShape.OID);
+        assertThat(SearchFilterShape.of("oid", "internal", false)).isEqualTo(SearchFilterShape.CATEGORY_AND_OID);
+    }
+
+    @Test
+    void rendersTheValuesIntoTheFilter() {
+        assertThat(SearchFilterShape.NONE.render("oid", "internal")).isNull();
+        assertThat(SearchFilterShape.CATEGORY_AND_OID_OR_DEFAULT.render("oid-1", "internal")).isEqualTo(
+                "not metadata/attributes/any(k: k/key eq 'category' and k/value eq 'internal')"
+                        + " and metadata/attributes/any(k: k/key eq 'oid' and (k/value eq 'oid-1' or k/value eq 'default'))");
+    }
+
+    @Test
+    void escapesQuotesInTheValues() {
+        assertThat(SearchFilterShape.OID.render("x' or k/value ne '", null))
+                .isEqualTo("metadata/attributes/any(k: k/key eq 'oid' and k/value eq 'x'' or k/value ne ''')");
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright (c) Microsoft. All rights reserved.
+package com.microsoft.openai.samples.rag.retrieval;
+
+import dev.langchain4j.rag.content.Content;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SourceDiversifierTest {
+
+    private static final String COVERAGE = "Northwind Health Plus covers emergency services, mental health and substance abuse"
+            + " coverage, as well as prescription drug coverage. In-network providers are covered at a higher rate, and the"
+            + " deductible is $2,000 per person. Preventive care is covered at no cost when received from an in-network"
+            + " provider, including annual physicals, immunizations and screenings.";
+    private static final String VACATION = "The employee handbook describes the vacation policy: full-time employees accrue"
+            + " fifteen days of paid time off each year, and unused days can be carried over to the next year up to a limit"
+            + " of five days.";
+    private static final String WELLNESS = "Employees can join the wellness program, which reimburses gym memberships and"
+            + " fitness classes up to $300 per year when receipts are submitted through the benefits portal.";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void simHashIgnoresCaseAndPunctuation() {
+        assertThat(SourceDiversifier.simHash(COVERAGE.toUpperCase().replace(",", " ;")))
+                .isEqualTo(SourceDiversifier.simHash(COVERAGE));
+        assertThat(SourceDiversifier.simHash("")).isZero();
+        assertThat(SourceDiversifier.simHash(" ... ")).isZero();
+        assertThat(SourceDiversifier.simHash("two words")).isNotZero();
+    }
+
+    @Test
+    void simHashDistanceGrowsWithTheDifference() {
+        long hash = SourceDiversifier.simHash(COVERAGE);
+        String edited = COVERAGE.replace("higher rate", "better rate");
+        String overlapping = COVERAGE.substring(COVERAGE.indexOf("In-network"))
+                + " Out-of-network providers require prior authorization for non-emergency care.";
+
+        int editedDistance = Long.bitCount(hash ^ SourceDiversifier.simHash(edited));
+        int overlappingDistance = Long.bitCount(hash ^ SourceDiversifier.simHash(overlapping));
+        int unrelatedDistance = Long.bitCount(hash ^ SourceDiversifier.simHash(VACATION));
+
+        assertThat(editedDistance).isPositive().isLessThan(overlappingDistance);
+        assertThat(overlappingDistance).isLessThan(unrelatedDistance);
+    }
+
+    @Test
+    void collapsesNearDuplicatesKeepingTheBestRanked() {
+        var best = Content.from(COVERAGE);
+        var reindexed = Content.from(COVERAGE.replace(". ", ".\n\n"));
+        var other = Content.from(VACATION);
+
+        var selected = diversifier(1.0, 3).select(List.of(
+                candidate(best, 0.9, null),
+                candidate(reindexed, 0.8, null),
+                candidate(other, 0.7, null)), 3);
+
+        assertThat(selected).containsExactly(best, other);
+        assertThat(meterRegistry.counter("rag.retrieval.diversify.collapsed").count()).isEqualTo(1);
+    }
+
+    @Test
+    void prefersDiverseSourcesOverSimilarOnes() {
+        var coverage = Content.from(COVERAGE);
+        var similar = Content.from(VACATION);
+        var different = Content.from(WELLNESS);
+        List<SourceDiversifier.Candidate> candidates = List.of(
+                candidate(coverage, 1.0, new float[]{1, 0, 0}),
+                candidate(similar, 0.9, new float[]{0.99f, 0.14f, 0}),
+                candidate(different, 0.8, new float[]{0, 0, 1}));
+
+        assertThat(diversifier(0.7, 3).select(candidates, 3)).containsExactly(coverage, different, similar);
+        assertThat(diversifier(0.7, 3).select(candidates, 2)).containsExactly(coverage, different);
+        // relevance only
+        assertThat(diversifier(1.0, 3).select(candidates, 2)).containsExactly(coverage, similar);
+    }
+
+    @Test
+    void fallsBackToTheRankWithoutScores() {
+        var first = Content.from(COVERAGE);
+        var second = Content.from(VACATION);
+        var third = Content.from(WELLNESS);
+
+        var selected = diversifier(1.0, 3).select(List.of(
+                candidate(first, 0, null), candidate(second, 0, null), candidate(third, 0, null)), 3);
+
+        assertThat(selected).containsExactly(first, second, third);
+    }
+
+    @Test
+    void passesSingleCandidatesThrough() {
+        var only = Content.from(COVERAGE);
+
+        assertThat(diversifier(0.7, 3).select(List.of(), 3)).isEmpty();
+        assertThat(diversifier(0.7, 3).select(List.of(candidate(only, 0.5, null)), 3)).containsExactly(only);
+    }
+
+    @Test
+    void overFetchesOnlyWhenEnabled() {
+        assertThat(diversifier(0.7, 3).fetchSize(5)).isEqualTo(15);
+        assertThat(diversifier(0.7, 3).useVectors()).isTrue();
+
+        var disabled = new SourceDiversifier(meterRegistry, false, 3, 0.7, 3, true);
+        assertThat(disabled.fetchSize(5)).isEqualTo(5);
+        assertThat(disabled.useVectors()).isFalse();
+    }
+
+    private SourceDiversifier diversifier(double lambda, int maxHammingDistance) {
+        return new SourceDiversifier(meterRegistry, true, 3, lambda, maxHammingDistance, true);
+    }
+
+    private static SourceDiversifier.Candidate candidate(Content content, double score, float[] vector) {
+        return new SourceDiversifier.Candidate(content, score, vector);
+    }
+}
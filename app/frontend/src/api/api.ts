@@ -1,6 +1,15 @@
 const BACKEND_URI = "api";
 
-import { ChatAppResponse, ChatAppResponseOrError, ChatAppRequest, Config, SimpleAPIResponse, HistoryListApiResponse, HistoryApiResponse } from "./models";
+import {
+    ChatAppResponse,
+    ChatAppResponseOrError,
+    ChatAppRequest,
+    Config,
+    SimpleAPIResponse,
+    HistoryListApiResponse,
+    HistoryApiResponse,
+    Thoughts
+} from "./models";
 import { useLogin, getToken, isUsingAppServicesLogin } from "../authConfig";
 
 export async function getHeaders(idToken: string | undefined): Promise<Record<string, string>> {
@@ -54,6 +63,21 @@ export async function chatApi(request: ChatAppRequest, shouldStream: boolean, id
     });
 }
 
+export async function getThoughtsApi(id: string, idToken: string | undefined): Promise<Thoughts[]> {
+    const headers = await getHeaders(idToken);
+    const response = await fetch(`${BACKEND_URI}/chat/thoughts/${id}`, {
+        method: "GET",
+        headers: headers
+    });
+
+    if (!response.ok) {
+        throw new Error(`Getting thoughts failed: ${response.statusText}`);
+    }
+
+    const context: { thoughts: Thoughts[] } = await response.json();
+    return context.thoughts;
+}
+
 export async function getSpeechApi(text: string): Promise<string | null> {
     return await fetch("/speech", {
         method: "POST",
@@ -56,6 +56,7 @@ export type ResponseContext = {
     data_points: string[];
     followup_questions: string[] | null;
     thoughts: Thoughts[];
+    thoughts_id?: string;
 };
 
 export type ChatAppResponseOrError = {
@@ -98,6 +99,7 @@ export type Config = {
     showSpeechOutputAzure: boolean;
     showChatHistoryBrowser: boolean;
     showChatHistoryCosmos: boolean;
+    serverConversationEnabled: boolean;
 };
 
 export type SimpleAPIResponse = {
@@ -3,7 +3,7 @@ import { useTranslation } from "react-i18next";
 import styles from "./AnalysisPanel.module.css";
 
 import { SupportingContent } from "../SupportingContent";
-import { ChatAppResponse } from "../../api";
+import { ChatAppResponse, Thoughts, getThoughtsApi } from "../../api";
 import { AnalysisPanelTabs } from "./AnalysisPanelTabs";
 import { ThoughtProcess } from "./ThoughtProcess";
 import { MarkdownViewer } from "../MarkdownViewer";
@@ -24,10 +24,11 @@ interface Props {
 const pivotItemDisabledStyle = { disabled: true, style: { color: "grey" } };
 
 export const AnalysisPanel = ({ answer, activeTab, activeCitation, citationHeight, className, onActiveTabChanged }: Props) => {
-    const isDisabledThoughtProcessTab: boolean = !answer.context.thoughts;
+    const isDisabledThoughtProcessTab: boolean = !answer.context.thoughts && !answer.context.thoughts_id;
     const isDisabledSupportingContentTab: boolean = !answer.context.data_points;
     const isDisabledCitationTab: boolean = !activeCitation;
     const [citation, setCitation] = useState("");
+    const [thoughts, setThoughts] = useState<Thoughts[] | undefined>(answer.context.thoughts);
 
     const client = useLogin ? useMsal().instance : undefined;
     const { t } = useTranslation();
@@ -55,6 +56,25 @@ export const AnalysisPanel = ({ answer, activeTab, activeCitation, citationHeigh
         fetchCitation();
     }, []);
 
+    // Slim responses carry a thoughts id instead of the thoughts, fetched when the tab is opened
+    const fetchThoughts = async () => {
+        const token = client ? await getToken(client) : undefined;
+        try {
+            setThoughts(await getThoughtsApi(answer.context.thoughts_id!, token));
+        } catch (e) {
+            console.error(e);
+            setThoughts([]);
+        }
+    };
+    useEffect(() => {
+        setThoughts(answer.context.thoughts);
+    }, [answer]);
+    useEffect(() => {
+        if (activeTab === AnalysisPanelTabs.ThoughtProcessTab && !thoughts && answer.context.thoughts_id) {
+            fetchThoughts();
+        }
+    }, [activeTab, thoughts, answer]);
+
     const renderFileViewer = () => {
         if (!activeCitation) {
             return null;
@@ -82,7 +102,7 @@ export const AnalysisPanel = ({ answer, activeTab, activeCitation, citationHeigh
                 headerText={t("headerTexts.thoughtProcess")}
                 headerButtonProps={isDisabledThoughtProcessTab ? pivotItemDisabledStyle : undefined}
             >
-                <ThoughtProcess thoughts={answer.context.thoughts || []} />
+                <ThoughtProcess thoughts={thoughts || []} />
             </PivotItem>
             <PivotItem
                 itemKey={AnalysisPanelTabs.SupportingContentTab}
@@ -89,6 +89,7 @@ const Chat = () => {
     const [showSpeechOutputAzure, setShowSpeechOutputAzure] = useState<boolean>(false);
     const [showChatHistoryBrowser, setShowChatHistoryBrowser] = useState<boolean>(false);
     const [showChatHistoryCosmos, setShowChatHistoryCosmos] = useState<boolean>(false);
+    const [serverConversationEnabled, setServerConversationEnabled] = useState<boolean>(false);
     const audio = useRef(new Audio()).current;
     const [isPlaying, setIsPlaying] = useState(false);
 
@@ -129,6 +130,7 @@ const Chat = () => {
             setShowSpeechOutputAzure(config.showSpeechOutputAzure);
             setShowChatHistoryBrowser(config.showChatHistoryBrowser);
             setShowChatHistoryCosmos(config.showChatHistoryCosmos);
+            setServerConversationEnabled(config.serverConversationEnabled);
         });
     };
 
@@ -200,9 +202,12 @@ const Chat = () => {
                 { content: a[0], role: "user" },
                 { content: a[1].message.content, role: "assistant" }
             ]);
+            const sessionState = answers.length ? answers[answers.length - 1][1].session_state : null;
+            // The server keeps the conversation of the session, only the new question is sent
+            const sendQuestionOnly = serverConversationEnabled && !!sessionState;
 
             const request: ChatAppRequest = {
-                messages: [...messages, { content: question, role: "user" }],
+                messages: sendQuestionOnly ? [{ content: question, role: "user" }] : [...messages, { content: question, role: "user" }],
                 context: {
                     overrides: {
                         prompt_template: promptTemplate.length === 0 ? undefined : promptTemplate,
@@ -228,10 +233,14 @@ const Chat = () => {
                     }
                 },
                 // AI Chat Protocol: Client must pass on any session state received from the server
-                session_state: answers.length ? answers[answers.length - 1][1].session_state : null
+                session_state: sessionState
             };
 
-            const response = await chatApi(request, shouldStream, token);
+            let response = await chatApi(request, shouldStream, token);
+            if (response.status === 409 && sendQuestionOnly) {
+                // The server no longer knows the session, resend the whole history
+                response = await chatApi({ ...request, messages: [...messages, { content: question, role: "user" }] }, shouldStream, token);
+            }
             if (!response.body) {
                 throw Error("No response body");
             }
@@ -0,0 +1,52 @@
+package com.microsoft.openai.samples.indexer.langchain4j;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event of a {@link Langchain4JIndexingPipeline} stage: load, parse, split, embed or store.
+ * Disabled unless a recording enables it, e.g. with the backend jfr/rag.jfc settings:
+ * -XX:StartFlightRecording:settings=default,settings=rag.jfc,filename=indexer.jfr
+ */
+@Name("com.microsoft.openai.samples.indexer.IndexingStage")
+@Label("Indexing Stage")
+@Category({"RAG", "Indexing"})
+@Description("Stage of the indexing pipeline for a document")
+@StackTrace(false)
+public class IndexingStageEvent extends Event {
+
+    @Label("Document")
+    @Description("File name or url of the indexed document")
+    public String document;
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Characters")
+    public long chars;
+
+    @Label("Segments")
+    public int segments;
+
+    @Label("Tokens")
+    @Description("Tokens embedded")
+    public long tokens;
+
+    IndexingStageEvent(String document, String stage) {
+        this.document = document;
+        this.stage = stage;
+    }
+
+    /**
+     * @return a started event for the document of the pipeline context
+     */
+    static IndexingStageEvent begin(PipelineContext ctx, String stage) {
+        var event = new IndexingStageEvent(ctx.get("filename-or-url", String.class), stage);
+        event.begin();
+        return event;
+    }
+}
@@ -7,6 +7,7 @@ import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.data.segment.TextSegmentTransformer;
 import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,6 +16,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 
+/**
+ * Indexes a file: load, parse, transform, split, transform the segments, embed and store. The load, parse, split,
+ * embed and store stages are recorded as JDK Flight Recorder {@link IndexingStageEvent}s.
+ */
 public class Langchain4JIndexingPipeline {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Langchain4JIndexingPipeline.class);
@@ -98,15 +103,18 @@ public class Langchain4JIndexingPipeline {
     }
 
     protected DocumentSource loadDocumentSource(PipelineContext ctx) {
+        var event = IndexingStageEvent.begin(ctx, "load");
         var documentSource = documentSourceProvider.getSource(ctx);
 
         if (documentSource == null) {
             throw new IllegalStateException("DocumentSource is not set. Please ensure it is provided before calling loadDocumentSource.");
         }
+        event.commit();
         return documentSource;
     }
 
     protected Document parse(PipelineContext ctx, DocumentSource documentSource)throws IOException {
+        var event = IndexingStageEvent.begin(ctx, "parse");
         var documentParser = parserProvider.getParser(ctx);
         Document document;
         try (var inputStream = documentSource.inputStream()) {
@@ -116,6 +124,11 @@ public class Langchain4JIndexingPipeline {
         }
 
         LOGGER.info("Parsed [{}] chars for document {}", document.text().length(), document.metadata());
+        if (event.shouldCommit()) {
+            event.chars = document.text().length();
+            if (document instanceof PagedDocument pagedDocument) event.segments = pagedDocument.getAllPages().size();
+            event.commit();
+        }
         return document;
     }
 
@@ -134,6 +147,7 @@ public class Langchain4JIndexingPipeline {
     }
 
     protected List<TextSegment> split(PipelineContext ctx, Document document) {
+        var event = IndexingStageEvent.begin(ctx, "split");
         DocumentSplitter splitter = this.splitterProvider.getSplitter(ctx);
         LOGGER.debug("Using document splitter: {}", splitterProvider.getClass().getSimpleName());
         List<TextSegment> textSegments = new ArrayList<>();
@@ -147,6 +161,11 @@ public class Langchain4JIndexingPipeline {
         }
 
         LOGGER.info("Split document into {} text segments", textSegments.size());
+        if (event.shouldCommit()) {
+            event.chars = textSegments.stream().mapToLong(segment -> segment.text().length()).sum();
+            event.segments = textSegments.size();
+            event.commit();
+        }
 
         return textSegments;
     }
@@ -166,20 +185,33 @@ public class Langchain4JIndexingPipeline {
     }
 
     protected List<Embedding> embed(PipelineContext ctx, List<TextSegment> textSegments) {
+        var event = IndexingStageEvent.begin(ctx, "embed");
        EmbeddingModel embeddingModel = this.embeddingModelProvider.getEmbeddingModel(ctx);
         LOGGER.debug("Using embedding model: {}", embeddingModel.getClass().getSimpleName());
 
-        List<Embedding> embeds = embeddingModel.embedAll(textSegments).content();
+        Response<List<Embedding>> response = embeddingModel.embedAll(textSegments);
+        List<Embedding> embeds = response.content();
         LOGGER.info("Generated {} embeddings", embeds.size());
+        if (event.shouldCommit()) {
+            event.chars = textSegments.stream().mapToLong(segment -> segment.text().length()).sum();
+            event.segments = textSegments.size();
+            if (response.tokenUsage() != null && response.tokenUsage().inputTokenCount() != null) {
+                event.tokens = response.tokenUsage().inputTokenCount();
+            }
+            event.commit();
+        }
         return embeds;
     }
 
     protected void store(PipelineContext ctx, List<TextSegment> textSegments, List<Embedding> embeddings) {
+        var event = IndexingStageEvent.begin(ctx, "store");
         EmbeddingStore<TextSegment> embeddingStore = this.embeddingStoreProvider.getEmbeddingStore(ctx);
         LOGGER.debug("Using embedding store: {}", embeddingStore.getClass().getSimpleName());
 
         embeddingStore.addAll(embeddings, textSegments);
         LOGGER.info("Stored {} embeddings in the embedding store", embeddings.size());
+        event.segments = textSegments.size();
+        event.commit();
     }
 
 